@@ -0,0 +1,70 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  JMH benchmark of finding the DC= suffix of a distinguished name
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * the in place scanner against LdapName, and a hit in the memo that
+ * domainPathFromDistinguishedName keeps in front of both, over user and
+ * group names the way AD writes them. Run with -prof gc for the bytes
+ * allocated per call
+ *
+ * @author robert.ginsburg
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DomainPathBenchmark {
+
+    private static final int NAME_COUNT = 1024;
+    private final String[] names = new String[NAME_COUNT];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createNames() {
+        for (int i = 0; i < NAME_COUNT; i++) {
+            names[i] = i % 2 == 0
+                    ? "CN=User " + i + ",OU=Users,OU=Sales,DC=emea,DC=example,DC=com"
+                    : "CN=Group" + i + ",OU=Groups,DC=example,DC=com";
+            //fills the memo for memoHit
+            ADFSCompatibleADUserStore.domainPathFromDistinguishedName(names[i]);
+        }
+    }
+
+    private String nextName() {
+        next = (next + 1) & (NAME_COUNT - 1);
+        return names[next];
+    }
+
+    @Benchmark
+    public String scanner() {
+        return ADFSCompatibleADUserStore.scanDomainPath(nextName());
+    }
+
+    @Benchmark
+    public String ldapName() {
+        return ADFSCompatibleADUserStore.domainPathFromLdapName(nextName());
+    }
+
+    @Benchmark
+    public String memoHit() {
+        return ADFSCompatibleADUserStore.domainPathFromDistinguishedName(nextName());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  JMH benchmark of the string form of objectSid
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * convertSidToStr against the ByteBuffer decoding it replaced, over the SIDs
+ * of a few domains the way a login sees them. Run with -prof gc for the
+ * bytes allocated per call
+ *
+ * @author robert.ginsburg
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SidFormattingBenchmark {
+
+    private static final int SID_COUNT = 1024;
+    private final byte[][] sids = new byte[SID_COUNT][];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createSids() {
+        Random random = new Random(20261016);
+        for (int i = 0; i < SID_COUNT; i++) {
+            //S-1-5-21-x-y-z-rid in one of four domains
+            int domain = i % 4;
+            sids[i] = ByteBuffer.allocate(28).put((byte) 1).put((byte) 5).put(new byte[]{0, 0, 0, 0, 0, 5})
+                    .order(ByteOrder.LITTLE_ENDIAN).putInt(21).putInt(1000 + domain).putInt(2000 + domain).putInt(3000 + domain)
+                    .putInt(1000 + random.nextInt(1000000)).array();
+        }
+    }
+
+    private byte[] nextSid() {
+        next = (next + 1) & (SID_COUNT - 1);
+        return sids[next];
+    }
+
+    @Benchmark
+    public String byteBufferDecoding() {
+        return SecurityIdentifierTest.byteBufferSidToStr(nextSid());
+    }
+
+    @Benchmark
+    public String inPlaceDecoding() {
+        return ADFSCompatibleADUserStore.convertSidToStr(nextSid());
+    }
+}
@@ -37,30 +37,62 @@ So you can use that for a user claim to issue the claim for primarySid.
 package com.balsamicsolutions.wso2is;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import javax.naming.CommunicationException;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
 
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
+import javax.naming.ldap.InitialLdapContext;
 import javax.naming.ldap.LdapName;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 import javax.naming.InvalidNameException;
 import javax.naming.ldap.Rdn;
@@ -75,6 +107,7 @@ import org.wso2.carbon.user.core.UserStoreException;
 import org.wso2.carbon.user.core.claim.ClaimManager;
 import org.wso2.carbon.user.core.profile.ProfileConfigurationManager;
 import org.wso2.carbon.user.core.util.JNDIUtil;
+import org.wso2.carbon.user.core.util.UserCoreUtil;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -96,6 +129,94 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
 
     private static final String MULTI_ATTRIBUTE_SEPARATOR = "MultiAttributeSeparator";
 
+    //user store properties that size the caches, each cache can be bounded
+    //by entry count and by estimated bytes, zero or negative means unbounded
+    private static final String GROUP_SID_CACHE_MAX_ENTRIES = "GroupSidCacheMaxEntries";
+    private static final String GROUP_SID_CACHE_MAX_BYTES = "GroupSidCacheMaxBytes";
+    private static final String USER_TOKEN_GROUPS_CACHE_MAX_ENTRIES = "UserTokenGroupsCacheMaxEntries";
+    private static final String USER_TOKEN_GROUPS_CACHE_MAX_BYTES = "UserTokenGroupsCacheMaxBytes";
+    private static final String USER_DISTINGUISHED_NAME_CACHE_MAX_ENTRIES = "UserDistinguishedNameCacheMaxEntries";
+    private static final String USER_DISTINGUISHED_NAME_CACHE_MAX_BYTES = "UserDistinguishedNameCacheMaxBytes";
+    private static final String USER_PROPERTY_CACHE_MAX_ENTRIES = "UserPropertyCacheMaxEntries";
+    private static final String USER_PROPERTY_CACHE_MAX_BYTES = "UserPropertyCacheMaxBytes";
+    private static final long ONE_MEGABYTE = 1024L * 1024L;
+    //how long cached entries live, and when active ones are reloaded in the
+    //background ahead of that, zero refresh minutes turns refresh ahead off
+    private static final String CACHE_EXPIRATION_MINUTES = "CacheExpirationMinutes";
+    private static final String CACHE_REFRESH_AFTER_MINUTES = "CacheRefreshAfterMinutes";
+    private static final String CACHE_REFRESH_THREADS = "CacheRefreshThreads";
+    private static final int CACHE_REFRESH_QUEUE_SIZE = 1000;
+    //group SID batches are looked up in parallel on a shared pool, each
+    //request using at most SidLookupParallelism connections at once
+    private static final String SID_LOOKUP_THREADS = "SidLookupThreads";
+    private static final String SID_LOOKUP_PARALLELISM = "SidLookupParallelism";
+    private static final int SID_LOOKUP_QUEUE_SIZE = 1000;
+    //threads that run the steps of getUserPropertyValuesAsync
+    private static final String ASYNC_LOOKUP_THREADS = "AsyncLookupThreads";
+    private static final int ASYNC_LOOKUP_QUEUE_SIZE = 1000;
+    //limits for the adaptive number of SIDs in one group search, and the
+    //page size we ask for so AD's MaxPageSize never truncates a search
+    private static final String SID_BATCH_SIZE_MIN = "SidBatchSizeMin";
+    private static final String SID_BATCH_SIZE_INITIAL = "SidBatchSizeInitial";
+    private static final String SID_BATCH_SIZE_MAX = "SidBatchSizeMax";
+    private static final String SID_BATCH_TARGET_MILLISECONDS = "SidBatchTargetMilliseconds";
+    private static final String LDAP_PAGE_SIZE = "LdapPageSize";
+    //how many users getUserPropertyValuesBatch looks for in one search
+    private static final String USER_BATCH_SIZE = "UserBatchSize";
+    //answer role queries from token groups instead of the memberOf chasing
+    //of the inherited implementation
+    private static final String TOKEN_GROUP_ROLES = "TokenGroupRoles";
+    //keep the users of each group in memory, from their token groups, to
+    //list the users in a role without searching AD
+    private static final String USER_ROLE_INDEX = "UserRoleIndex";
+    private static final String USER_ROLE_INDEX_MAX_ENTRIES = "UserRoleIndexMaxEntries";
+    private static final String USER_ROLE_INDEX_MAX_GROUP_SIZE = "UserRoleIndexMaxGroupSize";
+    private static final String USER_ROLE_INDEX_REFRESH_MINUTES = "UserRoleIndexRefreshMinutes";
+    private static final int USER_ROLE_INDEX_PROGRESS_INTERVAL = 10000;
+    //load every group under the group search base into the SID cache when
+    //the store starts, instead of waiting for logins to find them
+    private static final String PRELOAD_GROUP_CATALOG = "PreloadGroupCatalog";
+    private static final String DEFAULT_GROUP_LIST_FILTER = "(objectClass=group)";
+    private static final String DEFAULT_USER_LIST_FILTER = "(&(objectCategory=person)(objectClass=user))";
+    //LDAP_MATCHING_RULE_IN_CHAIN, AD follows nested groups for it
+    private static final String IN_CHAIN_MATCHING_RULE = "1.2.840.113556.1.4.1941";
+    //the groupType bit of a security group, only those are in tokenGroups
+    private static final long SECURITY_ENABLED_GROUP = 0x80000000L;
+    private static final int GROUP_CATALOG_PROGRESS_INTERVAL = 5000;
+    //poll AD for users and groups whose uSNChanged moved, and drop only the
+    //cache entries they affect, zero turns it off
+    private static final String CHANGE_TRACKING_INTERVAL_SECONDS = "ChangeTrackingIntervalSeconds";
+    //remember users and domains AD could not find for a short while, so
+    //scanners, typos and misconfigured domains do not search AD every time
+    private static final String NEGATIVE_CACHE_SECONDS = "NegativeCacheSeconds";
+    private static final String NEGATIVE_CACHE_MAX_ENTRIES = "NegativeCacheMaxEntries";
+    //how often the index of every domain in the forest is read again, zero
+    //reads it only at startup
+    private static final String PARTITION_REFRESH_MINUTES = "PartitionRefreshMinutes";
+    //our own pool of bound connections, zero maximum size opens and closes
+    //one for every lookup like WSO2 does
+    private static final String LDAP_POOL_MIN_IDLE = "LdapPoolMinIdle";
+    private static final String LDAP_POOL_MAX_SIZE = "LdapPoolMaxSize";
+    private static final String LDAP_POOL_IDLE_SECONDS = "LdapPoolIdleSeconds";
+    private static final String LDAP_POOL_WAIT_MILLISECONDS = "LdapPoolWaitMilliseconds";
+    private static final String LDAP_POOL_VALIDATE_AFTER_IDLE_SECONDS = "LdapPoolValidateAfterIdleSeconds";
+    private static final long LDAP_POOL_MAINTENANCE_INTERVAL = 30 * 1000;
+    //several domain controllers to spread the LDAP work over, by how fast
+    //they have been answering, instead of only the ConnectionURL
+    private static final String DOMAIN_CONTROLLER_URLS = "DomainControllerURLs";
+    private static final String DOMAIN_CONTROLLER_PROBE_SECONDS = "DomainControllerProbeSeconds";
+    private static final String DOMAIN_CONTROLLER_FAILURE_THRESHOLD = "DomainControllerFailureThreshold";
+    private static final String DOMAIN_CONTROLLER_QUARANTINE_SECONDS = "DomainControllerQuarantineSeconds";
+    private static final String LDAP_CONNECT_TIMEOUT = "com.sun.jndi.ldap.connect.timeout";
+    private static final String DEFAULT_CONNECT_TIMEOUT_MILLISECONDS = "5000";
+    private static final String LDAP_READ_TIMEOUT = "com.sun.jndi.ldap.read.timeout";
+    //the user store properties WSO2 sets these JNDI settings from
+    private static final String REFERRAL = "Referral";
+    private static final String CONNECTION_TIMEOUT = "LDAPConnectionTimeout";
+    private static final String READ_TIMEOUT = "ReadTimeout";
+    //WSO2 asks for the same few property lists over and over
+    private static final int MAXIMUM_CLAIM_REQUEST_PLANS = 256;
+
     //these are our virtual/calculated properties that we can define and
     //send as claims for a user, they can also be used to calculate the role of a user
     private static final String TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME = "tokenGroupsAsSids";
@@ -115,17 +236,78 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
 
     private String multiValueAttributeSeparator;
     private String groupSearchBasePath;
+    private String userSearchBasePath;
     private String groupNameAttributeName;
     private String userSearchFilter;
+    private String userNameAttributeName;
+    private int userBatchSize;
+    private boolean tokenGroupRoles;
     private String tokenGroupAttributeName;
 
     private static Log sysLogger = LogFactory.getLog(ADFSCompatibleADUserStore.class);
+    //distinguished name -> its DC= suffix, that never changes so the entries
+    //only go when the cache is full or after a day
+    private static final SimpleExpiringCache<String, String> domainPathCache = new SimpleExpiringCache<>(
+            24L * 60 * 60 * 1000, true, 20000, 0, null);
     Map<String, Object> domainNameCache;
-    SimpleExpiringCache<String, Map<String, String>> groupSidGroupNamesCache; //  minute cache for sid->group names
-    SimpleExpiringCache<String, List<String>> userDistinguishedNameTokenGroupsCache; // minute cache for users token groups
+    SimpleExpiringCache<SecurityIdentifier, Map<String, String>> groupSidGroupNamesCache; //  minute cache for sid->group names
+    SimpleExpiringCache<String, TokenGroupSet> userDistinguishedNameTokenGroupsCache; // minute cache for users token groups
     SimpleExpiringCache<String, String> userNameUserDistinguishedNameCache; // minute cache for user distinguishedName translation
-    SimpleExpiringCache<String, Map<String, String>> userPropertyCache;
+    SimpleExpiringCache<String, UserAttributeRecord> userPropertyCache;
+    SimpleExpiringCache<String, Boolean> unknownUserCache; // short cache for user names AD does not have, null when turned off
+    SimpleExpiringCache<String, Boolean> unknownDomainCache; // short cache for domain paths without a crossRef, null when turned off
     private Timer cacheExpirationTimer;
+    //we hold a start of the shared CoarseClock until we shut down
+    private boolean clockStarted;
+    private ThreadPoolExecutor cacheRefreshExecutor;
+    private ThreadPoolExecutor sidLookupExecutor;
+    private ThreadPoolExecutor asyncLookupExecutor;
+    private int sidLookupParallelism;
+    private AdaptiveBatchSizer sidBatchSizer;
+    private int ldapPageSize;
+    private final AtomicLong groupCatalogLoadedCount = new AtomicLong();
+    private volatile boolean groupCatalogComplete;
+    private final Map<List<String>, ClaimRequestPlan> claimRequestPlans = new ConcurrentHashMap<>();
+    //canonical token group sets, users with the same groups share one
+    private final Map<TokenGroupSet, TokenGroupSet> tokenGroupSets = new ConcurrentHashMap<>();
+    //the interned sets are shared, so the token group cache entries only
+    //weigh their reference and the sets take their share of the bytes here
+    private long userTokenGroupsCacheMaxBytes;
+    private volatile long tokenGroupSetsWeight;
+    //bumped when group names may have changed, so shared claims are rebuilt
+    private final AtomicLong groupNamesGeneration = new AtomicLong();
+    //ids for every group we have named, shared by every user of the store
+    private final GroupDictionary groupDictionary = new GroupDictionary();
+    private volatile DomainPartitionIndex domainPartitionIndex = DomainPartitionIndex.EMPTY;
+    private final AtomicLong domainPartitionLoadCount = new AtomicLong();
+    private Timer partitionIndexTimer;
+    private Timer changeTrackingTimer;
+    //null until the first load is done, changes are applied to the one
+    //being loaded as well so they are not lost when it is swapped in
+    private volatile UserRoleIndex userRoleIndex;
+    private volatile UserRoleIndex loadingUserRoleIndex;
+    private Timer userRoleIndexTimer;
+    private final AtomicBoolean userRoleIndexLoadPending = new AtomicBoolean();
+    private final AtomicLong userRoleIndexLoadCount = new AtomicLong();
+    private final AtomicLong userRoleIndexHitCount = new AtomicLong();
+    private final AtomicLong userRoleIndexFallbackCount = new AtomicLong();
+    private DomainControllerRouter domainControllers;
+    private Timer ldapPoolTimer;
+    private final AtomicBoolean shutDown = new AtomicBoolean();
+    //stores that have started their background work and not shut it down,
+    //held weakly so this does not keep a dropped store alive either
+    private static final Set<ADFSCompatibleADUserStore> liveStores = Collections.synchronizedSet(
+            Collections.newSetFromMap(new WeakHashMap<ADFSCompatibleADUserStore, Boolean>()));
+    //the JNDI settings WSO2 connects with, copied for each domain controller,
+    //read once before the first domain controller context is opened
+    private Hashtable<Object, Object> connectionEnvironment;
+    //read once, it is the same for the life of the forest
+    private volatile String configurationNamingContext;
+    //the last USN we read from each domain controller, by its upper cased
+    //dsServiceName. Only touched from the changeTrackingTimer thread
+    private final Map<String, Long> changeTrackingUSNs = new HashMap<>();
+    private final AtomicLong changeTrackingPollCount = new AtomicLong();
+    private final AtomicLong changeTrackingInvalidationCount = new AtomicLong();
 
     //<editor-fold defaultstate="collapsed" desc="ctor">
     /**
@@ -175,22 +357,77 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
      */
     private void initializeMe() {
 
+        CoarseClock.start();
+        clockStarted = true;
         domainNameCache = new ConcurrentHashMap<>(20);
-        long commonCacheExpiration = 60 * 1000 * 30; //cache expires every 30 minutes 
-        groupSidGroupNamesCache = new SimpleExpiringCache<>(commonCacheExpiration, true);               // cache for sid->group names
-        userDistinguishedNameTokenGroupsCache = new SimpleExpiringCache<>(commonCacheExpiration, true); // cache for users token groups
-        userNameUserDistinguishedNameCache = new SimpleExpiringCache<>(commonCacheExpiration, true);    //cache for users distinguished name
-        userPropertyCache = new SimpleExpiringCache<>(commonCacheExpiration, true);                         // second user lookup cache, mostly for the dual calls from WSO2
+        long commonCacheExpiration = 60 * 1000 * getLongProperty(CACHE_EXPIRATION_MINUTES, 30); //cache expires every 30 minutes 
+        long cacheRefreshAfter = 60 * 1000 * getLongProperty(CACHE_REFRESH_AFTER_MINUTES, 20); //active entries reload after 20 minutes
+        boolean refreshAhead = cacheRefreshAfter > 0 && cacheRefreshAfter < commonCacheExpiration;
+        //token groups are read again by every user refresh, so they only need
+        //to live until the user entry is due for a refresh
+        long tokenGroupsCacheExpiration = refreshAhead ? cacheRefreshAfter : commonCacheExpiration;
+        // cache for sid->group names
+        groupSidGroupNamesCache = new SimpleExpiringCache<>(commonCacheExpiration, true,
+                getLongProperty(GROUP_SID_CACHE_MAX_ENTRIES, 100000),
+                getLongProperty(GROUP_SID_CACHE_MAX_BYTES, 64 * ONE_MEGABYTE),
+                SimpleExpiringCache.estimatingWeigher());
+        // cache for users token groups
+        userTokenGroupsCacheMaxBytes = Math.max(0, getLongProperty(USER_TOKEN_GROUPS_CACHE_MAX_BYTES, 128 * ONE_MEGABYTE));
+        userDistinguishedNameTokenGroupsCache = new SimpleExpiringCache<>(tokenGroupsCacheExpiration, true,
+                getLongProperty(USER_TOKEN_GROUPS_CACHE_MAX_ENTRIES, 50000),
+                userTokenGroupsCacheMaxBytes,
+                (userDistinguishedName, userTokenGroups) -> SimpleExpiringCache.estimateWeight(userDistinguishedName) + TokenGroupSet.REFERENCE_WEIGHT);
+        //cache for users distinguished name
+        userNameUserDistinguishedNameCache = new SimpleExpiringCache<>(commonCacheExpiration, true,
+                getLongProperty(USER_DISTINGUISHED_NAME_CACHE_MAX_ENTRIES, 100000),
+                getLongProperty(USER_DISTINGUISHED_NAME_CACHE_MAX_BYTES, 32 * ONE_MEGABYTE),
+                SimpleExpiringCache.estimatingWeigher());
+        // second user lookup cache, mostly for the dual calls from WSO2
+        userPropertyCache = new SimpleExpiringCache<>(commonCacheExpiration, true,
+                getLongProperty(USER_PROPERTY_CACHE_MAX_ENTRIES, 50000),
+                getLongProperty(USER_PROPERTY_CACHE_MAX_BYTES, 128 * ONE_MEGABYTE),
+                (userName, userRecord) -> SimpleExpiringCache.estimateWeight(userName) + userRecord.estimateWeight());
+        long negativeCacheExpiration = 1000 * getLongProperty(NEGATIVE_CACHE_SECONDS, 60);
+        long negativeCacheMaxEntries = getLongProperty(NEGATIVE_CACHE_MAX_ENTRIES, 10000);
+        //zero or less turns negative caching off, every miss asks AD again
+        if (negativeCacheExpiration > 0) {
+            unknownUserCache = new SimpleExpiringCache<>(negativeCacheExpiration, true, negativeCacheMaxEntries, 0, null);
+            unknownDomainCache = new SimpleExpiringCache<>(negativeCacheExpiration, true, negativeCacheMaxEntries, 0, null);
+        }
+        if (refreshAhead) {
+            int refreshThreads = (int) Math.max(1, getLongProperty(CACHE_REFRESH_THREADS, 4));
+            cacheRefreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(CACHE_REFRESH_QUEUE_SIZE), newDaemonThreadFactory("ADFSCompatibleADUserStore-refresh"));
+            cacheRefreshExecutor.allowCoreThreadTimeOut(true);
+            userPropertyCache.enableRefreshAhead(cacheRefreshAfter, cacheRefreshExecutor);
+            groupSidGroupNamesCache.enableRefreshAhead(cacheRefreshAfter, cacheRefreshExecutor);
+        }
 
         long timerInterval = 60 * 1000 * 5;   // process cache expiration check every 5 minutes
         cacheExpirationTimer = new Timer();
-        cacheExpirationTimer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkExpirations();
-            }
-        }, timerInterval, timerInterval);
-
+        cacheExpirationTimer.scheduleAtFixedRate(new StoreTimerTask(this, ADFSCompatibleADUserStore::checkExpirations),
+                timerInterval, timerInterval);
+
+        int sidLookupThreads = (int) Math.max(1, getLongProperty(SID_LOOKUP_THREADS, 8));
+        sidLookupParallelism = (int) Math.max(1, getLongProperty(SID_LOOKUP_PARALLELISM, 4));
+        sidLookupExecutor = new ThreadPoolExecutor(sidLookupThreads, sidLookupThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(SID_LOOKUP_QUEUE_SIZE), newDaemonThreadFactory("ADFSCompatibleADUserStore-sid"));
+        sidLookupExecutor.allowCoreThreadTimeOut(true);
+        //when it is full the step runs on the thread that finished the one
+        //before it, which slows the callers down instead of failing them
+        int asyncLookupThreads = (int) Math.max(1, getLongProperty(ASYNC_LOOKUP_THREADS, 16));
+        asyncLookupExecutor = new ThreadPoolExecutor(asyncLookupThreads, asyncLookupThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(ASYNC_LOOKUP_QUEUE_SIZE), newDaemonThreadFactory("ADFSCompatibleADUserStore-async"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        asyncLookupExecutor.allowCoreThreadTimeOut(true);
+        sidBatchSizer = new AdaptiveBatchSizer((int) getLongProperty(SID_BATCH_SIZE_MIN, 10),
+                (int) getLongProperty(SID_BATCH_SIZE_INITIAL, 50),
+                (int) getLongProperty(SID_BATCH_SIZE_MAX, 250),
+                getLongProperty(SID_BATCH_TARGET_MILLISECONDS, 250));
+        ldapPageSize = (int) getLongProperty(LDAP_PAGE_SIZE, 500);
+
+        //the configuration comes first, the domain controller probe opens
+        //contexts right away and they need the binary attributes
         //only specifiy the TOKEN_GROUPS_GLOBAL_UNIVERSAL if you want to use it
         tokenGroupAttributeName = TOKEN_GROUPS;
         String binaryAttributes = realmConfig.getUserStoreProperty(LDAPConstants.LDAP_ATTRIBUTES_BINARY);
@@ -201,8 +438,109 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         }
         multiValueAttributeSeparator = realmConfig.getUserStoreProperty(MULTI_ATTRIBUTE_SEPARATOR);
         groupSearchBasePath = realmConfig.getUserStoreProperty(LDAPConstants.GROUP_SEARCH_BASE);
+        userSearchBasePath = realmConfig.getUserStoreProperty(LDAPConstants.USER_SEARCH_BASE);
         groupNameAttributeName = realmConfig.getUserStoreProperty(LDAPConstants.GROUP_NAME_ATTRIBUTE);
         userSearchFilter = realmConfig.getUserStoreProperty(LDAPConstants.USER_NAME_SEARCH_FILTER);
+        userNameAttributeName = realmConfig.getUserStoreProperty(LDAPConstants.USER_NAME_ATTRIBUTE);
+        userBatchSize = (int) Math.max(1, getLongProperty(USER_BATCH_SIZE, 100));
+        tokenGroupRoles = getBooleanProperty(TOKEN_GROUP_ROLES, true);
+
+        //one pool for each domain controller, sized for the request threads
+        //plus the SID lookup threads. Without a list we only have the
+        //ConnectionURL WSO2 connects to
+        List<DomainControllerRouter.DomainController> domainControllerList = new ArrayList<>();
+        String domainControllerURLs = realmConfig.getUserStoreProperty(DOMAIN_CONTROLLER_URLS);
+        if (domainControllerURLs != null) {
+            connectionEnvironment = readConnectionEnvironment();
+            for (String domainControllerURL : domainControllerURLs.trim().split("[,\\s]+")) {
+                if (!domainControllerURL.isEmpty()) {
+                    domainControllerList.add(new DomainControllerRouter.DomainController(domainControllerURL,
+                            createConnectionPool(domainControllerURL, () -> createDomainControllerContext(domainControllerURL))));
+                }
+            }
+        }
+        if (domainControllerList.isEmpty()) {
+            String connectionURL = realmConfig.getUserStoreProperty(LDAPConstants.CONNECTION_URL);
+            domainControllerList.add(new DomainControllerRouter.DomainController(connectionURL,
+                    createConnectionPool(connectionURL, this.connectionSource::getContext)));
+        }
+        domainControllers = new DomainControllerRouter(domainControllerList,
+                (int) getLongProperty(DOMAIN_CONTROLLER_FAILURE_THRESHOLD, 3),
+                1000 * getLongProperty(DOMAIN_CONTROLLER_QUARANTINE_SECONDS, 30));
+        ldapPoolTimer = new Timer("ADFSCompatibleADUserStore-pool", true);
+        ldapPoolTimer.schedule(new StoreTimerTask(this, store -> store.domainControllers.maintain()),
+                LDAP_POOL_MAINTENANCE_INTERVAL, LDAP_POOL_MAINTENANCE_INTERVAL);
+        long probeInterval = 1000 * getLongProperty(DOMAIN_CONTROLLER_PROBE_SECONDS, 10);
+        if (domainControllerList.size() > 1 && probeInterval > 0) {
+            ldapPoolTimer.schedule(new StoreTimerTask(this, store -> store.domainControllers.probe()), 0, probeInterval);
+        }
+
+        if (getBooleanProperty(PRELOAD_GROUP_CATALOG, false)) {
+            //logins that arrive before we are done use the lazy lookup
+            newDaemonThreadFactory("ADFSCompatibleADUserStore-preload").newThread(this::preloadGroupCatalog).start();
+        }
+
+        //domain names for claims come from here once it is loaded, until then
+        //they are looked up one domain at a time
+        long partitionRefreshInterval = 60 * 1000 * getLongProperty(PARTITION_REFRESH_MINUTES, 60);
+        partitionIndexTimer = new Timer("ADFSCompatibleADUserStore-partitions", true);
+        TimerTask partitionIndexTask = new StoreTimerTask(this, ADFSCompatibleADUserStore::loadDomainPartitionIndex);
+        if (partitionRefreshInterval > 0) {
+            partitionIndexTimer.schedule(partitionIndexTask, 0, partitionRefreshInterval);
+        } else {
+            partitionIndexTimer.schedule(partitionIndexTask, 0);
+        }
+
+        if (tokenGroupRoles && getBooleanProperty(USER_ROLE_INDEX, false)) {
+            //role member lists come from AD until the first load is done
+            long userRoleIndexRefreshInterval = 60 * 1000 * getLongProperty(USER_ROLE_INDEX_REFRESH_MINUTES, 240);
+            userRoleIndexTimer = new Timer("ADFSCompatibleADUserStore-roles", true);
+            scheduleUserRoleIndexLoad();
+            if (userRoleIndexRefreshInterval > 0) {
+                userRoleIndexTimer.schedule(new StoreTimerTask(this, ADFSCompatibleADUserStore::scheduleUserRoleIndexLoad),
+                        userRoleIndexRefreshInterval, userRoleIndexRefreshInterval);
+            }
+        }
+
+        long changeTrackingInterval = 1000 * getLongProperty(CHANGE_TRACKING_INTERVAL_SECONDS, 0);
+        if (changeTrackingInterval > 0) {
+            //the first run only takes the starting point, so do it right away
+            changeTrackingTimer = new Timer("ADFSCompatibleADUserStore-changes", true);
+            changeTrackingTimer.schedule(new StoreTimerTask(this, ADFSCompatibleADUserStore::pollDirectoryChanges), 0, changeTrackingInterval);
+        }
+        liveStores.add(this);
+    }
+
+    /**
+     * a timer task that only holds its store weakly. A live timer thread
+     * keeps its tasks reachable, so a task holding the store would keep a
+     * store WSO2 has dropped, and everything it has open, alive for good.
+     * Once the store has been collected the task cancels itself
+     */
+    private static final class StoreTimerTask extends TimerTask {
+
+        private final WeakReference<ADFSCompatibleADUserStore> storeReference;
+        private final Consumer<ADFSCompatibleADUserStore> work;
+
+        /**
+         *
+         * @param store
+         * @param work must not hold the store itself
+         */
+        StoreTimerTask(ADFSCompatibleADUserStore store, Consumer<ADFSCompatibleADUserStore> work) {
+            this.storeReference = new WeakReference<>(store);
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            ADFSCompatibleADUserStore store = storeReference.get();
+            if (store == null) {
+                cancel();
+                return;
+            }
+            work.accept(store);
+        }
     }
 
     /**
@@ -214,14 +552,374 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         userDistinguishedNameTokenGroupsCache.checkExpirations();
         userNameUserDistinguishedNameCache.checkExpirations();
         userPropertyCache.checkExpirations();
+        if (unknownUserCache != null) {
+            unknownUserCache.checkExpirations();
+            unknownDomainCache.checkExpirations();
+        }
+        purgeTokenGroupSets();
+        //group names may have been refreshed since the shared claims were
+        //built, this bounds how stale they can be
+        groupNamesGeneration.incrementAndGet();
+        if (sysLogger.isDebugEnabled()) {
+            sysLogger.debug("ADFSCompatibleADUserStore cache statistics " + getCacheStatistics());
+        }
+    }
+
+    /**
+     * hit, miss, eviction, expiration, size and weight counters for each of
+     * the caches, keyed by cacheName.counterName
+     *
+     * @return
+     */
+    public Map<String, Long> getCacheStatistics() {
+        Map<String, Long> returnValue = new LinkedHashMap<>();
+        addCacheStatistics(returnValue, "groupSidGroupNamesCache", groupSidGroupNamesCache);
+        addCacheStatistics(returnValue, "userDistinguishedNameTokenGroupsCache", userDistinguishedNameTokenGroupsCache);
+        addCacheStatistics(returnValue, "userNameUserDistinguishedNameCache", userNameUserDistinguishedNameCache);
+        addCacheStatistics(returnValue, "userPropertyCache", userPropertyCache);
+        //hits here are requests answered "not found" without asking AD
+        if (unknownUserCache != null) {
+            addCacheStatistics(returnValue, "unknownUserCache", unknownUserCache);
+            addCacheStatistics(returnValue, "unknownDomainCache", unknownDomainCache);
+        }
+        returnValue.put("tokenGroupSets.size", (long) tokenGroupSets.size());
+        returnValue.put("tokenGroupSets.weight", tokenGroupSetsWeight);
+        returnValue.put("groupDictionary.groups", (long) groupDictionary.size());
+        returnValue.put("groupDictionary.roleNames", (long) groupDictionary.roleNameCount());
+        returnValue.put("partitionIndex.domains", (long) domainPartitionIndex.size());
+        returnValue.put("partitionIndex.loads", domainPartitionLoadCount.get());
+        returnValue.put("groupCatalog.loaded", groupCatalogLoadedCount.get());
+        returnValue.put("groupCatalog.complete", groupCatalogComplete ? 1L : 0L);
+        returnValue.put("changeTracking.polls", changeTrackingPollCount.get());
+        returnValue.put("changeTracking.invalidations", changeTrackingInvalidationCount.get());
+        UserRoleIndex currentRoleIndex = userRoleIndex;
+        returnValue.put("userRoleIndex.users", currentRoleIndex == null ? 0L : currentRoleIndex.getUserCount());
+        returnValue.put("userRoleIndex.groups", currentRoleIndex == null ? 0L : currentRoleIndex.getGroupCount());
+        returnValue.put("userRoleIndex.memberships", currentRoleIndex == null ? 0L : currentRoleIndex.getEntryCount());
+        //groups too big to index, their members come from AD
+        returnValue.put("userRoleIndex.oversizedGroups", currentRoleIndex == null ? 0L : currentRoleIndex.getOversizedGroupCount());
+        returnValue.put("userRoleIndex.loads", userRoleIndexLoadCount.get());
+        returnValue.put("userRoleIndex.hits", userRoleIndexHitCount.get());
+        returnValue.put("userRoleIndex.fallbacks", userRoleIndexFallbackCount.get());
+        for (DomainControllerRouter.DomainController domainController : domainControllers.getDomainControllers()) {
+            addPoolStatistics(returnValue, "ldapPool", domainController.getPool());
+            String statisticPrefix = "domainController." + domainController.getUrl();
+            double latencyMillis = domainController.getLatencyMillis();
+            //-1 until the first health probe
+            returnValue.put(statisticPrefix + ".latencyMicros", latencyMillis < 0 ? -1L : Math.round(1000 * latencyMillis));
+            returnValue.put(statisticPrefix + ".errorPercent", Math.round(100 * domainController.getErrorRate()));
+            returnValue.put(statisticPrefix + ".slowdownPercent", Math.round(100 * domainController.getSlowdown()));
+            returnValue.put(statisticPrefix + ".quarantined", domainController.isQuarantined(System.currentTimeMillis()) ? 1L : 0L);
+            returnValue.put(statisticPrefix + ".selections", domainController.getSelectionCount());
+            returnValue.put(statisticPrefix + ".failures", domainController.getFailureCount());
+        }
+        return returnValue;
+    }
+
+    /**
+     * adds the counters of a pool to the ones already there, so they are
+     * totals over all of the domain controllers
+     */
+    private static void addPoolStatistics(Map<String, Long> statistics, String poolName, LdapConnectionPool pool) {
+        statistics.merge(poolName + ".open", (long) pool.getOpenCount(), Long::sum);
+        statistics.merge(poolName + ".active", (long) pool.getActiveCount(), Long::sum);
+        statistics.merge(poolName + ".idle", (long) pool.getIdleCount(), Long::sum);
+        statistics.merge(poolName + ".borrows", pool.getBorrowCount(), Long::sum);
+        //borrows that shared the context the request already had
+        statistics.merge(poolName + ".reuses", pool.getReuseCount(), Long::sum);
+        statistics.merge(poolName + ".creates", pool.getCreateCount(), Long::sum);
+        statistics.merge(poolName + ".closes", pool.getCloseCount(), Long::sum);
+        statistics.merge(poolName + ".waits", pool.getWaitCount(), Long::sum);
+        statistics.merge(poolName + ".waitMillis", pool.getWaitMillis(), Long::sum);
+        statistics.merge(poolName + ".timeouts", pool.getTimeoutCount(), Long::sum);
+        statistics.merge(poolName + ".validationFailures", pool.getValidationFailureCount(), Long::sum);
+    }
+
+    /**
+     * a connection pool for one domain controller, from the LdapPool
+     * properties
+     *
+     * @param url
+     * @param contextFactory
+     * @return
+     */
+    private LdapConnectionPool createConnectionPool(String url, LdapConnectionPool.ContextFactory contextFactory) {
+        return new LdapConnectionPool("ADFSCompatibleADUserStore LDAP pool for " + url, contextFactory,
+                (int) getLongProperty(LDAP_POOL_MIN_IDLE, 2),
+                (int) getLongProperty(LDAP_POOL_MAX_SIZE, 64),
+                1000 * getLongProperty(LDAP_POOL_IDLE_SECONDS, 300),
+                getLongProperty(LDAP_POOL_WAIT_MILLISECONDS, 5000),
+                1000 * getLongProperty(LDAP_POOL_VALIDATE_AFTER_IDLE_SECONDS, 5));
+    }
+
+    /**
+     * opens a context on one of the DomainControllerURLs, with the same
+     * settings WSO2 uses for the ConnectionURL
+     *
+     * @param url
+     * @return
+     * @throws UserStoreException
+     */
+    private DirContext createDomainControllerContext(String url) throws UserStoreException {
+        Hashtable<Object, Object> environment = new Hashtable<>(connectionEnvironment);
+        environment.put(Context.PROVIDER_URL, url);
+        environment.putIfAbsent(LDAP_CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT_MILLISECONDS);
+        try {
+            return new InitialLdapContext(environment, null);
+        } catch (NamingException connectError) {
+            throw new UserStoreException("Cannot connect to domain controller " + url, connectError);
+        }
+    }
+
+    /**
+     * the environment of a context from WSO2's connection source, so we get
+     * its credentials, binary attributes, referral, SSL and timeout settings.
+     * It is read once, when the ConnectionURL cannot be reached we build the
+     * same settings from the user store properties instead, so a dead
+     * ConnectionURL is not connected to again for every new context
+     *
+     * @return
+     */
+    private Hashtable<Object, Object> readConnectionEnvironment() {
+        DirContext templateContext = null;
+        try {
+            templateContext = this.connectionSource.getContext();
+            return new Hashtable<>(templateContext.getEnvironment());
+        } catch (NamingException | UserStoreException templateError) {
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Could not read the connection settings from the ConnectionURL, using the user store properties", templateError);
+            }
+        } finally {
+            try {
+                JNDIUtil.closeContext(templateContext);
+            } catch (UserStoreException closeError) {
+                if (sysLogger.isDebugEnabled()) {
+                    sysLogger.debug("Error cleaning up from readConnectionEnvironment", closeError);
+                }
+            }
+        }
+        Hashtable<Object, Object> environment = new Hashtable<>();
+        //JNDI settings given by their own names, like java.naming.referral,
+        //java.naming.security.protocol or java.naming.ldap.factory.socket
+        for (Map.Entry<String, String> property : realmConfig.getUserStoreProperties().entrySet()) {
+            if (property.getValue() != null && (property.getKey().startsWith("java.naming.") || property.getKey().startsWith("com.sun.jndi.ldap."))) {
+                environment.put(property.getKey(), property.getValue());
+            }
+        }
+        environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+        environment.put(Context.SECURITY_AUTHENTICATION, "simple");
+        String connectionName = realmConfig.getUserStoreProperty(LDAPConstants.CONNECTION_NAME);
+        String connectionPassword = realmConfig.getUserStoreProperty(LDAPConstants.CONNECTION_PASSWORD);
+        if (connectionName != null && connectionPassword != null) {
+            environment.put(Context.SECURITY_PRINCIPAL, connectionName);
+            environment.put(Context.SECURITY_CREDENTIALS, connectionPassword);
+        }
+        //and the ones WSO2 has its own names for
+        putUserStoreProperty(environment, Context.REFERRAL, REFERRAL);
+        putUserStoreProperty(environment, LDAP_CONNECT_TIMEOUT, CONNECTION_TIMEOUT);
+        putUserStoreProperty(environment, LDAP_READ_TIMEOUT, READ_TIMEOUT);
+        String connectionURL = realmConfig.getUserStoreProperty(LDAPConstants.CONNECTION_URL);
+        if (connectionURL != null && connectionURL.trim().toLowerCase(Locale.ENGLISH).startsWith("ldaps:")) {
+            environment.putIfAbsent(Context.SECURITY_PROTOCOL, "ssl");
+        }
+        String binaryAttributes = realmConfig.getUserStoreProperty(LDAPConstants.LDAP_ATTRIBUTES_BINARY);
+        environment.put(LDAPConstants.LDAP_ATTRIBUTES_BINARY, "objectSid objectGUID " + tokenGroupAttributeName
+                + (binaryAttributes == null ? "" : " " + binaryAttributes));
+        return environment;
+    }
+
+    private void putUserStoreProperty(Hashtable<Object, Object> environment, String environmentName, String propertyName) {
+        String value = realmConfig.getUserStoreProperty(propertyName);
+        if (value != null && !value.trim().isEmpty()) {
+            environment.put(environmentName, value.trim());
+        }
+    }
+
+    /**
+     * counts errors that mean the domain controller is down or unreachable
+     * against it, so the next requests go to another one
+     *
+     * @param dirContext
+     * @param ldapError
+     */
+    private void reportDirectoryError(DirContext dirContext, NamingException ldapError) {
+        if (ldapError instanceof CommunicationException || ldapError instanceof ServiceUnavailableException) {
+            domainControllers.reportFailure(dirContext);
+        }
+    }
+
+    /**
+     * true if AD did not have the user a short while ago
+     *
+     * @param cacheKey upper case user name
+     * @return false if negative caching is off
+     */
+    private boolean isUnknownUser(String cacheKey) {
+        return unknownUserCache != null && unknownUserCache.get(cacheKey) != null;
+    }
+
+    /**
+     * remembers that AD does not have the user, unless negative caching is
+     * off
+     *
+     * @param cacheKey upper case user name
+     */
+    private void rememberUnknownUser(String cacheKey) {
+        if (unknownUserCache != null) {
+            unknownUserCache.put(cacheKey, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * true if the domain had no crossRef a short while ago
+     *
+     * @param domainPath upper case domain path
+     * @return false if negative caching is off
+     */
+    private boolean isUnknownDomain(String domainPath) {
+        return unknownDomainCache != null && unknownDomainCache.get(domainPath) != null;
+    }
+
+    /**
+     * remembers that the domain has no crossRef, unless negative caching is
+     * off
+     *
+     * @param domainPath upper case domain path
+     */
+    private void rememberUnknownDomain(String domainPath) {
+        if (unknownDomainCache != null) {
+            unknownDomainCache.put(domainPath, Boolean.TRUE);
+        }
+    }
+
+    private static void addCacheStatistics(Map<String, Long> statistics, String cacheName, SimpleExpiringCache<?, ?> cache) {
+        statistics.put(cacheName + ".hits", cache.getHitCount());
+        statistics.put(cacheName + ".misses", cache.getMissCount());
+        statistics.put(cacheName + ".evictions", cache.getEvictionCount());
+        statistics.put(cacheName + ".expirations", cache.getExpirationCount());
+        statistics.put(cacheName + ".refreshes", cache.getRefreshCount());
+        statistics.put(cacheName + ".refreshFailures", cache.getRefreshFailureCount());
+        statistics.put(cacheName + ".size", (long) cache.size());
+        statistics.put(cacheName + ".weight", cache.weightedSize());
+    }
+
+    /**
+     * reads a true/false user store property
+     *
+     * @param propertyName
+     * @param defaultValue
+     * @return
+     */
+    boolean getBooleanProperty(String propertyName, boolean defaultValue) {
+        String propertyValue = realmConfig.getUserStoreProperty(propertyName);
+        if (propertyValue != null && propertyValue.trim().length() > 0) {
+            return Boolean.parseBoolean(propertyValue.trim());
+        }
+        return defaultValue;
+    }
+
+    /**
+     * thread factory for our background pools, daemon threads so they never
+     * keep the server from shutting down
+     *
+     * @param namePrefix
+     * @return
+     */
+    static ThreadFactory newDaemonThreadFactory(String namePrefix) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * reads a numeric user store property, falling back to the default if it
+     * is missing or not a number
+     *
+     * @param propertyName
+     * @param defaultValue
+     * @return
+     */
+    long getLongProperty(String propertyName, long defaultValue) {
+        String propertyValue = realmConfig.getUserStoreProperty(propertyName);
+        if (propertyValue != null && propertyValue.trim().length() > 0) {
+            try {
+                return Long.parseLong(propertyValue.trim());
+            } catch (NumberFormatException parseError) {
+                sysLogger.warn("Invalid value " + propertyValue + " for user store property " + propertyName + ", using " + defaultValue);
+            }
+        }
+        return defaultValue;
     }
     //</editor-fold>
 
-    //<editor-fold defaultstate="collapsed" desc="finalize">
+    //<editor-fold defaultstate="collapsed" desc="shutdown and finalize">
+    /**
+     * stops the timers and the background threads, closes the pooled LDAP
+     * connections and lets go of the shared clock. WSO2 has no hook for a store it is done with, so this is
+     * called for every store when the bundle deactivates, and from finalize
+     * for stores WSO2 drops while it is running (a secondary store edit or a
+     * tenant unload). Lookups after this fail on the closed pools, calling it
+     * again does nothing
+     */
+    public void shutdown() {
+        if (!shutDown.compareAndSet(false, true)) {
+            return;
+        }
+        liveStores.remove(this);
+        if (clockStarted) {
+            clockStarted = false;
+            CoarseClock.stop();
+        }
+        if (cacheExpirationTimer != null) {
+            cacheExpirationTimer.cancel();
+        }
+        if (changeTrackingTimer != null) {
+            changeTrackingTimer.cancel();
+        }
+        if (partitionIndexTimer != null) {
+            partitionIndexTimer.cancel();
+        }
+        if (userRoleIndexTimer != null) {
+            userRoleIndexTimer.cancel();
+        }
+        if (cacheRefreshExecutor != null) {
+            cacheRefreshExecutor.shutdownNow();
+        }
+        if (sidLookupExecutor != null) {
+            sidLookupExecutor.shutdownNow();
+        }
+        if (asyncLookupExecutor != null) {
+            asyncLookupExecutor.shutdownNow();
+        }
+        if (ldapPoolTimer != null) {
+            ldapPoolTimer.cancel();
+        }
+        if (domainControllers != null) {
+            domainControllers.close();
+        }
+    }
+
+    /**
+     * shuts down every store that has not been shut down yet, called when
+     * the bundle deactivates
+     */
+    public static void shutdownAll() {
+        List<ADFSCompatibleADUserStore> stores;
+        synchronized (liveStores) {
+            stores = new ArrayList<>(liveStores);
+        }
+        for (ADFSCompatibleADUserStore store : stores) {
+            store.shutdown();
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
       try{
-            cacheExpirationTimer.cancel();
+            shutdown();
           }catch(Throwable t){
               throw t;
           }finally{
@@ -245,451 +943,2313 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         return getUserPropertyValuesInternal(userName, propertyNames);
     }
 
-    //</editor-fold>
-    
-    //<editor-fold defaultstate="collapsed" desc="getUserPropertyValuesInternal">
     /**
-     * First step in handling the call from the api, we will check for our
-     * virtual properties and create the dirContext
+     * the roles of a user from their token groups, so nested, universal and
+     * primary groups are all included and the answer comes from the caches
+     * instead of chasing memberOf. Turned off with TokenGroupRoles. The names
+     * are not qualified, the same as the inherited method, WSO2 adds the
+     * domain of the user store to them
      *
      * @param userName
-     * @param propertyNames
+     * @param filter WSO2 role filter, * matches anything
      * @return
      * @throws UserStoreException
      */
-    @SuppressFBWarnings({"DM_CONVERT_CASE", "DM_DEFAULT_ENCODING"})//justification: usage is correct
-    Map<String, String> getUserPropertyValuesInternal(String userName, String[] propertyNames) throws UserStoreException {
-        String cacheKey = userName + String.join(multiValueAttributeSeparator, propertyNames);
-        cacheKey = cacheKey.toUpperCase();
-        Map<String, String> returnValue = userPropertyCache.get(cacheKey);
-        if (null == returnValue) {
-
-            List<String> propList = new ArrayList<>();
-            //check for tokengroups and remove it, it will cause a deap search to fail
-            //so we will get it later if we need it 
-            //this is becasue we need a different search path
-            boolean needSamAccountName = false;
-            boolean hasSamAccountName = false;
-            boolean needTokenGroups = false;
-            boolean returnTokenGroupsAsSids = false;
-            boolean returnTokenGroupsAsTokenGroups = false;
-            boolean returnTokenGroupsQualifedWithDomainName = false;
-            boolean returnTokenGroupsQualifedWithLongDomainName = false;
-            boolean returnSamAccountNameQualifedWithDomainName = false;
-            boolean returnSamAccountNameQualifedWithLongDomainName = false;
-            boolean returnTokenGroupsAsUnqualifiedName = false;
-            boolean hasDistinguishedName = false;
-            boolean needDistinguishedName = false;
-            boolean addFullyQualifiedDomainName = false;
-            boolean addNetBIOSDomainName = false;
-            //evaluate the properties and see if we have to process
-            //any of the virtual ones
-            for (String propertyName : propertyNames) {
-                if (propertyName.equalsIgnoreCase(DISTINGUISHED_NAME)) {
-                    hasDistinguishedName = true;
-                }
-                if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME)) {
-                    hasSamAccountName = true;
-                }
-                if (propertyName.equalsIgnoreCase(tokenGroupAttributeName)) {
-                    needTokenGroups = true;
-                    returnTokenGroupsAsTokenGroups = true;
-                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needTokenGroups = true;
-                    returnTokenGroupsAsSids = true;
-                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needTokenGroups = true;
-                    returnTokenGroupsQualifedWithDomainName = true;
-                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needTokenGroups = true;
-                    returnTokenGroupsQualifedWithLongDomainName = true;
-                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needTokenGroups = true;
-                    returnTokenGroupsAsUnqualifiedName = true;
-                } else if (propertyName.equalsIgnoreCase(LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needDistinguishedName = true;
-                    addFullyQualifiedDomainName = true;
-                } else if (propertyName.equalsIgnoreCase(DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needDistinguishedName = true;
-                    addNetBIOSDomainName = true;
-                } else if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needSamAccountName = true;
-                    needDistinguishedName = true;
-                    returnSamAccountNameQualifedWithDomainName = true;
-                } else if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
-                    needSamAccountName = true;
-                    needDistinguishedName = true;
-                    returnSamAccountNameQualifedWithLongDomainName = true;
-                } else {
-                    propList.add(propertyName);
-                }
+    @Override
+    protected String[] doGetExternalRoleListOfUser(String userName, String filter) throws UserStoreException {
+        if (!tokenGroupRoles) {
+            return super.doGetExternalRoleListOfUser(userName, filter);
+        }
+        Pattern rolePattern = compileNameFilter(filter);
+        List<String> returnValue = new ArrayList<>();
+        for (String roleName : getTokenGroupRoleNames(userName)) {
+            if (rolePattern == null || rolePattern.matcher(roleName).matches()) {
+                returnValue.add(roleName);
             }
+        }
+        return returnValue.toArray(new String[returnValue.size()]);
+    }
 
-            if ((needTokenGroups || needDistinguishedName) && !hasDistinguishedName) {
-                propList.add(DISTINGUISHED_NAME);
+    /**
+     * checks a role against the token groups of the user, see
+     * doGetExternalRoleListOfUser
+     *
+     * @param userName
+     * @param roleName
+     * @return
+     * @throws UserStoreException
+     */
+    @Override
+    public boolean doCheckIsUserInRole(String userName, String roleName) throws UserStoreException {
+        if (!tokenGroupRoles) {
+            return super.doCheckIsUserInRole(userName, roleName);
+        }
+        String unqualifiedRoleName = roleName.contains(CarbonConstants.DOMAIN_SEPARATOR) ? removeDomainFromName(roleName) : roleName;
+        //a user whose groups are cached is checked without a context
+        String userDistinguishedName = userNameUserDistinguishedNameCache.get(userName);
+        TokenGroupSet userTokenGroups = userDistinguishedName == null ? null : userDistinguishedNameTokenGroupsCache.get(userDistinguishedName);
+        int[] userGroupIds = userTokenGroups == null ? null : userTokenGroups.groupIds;
+        if (userGroupIds != null) {
+            return groupDictionary.isMember(userGroupIds, unqualifiedRoleName);
+        }
+        DirContext dirContext = domainControllers.borrow();
+        try {
+            userDistinguishedName = getUserDistinguishedName(userName, dirContext);
+            if (userDistinguishedName == null) {
+                return false;
             }
-            if (needSamAccountName && !hasSamAccountName) {
-                propList.add(SAM_ACCOUNT_NAME);
+            userTokenGroups = getUsersTokenGroups(userDistinguishedName, dirContext);
+            userGroupIds = getGroupIds(userTokenGroups);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+        if (userGroupIds != null) {
+            return groupDictionary.isMember(userGroupIds, unqualifiedRoleName);
+        }
+        //the dictionary is full, compare the names
+        for (String userRoleName : getTokenGroupRoleNames(userName)) {
+            if (userRoleName.equalsIgnoreCase(unqualifiedRoleName)) {
+                return true;
             }
-            String[] innerPropertyNames = propList.toArray(new String[propList.size()]);
-
-            DirContext dirContext = this.connectionSource.getContext();
-
-            try {
-                //get the actual properties from AD
-                returnValue = getUserPropertyValuesInternal(userName, innerPropertyNames, dirContext);
-                //mark up the returned values
-                if (addFullyQualifiedDomainName || addNetBIOSDomainName || returnSamAccountNameQualifedWithLongDomainName || returnSamAccountNameQualifedWithDomainName) {
-                    String distinguishedName = returnValue.get(DISTINGUISHED_NAME);
-                    if (addFullyQualifiedDomainName || returnSamAccountNameQualifedWithLongDomainName) {
-                        String domainName = getDomainNameFromDistinguishedName(distinguishedName, true);
-                        if (addFullyQualifiedDomainName) {
-                            returnValue.put(LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, domainName);
-                        }
-                        if (returnSamAccountNameQualifedWithLongDomainName) {
-                            String samAccountName = domainName + "\\" + returnValue.get(SAM_ACCOUNT_NAME);
-                            returnValue.put(SAM_ACCOUNT_NAME_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
-                        }
-                    }
-                    if (addNetBIOSDomainName || returnSamAccountNameQualifedWithDomainName) {
-                        String netBIOSName = getDomainNameFromDistinguishedName(distinguishedName, false);
-                        if (addNetBIOSDomainName) {
-                            returnValue.put(DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, netBIOSName);
-                        }
-                        if (returnSamAccountNameQualifedWithDomainName) {
-                            String samAccountName = netBIOSName + "\\" + returnValue.get(SAM_ACCOUNT_NAME);
-                            returnValue.put(SAM_ACCOUNT_NAME_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
-                        }
-                    }
-                }
-                if (needTokenGroups) {
-                    String userDistinguishedName = returnValue.get(DISTINGUISHED_NAME);
-                    String[] userTokenGroups = getUsersTokenGroups(userDistinguishedName, dirContext);
-                    Map<String, Map<String, String>> nameMap = getNamesForTokenGroups(userTokenGroups, dirContext, userDistinguishedName);
+        }
+        return false;
+    }
 
-                    if (returnTokenGroupsAsSids || returnTokenGroupsAsTokenGroups) {
-                        String stringifiedValue = assembleStringifiedValue(nameMap, TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME);
-                        if (returnTokenGroupsAsSids) {
-                            returnValue.put(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, stringifiedValue);
-                        }
-                        if (returnTokenGroupsAsTokenGroups) {
-                            returnValue.put(TOKEN_GROUPS, stringifiedValue);
-                        }
-                    }
-                    if (returnTokenGroupsAsUnqualifiedName) {
-                        String stringifiedValue = assembleStringifiedValue(nameMap, TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME);
-                        returnValue.put(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME, stringifiedValue);
+    /**
+     * the users in a role from the user role index, or from AD if the index
+     * is off, not loaded yet, or the group is too big for it. Either way they
+     * are the users with the role in their token groups, the same as
+     * doGetExternalRoleListOfUser, unless TokenGroupRoles is off
+     *
+     * @param roleName
+     * @param filter WSO2 user name filter, * matches anything
+     * @return
+     * @throws UserStoreException
+     */
+    @Override
+    public String[] doGetUserListOfRole(String roleName, String filter) throws UserStoreException {
+        if (!tokenGroupRoles) {
+            return super.doGetUserListOfRole(roleName, filter);
+        }
+        int maximumUsers = (int) getLongProperty(UserCoreConstants.RealmConfig.PROPERTY_MAX_USER_LIST, 100);
+        List<String> roleUsers = getIndexedUserListOfRole(roleName, filter, 0, maximumUsers);
+        if (roleUsers == null) {
+            roleUsers = readUserListOfRole(roleName, filter, maximumUsers);
+        }
+        return roleUsers.toArray(new String[roleUsers.size()]);
+    }
 
-                    }
-                    if (returnTokenGroupsQualifedWithLongDomainName) {
-                        String stringifiedValue = assembleStringifiedValue(nameMap, TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME);
-                        returnValue.put(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, stringifiedValue);
+    //</editor-fold>
 
-                    }
-                    if (returnTokenGroupsQualifedWithDomainName) {
-                        String stringifiedValue = assembleStringifiedValue(nameMap, TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME);
-                        returnValue.put(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, stringifiedValue);
-                    }
+    //<editor-fold defaultstate="collapsed" desc="token group roles">
+    /**
+     * the group name attribute of each of the users token groups, the groups
+     * we cannot find under the group search base are left out
+     *
+     * @param userName
+     * @return empty if AD does not have the user
+     * @throws UserStoreException
+     */
+    private List<String> getTokenGroupRoleNames(String userName) throws UserStoreException {
+        DirContext dirContext = domainControllers.borrow();
+        try {
+            String userDistinguishedName = getUserDistinguishedName(userName, dirContext);
+            if (userDistinguishedName == null) {
+                return Collections.emptyList();
+            }
+            TokenGroupSet userTokenGroups = getUsersTokenGroups(userDistinguishedName, dirContext);
+            Map<SecurityIdentifier, Map<String, String>> nameMap = getNamesForTokenGroups(userTokenGroups.groupSids);
+            List<String> returnValue = new ArrayList<>(nameMap.size());
+            for (SecurityIdentifier groupSid : userTokenGroups.groupSids) {
+                Map<String, String> groupNames = nameMap.get(groupSid);
+                String groupName = groupNames == null ? null : groupNames.get(groupNameAttributeName);
+                if (groupName != null && !groupName.isEmpty()) {
+                    returnValue.add(groupName);
+                }
+            }
+            return returnValue;
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
 
+    /**
+     * the sorted dictionary ids of the groups in a token group set, made the
+     * first time they are needed and kept on the set, so they go when the
+     * cached token groups of its users do. Looking the group names up names
+     * the groups in the dictionary
+     *
+     * @param userTokenGroups
+     * @return null if the dictionary is full
+     * @throws UserStoreException
+     */
+    private int[] getGroupIds(TokenGroupSet userTokenGroups) throws UserStoreException {
+        int[] returnValue = userTokenGroups.groupIds;
+        if (returnValue == null) {
+            getNamesForTokenGroups(userTokenGroups.groupSids);
+            returnValue = groupDictionary.groupIds(userTokenGroups.groupSids);
+            userTokenGroups.groupIds = returnValue;
+        }
+        return returnValue;
+    }
+
+    /**
+     * turns a WSO2 role or user name filter into a case insensitive pattern
+     *
+     * @param filter
+     * @return null if it matches everything
+     */
+    private static Pattern compileNameFilter(String filter) {
+        if (filter == null || filter.trim().isEmpty() || filter.trim().equals("*")) {
+            return null;
+        }
+        StringBuilder namePattern = new StringBuilder();
+        String[] literals = removeDomainFromName(filter.trim()).split("\\*", -1);
+        for (int i = 0; i < literals.length; i++) {
+            if (i > 0) {
+                namePattern.append(".*");
+            }
+            if (!literals[i].isEmpty()) {
+                namePattern.append(Pattern.quote(literals[i]));
+            }
+        }
+        return Pattern.compile(namePattern.toString(), Pattern.CASE_INSENSITIVE);
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="getUserPropertyValuesInternal">
+    /**
+     * First step in handling the call from the api. We keep one record per
+     * user with every attribute we have read for them, so requests for
+     * different claims share it, and only the attributes the record does not
+     * have yet are read from AD
+     *
+     * @param userName
+     * @param propertyNames
+     * @return
+     * @throws UserStoreException
+     */
+    @SuppressFBWarnings({"DM_CONVERT_CASE", "DM_DEFAULT_ENCODING"})//justification: usage is correct
+    Map<String, String> getUserPropertyValuesInternal(String userName, String[] propertyNames) throws UserStoreException {
+        String cacheKey = userName.toUpperCase();
+        if (isUnknownUser(cacheKey)) {
+            return new HashMap<>();
+        }
+        //concurrent requests for the same user share one lookup, a refresh
+        //reloads everything the record had
+        UserAttributeRecord userRecord = userPropertyCache.get(cacheKey,
+                key -> loadUserAttributeRecord(userName, propertyNames, userPropertyCache.getQuietly(key)));
+        if (userRecord == null) {
+            return new HashMap<>();
+        }
+        String[] missingNames = userRecord.getMissingNames(propertyNames);
+        if (missingNames.length > 0) {
+            //the record keeps the deadline of its first load, so the values
+            //in it are never older than the cache expiration. If another
+            //request changed it in the meantime, ours are read again next time
+            UserAttributeRecord cachedRecord = userRecord;
+            userRecord = cachedRecord.merge(missingNames, loadUserPropertyValues(userName, missingNames));
+            userPropertyCache.replace(cacheKey, cachedRecord, userRecord);
+        }
+        return userRecord.select(propertyNames);
+    }
+
+    /**
+     * reads a new record for a user, with the names asked for and, when
+     * refreshing, everything the previous record had. The distinguished name
+     * is always read so change tracking can match the record to the user
+     *
+     * @param userName
+     * @param propertyNames
+     * @param previousRecord null unless this is a refresh
+     * @return null if AD does not have the user, who is then remembered in
+     * the unknown user cache instead
+     * @throws UserStoreException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private UserAttributeRecord loadUserAttributeRecord(String userName, String[] propertyNames, UserAttributeRecord previousRecord) throws UserStoreException {
+        String[] loadNames = getRecordLoadNames(propertyNames, previousRecord);
+        UserAttributeRecord userRecord = UserAttributeRecord.of(loadNames, loadUserPropertyValues(userName, loadNames));
+        //every user has a distinguished name, so if there is none the search found nobody
+        if (userRecord.get(DISTINGUISHED_NAME) == null) {
+            rememberUnknownUser(userName.toUpperCase());
+            return null;
+        }
+        return userRecord;
+    }
+
+    /**
+     * the names to read for a new record, the ones asked for, everything the
+     * previous record had and the distinguished name
+     *
+     * @param propertyNames
+     * @param previousRecord may be null
+     * @return
+     */
+    private static String[] getRecordLoadNames(String[] propertyNames, UserAttributeRecord previousRecord) {
+        Set<String> recordNames = new LinkedHashSet<>(Arrays.asList(propertyNames));
+        if (previousRecord != null) {
+            recordNames.addAll(Arrays.asList(previousRecord.getLoadedNames()));
+        }
+        recordNames.add(DISTINGUISHED_NAME);
+        return recordNames.toArray(new String[recordNames.size()]);
+    }
+
+    /**
+     * Does the work for getUserPropertyValuesInternal when the values are not
+     * cached, runs the compiled plan for the requested properties, reading
+     * the real ones and then making the virtual ones from them
+     *
+     * @param userName
+     * @param propertyNames
+     * @return
+     * @throws UserStoreException
+     */
+    private Map<String, String> loadUserPropertyValues(String userName, String[] propertyNames) throws UserStoreException {
+        ClaimRequestPlan plan = getClaimRequestPlan(propertyNames);
+        Map<String, String> returnValue;
+        //sub lookups on this thread borrow this same context
+        DirContext dirContext = domainControllers.borrow();
+
+        try {
+            //get the actual properties from AD
+            returnValue = readUserAttributes(userName, plan.attributeNames, plan.attributeCodecs, dirContext);
+            //mark up the returned values
+            addDomainNameClaims(plan, returnValue);
+            String userDistinguishedName = returnValue.get(DISTINGUISHED_NAME);
+            if (plan.needTokenGroups && userDistinguishedName != null) {
+                TokenGroupSet userTokenGroups = getUsersTokenGroups(userDistinguishedName, dirContext);
+                addTokenGroupClaims(plan, returnValue, getTokenGroupClaims(userTokenGroups, plan.tokenGroupFormats));
+            }
+
+        } finally {
+            domainControllers.release(dirContext);
+        }
+        return returnValue;
+    }
+
+    /**
+     * adds the domain name and qualified sAMAccountName claims the plan asks
+     * for, from the distinguished name in the values
+     *
+     * @param plan
+     * @param returnValue
+     */
+    private void addDomainNameClaims(ClaimRequestPlan plan, Map<String, String> returnValue) {
+        if (!plan.needDomainNames) {
+            return;
+        }
+        String distinguishedName = returnValue.get(DISTINGUISHED_NAME);
+        if (plan.addFullyQualifiedDomainName || plan.returnSamAccountNameQualifiedWithLongDomainName) {
+            String domainName = getDomainNameFromDistinguishedName(distinguishedName, true);
+            if (plan.addFullyQualifiedDomainName) {
+                returnValue.put(LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, domainName);
+            }
+            if (plan.returnSamAccountNameQualifiedWithLongDomainName) {
+                String samAccountName = domainName + "\\" + returnValue.get(SAM_ACCOUNT_NAME);
+                returnValue.put(SAM_ACCOUNT_NAME_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
+            }
+        }
+        if (plan.addNetBIOSDomainName || plan.returnSamAccountNameQualifiedWithDomainName) {
+            String netBIOSName = getDomainNameFromDistinguishedName(distinguishedName, false);
+            if (plan.addNetBIOSDomainName) {
+                returnValue.put(DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, netBIOSName);
+            }
+            if (plan.returnSamAccountNameQualifiedWithDomainName) {
+                String samAccountName = netBIOSName + "\\" + returnValue.get(SAM_ACCOUNT_NAME);
+                returnValue.put(SAM_ACCOUNT_NAME_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
+            }
+        }
+    }
+
+    /**
+     * adds the token group claims the plan asks for
+     *
+     * @param plan
+     * @param returnValue
+     * @param tokenGroupClaims from getTokenGroupClaims, indexed by
+     * TokenGroupFormat
+     */
+    private void addTokenGroupClaims(ClaimRequestPlan plan, Map<String, String> returnValue, String[] tokenGroupClaims) {
+        if (plan.returnTokenGroupsAsSids) {
+            returnValue.put(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, tokenGroupClaims[TokenGroupFormat.SIDS.ordinal()]);
+        }
+        if (plan.returnTokenGroupsAsTokenGroups) {
+            returnValue.put(TOKEN_GROUPS, tokenGroupClaims[TokenGroupFormat.SIDS.ordinal()]);
+        }
+        if (plan.returnTokenGroupsAsUnqualifiedName) {
+            returnValue.put(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME, tokenGroupClaims[TokenGroupFormat.UNQUALIFIED_NAMES.ordinal()]);
+        }
+        if (plan.returnTokenGroupsQualifiedWithLongDomainName) {
+            returnValue.put(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME,
+                    tokenGroupClaims[TokenGroupFormat.QUALIFIED_BY_LONG_DOMAIN_NAME.ordinal()]);
+        }
+        if (plan.returnTokenGroupsQualifiedWithDomainName) {
+            returnValue.put(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME,
+                    tokenGroupClaims[TokenGroupFormat.QUALIFIED_BY_DOMAIN_NAME.ordinal()]);
+        }
+    }
+
+    /**
+     * This method is a variation of the ReadOnlyLDAPUserStoreManager and
+     * adjusted to more accurately reflect the requirements for Microsoft Azure
+     * Directories and Office 365 for Eduction implementations where the
+     * ObjectGUID attribute is base64 encoded "as is" and not treated as little
+     * endian We also provide support for "tokenGroups" as sid strings in the
+     * same format as ADFS
+     *
+     * @param userName
+     * @param propertyNames
+     * @param dirContext
+     * @return
+     * @throws UserStoreException
+     */
+    Map<String, String> getUserPropertyValuesInternal(String userName, String[] propertyNames, DirContext dirContext) throws UserStoreException {
+        AttributeCodec[] attributeCodecs = new AttributeCodec[propertyNames.length];
+        for (int i = 0; i < propertyNames.length; i++) {
+            attributeCodecs[i] = AttributeCodec.forAttribute(propertyNames[i]);
+        }
+        return readUserAttributes(userName, propertyNames, attributeCodecs, dirContext);
+    }
+
+    /**
+     * reads real attributes for a user, each value is turned into a string by
+     * the codec at the same position as its name
+     *
+     * @param userName
+     * @param propertyNames
+     * @param attributeCodecs
+     * @param dirContext
+     * @return
+     * @throws UserStoreException
+     */
+    private Map<String, String> readUserAttributes(String userName, String[] propertyNames, AttributeCodec[] attributeCodecs,
+            DirContext dirContext) throws UserStoreException {
+
+        Map<String, String> returnValue = new HashMap<>();
+        userName = removeDomainFromName(userName);
+
+        String searchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
+
+        NamingEnumeration<?> userAnswer = null;
+        try {
+
+            long searchStart = System.nanoTime();
+            userAnswer = this.searchForUser(searchFilter, propertyNames, dirContext);
+            while (userAnswer.hasMoreElements()) {
+                SearchResult userResult = (SearchResult) userAnswer.next();
+                decodeUserAttributes(userResult.getAttributes(), propertyNames, attributeCodecs, returnValue);
+            }
+            domainControllers.recordOperation(dirContext, searchStart);
+
+        } catch (NamingException e) {
+            reportDirectoryError(dirContext, e);
+            String errorMessage = "Error occurred while getting user property values for user : " + userName;
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug(errorMessage, e);
+            }
+            throw new UserStoreException(errorMessage, e);
+        } finally {
+            // close the naming enumeration and free up resources
+            JNDIUtil.closeNamingEnumeration(userAnswer);
+
+        }
+        return returnValue;
+    }
+
+    /**
+     * turns the attributes of one search result into strings, each value is
+     * turned into a string by the codec at the same position as its name and
+     * multiple values are joined with the MultiAttributeSeparator
+     *
+     * @param userAttributes may be null
+     * @param propertyNames
+     * @param attributeCodecs
+     * @param returnValue the values are added to this
+     * @throws NamingException
+     */
+    private void decodeUserAttributes(Attributes userAttributes, String[] propertyNames, AttributeCodec[] attributeCodecs,
+            Map<String, String> returnValue) throws NamingException {
+        if (userAttributes == null) {
+            return;
+        }
+        String userAttributeSeparator = ",";
+        if (multiValueAttributeSeparator != null && !multiValueAttributeSeparator.trim().isEmpty()) {
+            userAttributeSeparator = multiValueAttributeSeparator;
+        }
+        for (int propertyIndex = 0; propertyIndex < propertyNames.length; propertyIndex++) {
+            String propertyName = propertyNames[propertyIndex];
+            if (propertyName != null) {
+                Attribute userAttribute = userAttributes.get(propertyName);
+                if (userAttribute != null) {
+                    StringBuilder attrBuffer = new StringBuilder();
+                    NamingEnumeration<?> attributeValues = null;
+                    try {
+                        for (attributeValues = userAttribute.getAll(); attributeValues.hasMore();) {
+                            Object attObject = attributeValues.next();
+                            String attributeValue = attributeCodecs[propertyIndex].decode(attObject);
+                            if (attributeValue != null && attributeValue.trim().length() > 0) {
+                                attrBuffer.append(attributeValue).append(userAttributeSeparator);
+                            }
+                        }
+                    } finally {
+                        JNDIUtil.closeNamingEnumeration(attributeValues);
+                    }
+                    String responseValue = attrBuffer.toString();
+
+                    /*
+                     * Length needs to be more than userAttributeSeparator.length() for a valid
+                     * attribute, since we
+                     * attach userAttributeSeparator
+                     */
+                    if (responseValue.trim().length() > userAttributeSeparator.length()) {
+                        responseValue = responseValue.substring(0, responseValue.length() - userAttributeSeparator.length());
+                        returnValue.put(propertyName, responseValue);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * if a user or role name contains domain name, remove domain name
+     *
+     * @param name
+     * @return
+     */
+    private static String removeDomainFromName(String name) {
+        String[] names = name.split(CarbonConstants.DOMAIN_SEPARATOR);
+        if (names.length > 1) {
+            return names[1];
+        }
+        return name;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="getUserPropertyValuesAsync">
+    /**
+     * LDAP work that needs a context, run on the async executor
+     */
+    private interface DirectoryWork<T> {
+
+        T run(DirContext dirContext) throws UserStoreException;
+    }
+
+    /**
+     * The same values as getUserPropertyValuesInternal, without holding the
+     * calling thread while AD is read. The user search, the token groups read
+     * and the group name lookups run on our own executor, and when we already
+     * know the users distinguished name the token groups are read at the same
+     * time as the user search. Domain names are worked out alongside the
+     * token groups. Cached values complete the future right away. Unlike the
+     * blocking call, concurrent requests for the same user do not share one
+     * lookup
+     *
+     * @param userName
+     * @param propertyNames
+     * @return the values, or a failure with the UserStoreException as its
+     * cause
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    public CompletableFuture<Map<String, String>> getUserPropertyValuesAsync(String userName, String[] propertyNames) {
+        String cacheKey = userName.toUpperCase();
+        if (isUnknownUser(cacheKey)) {
+            return CompletableFuture.completedFuture(new HashMap<>());
+        }
+        UserAttributeRecord cachedRecord = userPropertyCache.get(cacheKey);
+        String[] loadNames = cachedRecord == null ? getRecordLoadNames(propertyNames, null) : cachedRecord.getMissingNames(propertyNames);
+        if (loadNames.length == 0) {
+            return CompletableFuture.completedFuture(cachedRecord.select(propertyNames));
+        }
+        return loadUserPropertyValuesAsync(userName, loadNames).thenApply(loadedValues -> {
+            UserAttributeRecord userRecord;
+            if (cachedRecord != null) {
+                //keeps the deadline of the record we added to
+                userRecord = cachedRecord.merge(loadNames, loadedValues);
+                userPropertyCache.replace(cacheKey, cachedRecord, userRecord);
+            } else {
+                userRecord = UserAttributeRecord.of(loadNames, loadedValues);
+                if (userRecord.get(DISTINGUISHED_NAME) == null) {
+                    rememberUnknownUser(cacheKey);
+                    return new HashMap<>();
+                }
+                userPropertyCache.put(cacheKey, userRecord);
+            }
+            return userRecord.select(propertyNames);
+        });
+    }
+
+    /**
+     * loadUserPropertyValues as a pipeline of futures, each step borrows a
+     * context of its own since they run on different threads
+     *
+     * @param userName
+     * @param propertyNames
+     * @return
+     */
+    private CompletableFuture<Map<String, String>> loadUserPropertyValuesAsync(String userName, String[] propertyNames) {
+        ClaimRequestPlan plan;
+        try {
+            plan = getClaimRequestPlan(propertyNames);
+        } catch (RuntimeException planError) {
+            CompletableFuture<Map<String, String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(planError);
+            return failed;
+        }
+        CompletableFuture<Map<String, String>> userValues = CompletableFuture.supplyAsync(
+                () -> runDirectoryWork(dirContext -> readUserAttributes(userName, plan.attributeNames, plan.attributeCodecs, dirContext)),
+                asyncLookupExecutor);
+        CompletableFuture<Map<String, String>> markedUpValues = userValues.thenApplyAsync(returnValue -> {
+            addDomainNameClaims(plan, returnValue);
+            return returnValue;
+        }, asyncLookupExecutor);
+        if (!plan.needTokenGroups) {
+            return markedUpValues;
+        }
+        //a user we have seen does not need the search to finish first
+        String knownDistinguishedName = userNameUserDistinguishedNameCache.get(userName);
+        CompletableFuture<String> userDistinguishedName = knownDistinguishedName != null
+                ? CompletableFuture.completedFuture(knownDistinguishedName)
+                : userValues.thenApply(returnValue -> returnValue.get(DISTINGUISHED_NAME));
+        CompletableFuture<String[]> tokenGroupClaims = userDistinguishedName.thenApplyAsync(
+                distinguishedName -> distinguishedName == null ? null : runDirectoryWork(dirContext -> getTokenGroupClaims(
+                getUsersTokenGroups(distinguishedName, dirContext), plan.tokenGroupFormats)), asyncLookupExecutor);
+        return markedUpValues.thenCombine(tokenGroupClaims, (returnValue, userTokenGroupClaims) -> {
+            String returnedDistinguishedName = returnValue.get(DISTINGUISHED_NAME);
+            if (returnedDistinguishedName == null) {
+                return returnValue;
+            }
+            if (!returnedDistinguishedName.equals(knownDistinguishedName) && knownDistinguishedName != null) {
+                //the user moved since we cached the name, read them again
+                userTokenGroupClaims = runDirectoryWork(dirContext -> getTokenGroupClaims(
+                        getUsersTokenGroups(returnedDistinguishedName, dirContext), plan.tokenGroupFormats));
+            }
+            if (userTokenGroupClaims != null) {
+                addTokenGroupClaims(plan, returnValue, userTokenGroupClaims);
+            }
+            return returnValue;
+        });
+    }
+
+    /**
+     * runs work on a borrowed context, for use inside a future
+     *
+     * @param work
+     * @return
+     * @throws CompletionException wrapping a UserStoreException
+     */
+    private <T> T runDirectoryWork(DirectoryWork<T> work) {
+        DirContext dirContext = null;
+        try {
+            dirContext = domainControllers.borrow();
+            return work.run(dirContext);
+        } catch (UserStoreException workError) {
+            throw new CompletionException(workError);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="getUserPropertyValuesBatch">
+    /**
+     * getUserPropertyValuesInternal for many users at once. The users are
+     * found with one search for every UserBatchSize of them, by OR'ing their
+     * userSearchFilter, and the names of all of their groups are looked up
+     * together, so each group is looked up once however many of the users
+     * are in it. The results go into the same caches as single user lookups.
+     * A user the search does not return under their user name attribute is
+     * looked up on their own, so nobody is reported missing because of how
+     * the filter is written
+     *
+     * @param userNames
+     * @param propertyNames
+     * @return the values for each user name, in the order given, empty for
+     * users AD does not have
+     * @throws UserStoreException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    public Map<String, Map<String, String>> getUserPropertyValuesBatch(List<String> userNames, String[] propertyNames) throws UserStoreException {
+        Map<String, Map<String, String>> returnValue = new LinkedHashMap<>();
+        //upper case user name without the domain -> the user names asked for
+        Map<String, List<String>> pendingUsers = new LinkedHashMap<>();
+        for (String userName : userNames) {
+            if (returnValue.containsKey(userName)) {
+                continue;
+            }
+            String cacheKey = userName.toUpperCase();
+            if (isUnknownUser(cacheKey)) {
+                returnValue.put(userName, new HashMap<>());
+                continue;
+            }
+            UserAttributeRecord cachedRecord = userPropertyCache.get(cacheKey);
+            if (cachedRecord != null && cachedRecord.getMissingNames(propertyNames).length == 0) {
+                returnValue.put(userName, cachedRecord.select(propertyNames));
+            } else {
+                //holds the place so the order is kept
+                returnValue.put(userName, null);
+                pendingUsers.computeIfAbsent(removeDomainFromName(userName).toUpperCase(), key -> new ArrayList<>()).add(userName);
+            }
+        }
+        if (pendingUsers.isEmpty()) {
+            return returnValue;
+        }
+        String[] loadNames = getRecordLoadNames(propertyNames, null);
+        Map<String, Map<String, String>> loadedUsers = loadUserPropertyValuesBatch(pendingUsers.keySet(), getClaimRequestPlan(loadNames));
+        for (Map.Entry<String, List<String>> pendingUser : pendingUsers.entrySet()) {
+            Map<String, String> loadedValues = loadedUsers.get(pendingUser.getKey());
+            for (String userName : pendingUser.getValue()) {
+                if (loadedValues == null) {
+                    returnValue.put(userName, getUserPropertyValuesInternal(userName, propertyNames));
+                    continue;
+                }
+                String cacheKey = userName.toUpperCase();
+                UserAttributeRecord previousRecord = userPropertyCache.getQuietly(cacheKey);
+                UserAttributeRecord userRecord = previousRecord == null ? null : previousRecord.merge(loadNames, loadedValues);
+                //a merged record keeps the deadline of the one it added to,
+                //otherwise what we just read starts a record of its own
+                if (userRecord == null || !userPropertyCache.replace(cacheKey, previousRecord, userRecord)) {
+                    userRecord = UserAttributeRecord.of(loadNames, loadedValues);
+                    userPropertyCache.put(cacheKey, userRecord);
+                }
+                userNameUserDistinguishedNameCache.put(userName, loadedValues.get(DISTINGUISHED_NAME));
+                returnValue.put(userName, userRecord.select(propertyNames));
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * loadUserPropertyValues for many users, on one context
+     *
+     * @param searchNames upper case user names without the domain
+     * @param plan
+     * @return the values of the users the searches returned, by upper case
+     * user name. Only users with a distinguished name are included
+     * @throws UserStoreException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private Map<String, Map<String, String>> loadUserPropertyValuesBatch(Collection<String> searchNames, ClaimRequestPlan plan) throws UserStoreException {
+        Map<String, Map<String, String>> returnValue = new HashMap<>();
+        if (userNameAttributeName == null || userNameAttributeName.trim().isEmpty()) {
+            //we cannot tell the results apart, they are looked up one by one
+            return returnValue;
+        }
+        Set<String> returnedNames = new LinkedHashSet<>(Arrays.asList(plan.attributeNames));
+        returnedNames.add(userNameAttributeName);
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(returnedNames.toArray(new String[returnedNames.size()]));
+        DirContext dirContext = domainControllers.borrow();
+        try {
+            List<String> pendingNames = new ArrayList<>(searchNames);
+            for (int batchStart = 0; batchStart < pendingNames.size(); batchStart += userBatchSize) {
+                List<String> nameBatch = pendingNames.subList(batchStart, Math.min(pendingNames.size(), batchStart + userBatchSize));
+                Set<String> batchNames = new HashSet<>(nameBatch);
+                StringBuilder usersSearchFilter = new StringBuilder("(|");
+                for (String searchName : nameBatch) {
+                    usersSearchFilter.append(userSearchFilter.replace("?", escapeSpecialCharactersForFilter(searchName)));
+                }
+                usersSearchFilter.append(")");
+                LdapPagedSearch.search(dirContext, userSearchBasePath, usersSearchFilter.toString(), searchCtls, ldapPageSize, userResult -> {
+                    Attributes userAttributes = userResult.getAttributes();
+                    Attribute userNameAttribute = userAttributes == null ? null : userAttributes.get(userNameAttributeName);
+                    String userName = userNameAttribute == null ? null : ((String) userNameAttribute.get()).toUpperCase();
+                    if (userName != null && batchNames.contains(userName)) {
+                        Map<String, String> userValues = new HashMap<>();
+                        decodeUserAttributes(userAttributes, plan.attributeNames, plan.attributeCodecs, userValues);
+                        if (userValues.get(DISTINGUISHED_NAME) != null) {
+                            returnValue.put(userName, userValues);
+                        }
+                    }
+                    return true;
+                });
+            }
+            addVirtualClaims(returnValue.values(), plan, true, dirContext);
+        } catch (NamingException searchError) {
+            reportDirectoryError(dirContext, searchError);
+            String errorMessage = "Error occurred while getting user property values for " + searchNames.size() + " users";
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug(errorMessage, searchError);
+            }
+            throw new UserStoreException(errorMessage, searchError);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+        return returnValue;
+    }
+
+    /**
+     * adds the domain name and token group claims to the values of several
+     * users. The names of all of their groups are looked up together, so each
+     * group is looked up once however many of the users are in it
+     *
+     * @param usersValues the real attributes of each user, with their
+     * distinguished name
+     * @param plan
+     * @param cacheTokenGroups false to read the token groups without putting
+     * them in the user cache
+     * @param dirContext
+     * @throws UserStoreException
+     */
+    private void addVirtualClaims(Collection<Map<String, String>> usersValues, ClaimRequestPlan plan, boolean cacheTokenGroups,
+            DirContext dirContext) throws UserStoreException {
+        for (Map<String, String> userValues : usersValues) {
+            addDomainNameClaims(plan, userValues);
+        }
+        if (!plan.needTokenGroups) {
+            return;
+        }
+        Map<Map<String, String>, TokenGroupSet> userTokenGroups = new IdentityHashMap<>();
+        Set<SecurityIdentifier> allGroupSids = new LinkedHashSet<>();
+        for (Map<String, String> userValues : usersValues) {
+            String userDistinguishedName = userValues.get(DISTINGUISHED_NAME);
+            if (userDistinguishedName != null) {
+                TokenGroupSet tokenGroupSet = cacheTokenGroups ? getUsersTokenGroups(userDistinguishedName, dirContext)
+                        : readUsersTokenGroups(userDistinguishedName, dirContext);
+                if (tokenGroupSet == null) {
+                    tokenGroupSet = TokenGroupSet.NONE;
+                }
+                userTokenGroups.put(userValues, tokenGroupSet);
+                allGroupSids.addAll(tokenGroupSet.groupSids);
+            }
+        }
+        //one lookup for every group, the claims below then find them all in
+        //the cache
+        getNamesForTokenGroups(new ArrayList<>(allGroupSids));
+        for (Map.Entry<Map<String, String>, TokenGroupSet> userGroups : userTokenGroups.entrySet()) {
+            addTokenGroupClaims(plan, userGroups.getKey(), getTokenGroupClaims(userGroups.getValue(), plan.tokenGroupFormats));
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="exportUserClaims">
+    /**
+     * receives the claims of each user from exportUserClaims
+     */
+    public interface UserClaimsHandler {
+
+        /**
+         * handles one user
+         *
+         * @param userName the value of the UserNameAttribute
+         * @param claims the same values getUserPropertyValues returns
+         * @return false to stop the export
+         */
+        boolean handle(String userName, Map<String, String> claims);
+    }
+
+    /**
+     * works out the claims of every user under the user search base, for
+     * reconciling the whole directory with Office 365 and the like. The users
+     * are read with a paged search and handed to the handler UserBatchSize at
+     * a time, so memory does not grow with the size of the directory. The
+     * values are decoded the same way getUserPropertyValues decodes them,
+     * group names come from the shared group cache, and the user caches are
+     * left alone so the export does not push out the users who are logging
+     * in
+     *
+     * @param propertyNames
+     * @param handler called on this thread
+     * @return the number of users handed to the handler
+     * @throws UserStoreException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    public long exportUserClaims(String[] propertyNames, UserClaimsHandler handler) throws UserStoreException {
+        String userListFilter = getUserListFilter();
+        ClaimRequestPlan plan = getClaimRequestPlan(getRecordLoadNames(propertyNames, null));
+        Set<String> returnedNames = new LinkedHashSet<>(Arrays.asList(plan.attributeNames));
+        if (userNameAttributeName != null) {
+            returnedNames.add(userNameAttributeName);
+        }
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(returnedNames.toArray(new String[returnedNames.size()]));
+        //user name and values of the users waiting for their virtual claims,
+        //a forest can have the same user name in more than one domain
+        List<Map.Entry<String, Map<String, String>>> pendingUsers = new ArrayList<>();
+        AtomicLong exportedCount = new AtomicLong();
+        AtomicBoolean stopped = new AtomicBoolean();
+        UserStoreException[] batchError = new UserStoreException[1];
+        DirContext dirContext = domainControllers.borrow();
+        try {
+            LdapPagedSearch.search(dirContext, userSearchBasePath, userListFilter, searchCtls, ldapPageSize, userResult -> {
+                Attributes userAttributes = userResult.getAttributes();
+                Map<String, String> userValues = new HashMap<>();
+                decodeUserAttributes(userAttributes, plan.attributeNames, plan.attributeCodecs, userValues);
+                Attribute userNameAttribute = userAttributes == null || userNameAttributeName == null ? null : userAttributes.get(userNameAttributeName);
+                String userName = userNameAttribute == null ? userValues.get(DISTINGUISHED_NAME) : (String) userNameAttribute.get();
+                if (userName == null) {
+                    return true;
+                }
+                pendingUsers.add(new AbstractMap.SimpleImmutableEntry<>(userName, userValues));
+                if (pendingUsers.size() < userBatchSize) {
+                    return true;
+                }
+                try {
+                    exportUserBatch(pendingUsers, propertyNames, plan, handler, exportedCount, stopped, dirContext);
+                } catch (UserStoreException exportError) {
+                    batchError[0] = exportError;
+                    return false;
+                }
+                return !stopped.get();
+            });
+            if (batchError[0] != null) {
+                throw batchError[0];
+            }
+            exportUserBatch(pendingUsers, propertyNames, plan, handler, exportedCount, stopped, dirContext);
+        } catch (NamingException searchError) {
+            reportDirectoryError(dirContext, searchError);
+            String errorMessage = "Error occurred exporting user claims after " + exportedCount.get() + " users";
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug(errorMessage, searchError);
+            }
+            throw new UserStoreException(errorMessage, searchError);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+        return exportedCount.get();
+    }
+
+    /**
+     * the UserNameListFilter, or every person if there is none
+     *
+     * @return
+     */
+    private String getUserListFilter() {
+        String returnValue = realmConfig.getUserStoreProperty(LDAPConstants.USER_NAME_LIST_FILTER);
+        if (returnValue == null || returnValue.trim().isEmpty()) {
+            returnValue = DEFAULT_USER_LIST_FILTER;
+        }
+        return returnValue;
+    }
+
+    /**
+     * adds the virtual claims to the pending users and hands them to the
+     * handler, then forgets them
+     */
+    private void exportUserBatch(List<Map.Entry<String, Map<String, String>>> pendingUsers, String[] propertyNames, ClaimRequestPlan plan,
+            UserClaimsHandler handler, AtomicLong exportedCount, AtomicBoolean stopped, DirContext dirContext) throws UserStoreException {
+        if (pendingUsers.isEmpty() || stopped.get()) {
+            return;
+        }
+        List<Map<String, String>> usersValues = new ArrayList<>(pendingUsers.size());
+        for (Map.Entry<String, Map<String, String>> pendingUser : pendingUsers) {
+            usersValues.add(pendingUser.getValue());
+        }
+        addVirtualClaims(usersValues, plan, false, dirContext);
+        for (Map.Entry<String, Map<String, String>> pendingUser : pendingUsers) {
+            //the same selection and naming a cached record would give
+            Map<String, String> claims = UserAttributeRecord.of(propertyNames, pendingUser.getValue()).select(propertyNames);
+            exportedCount.incrementAndGet();
+            if (!handler.handle(pendingUser.getKey(), claims)) {
+                stopped.set(true);
+                break;
+            }
+        }
+        pendingUsers.clear();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="claim request plans">
+    /**
+     * turns a binary attribute value into the string we return for it
+     */
+    @SuppressFBWarnings("DM_DEFAULT_ENCODING")//justification: base64 is ascii
+    private enum AttributeCodec {
+        //base64 encoded "as is", this is also how objectGUID is returned, to be
+        //compatible with the AzureDirectorySync default configuration
+        //(patching CARBON-16026, which treated it as a little-endian UUID)
+        BASE64 {
+            @Override
+            String decodeBytes(byte[] attributeBytes) {
+                return new String(Base64.encodeBase64(attributeBytes));
+            }
+        },
+        //canonical representation of other UUIDs
+        UUID {
+            @Override
+            String decodeBytes(byte[] attributeBytes) {
+                if (attributeBytes.length != 16) {
+                    return BASE64.decodeBytes(attributeBytes);
+                }
+                final java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(attributeBytes);
+                return new java.util.UUID(bb.getLong(), bb.getLong()).toString();
+            }
+        },
+        //the Microsoft format of the sid string
+        //https://technet.microsoft.com/en-us/library/cc962011.aspx
+        SID {
+            @Override
+            String decodeBytes(byte[] attributeBytes) {
+                return convertSidToStr(attributeBytes);
+            }
+        };
+
+        abstract String decodeBytes(byte[] attributeBytes);
+
+        /**
+         * the string for a value as JNDI returns it
+         *
+         * @param attributeValue
+         * @return null if it is neither a string nor binary
+         */
+        String decode(Object attributeValue) {
+            if (attributeValue instanceof String) {
+                return (String) attributeValue;
+            }
+            if (attributeValue instanceof byte[]) {
+                return decodeBytes((byte[]) attributeValue);
+            }
+            return null;
+        }
+
+        /**
+         * picks the codec from the attribute name, ignoring case
+         *
+         * @param attributeName
+         * @return
+         */
+        static AttributeCodec forAttribute(String attributeName) {
+            String normalName = attributeName == null ? "" : attributeName.toUpperCase(Locale.ENGLISH);
+            if (normalName.equals("OBJECTGUID")) {
+                return BASE64;
+            }
+            if (normalName.endsWith("UID")) {
+                return UUID;
+            }
+            if (normalName.equals("OBJECTSID")) {
+                return SID;
+            }
+            return BASE64;
+        }
+    }
+
+    /**
+     * what it takes to answer one list of requested properties: the real
+     * attributes to read and how to decode them, and which virtual
+     * properties to make from them. Immutable, so it is shared by every
+     * request for the same list
+     */
+    private static final class ClaimRequestPlan {
+
+        final String[] attributeNames;
+        final AttributeCodec[] attributeCodecs;
+        final boolean needTokenGroups;
+        final boolean needDomainNames;
+        final boolean returnTokenGroupsAsTokenGroups;
+        final boolean returnTokenGroupsAsSids;
+        final boolean returnTokenGroupsQualifiedWithDomainName;
+        final boolean returnTokenGroupsQualifiedWithLongDomainName;
+        final boolean returnTokenGroupsAsUnqualifiedName;
+        final boolean returnSamAccountNameQualifiedWithDomainName;
+        final boolean returnSamAccountNameQualifiedWithLongDomainName;
+        final boolean addFullyQualifiedDomainName;
+        final boolean addNetBIOSDomainName;
+        final Set<TokenGroupFormat> tokenGroupFormats;
+
+        ClaimRequestPlan(String[] propertyNames, String tokenGroupAttributeName) {
+            List<String> propList = new ArrayList<>();
+            //check for tokengroups and remove it, it will cause a deap search to fail
+            //so we will get it later if we need it
+            //this is becasue we need a different search path
+            boolean needSamAccountName = false;
+            boolean hasSamAccountName = false;
+            boolean hasDistinguishedName = false;
+            boolean tokenGroupsAsTokenGroups = false;
+            boolean tokenGroupsAsSids = false;
+            boolean tokenGroupsQualifiedWithDomainName = false;
+            boolean tokenGroupsQualifiedWithLongDomainName = false;
+            boolean tokenGroupsAsUnqualifiedName = false;
+            boolean samAccountNameQualifiedWithDomainName = false;
+            boolean samAccountNameQualifiedWithLongDomainName = false;
+            boolean fullyQualifiedDomainName = false;
+            boolean netBIOSDomainName = false;
+            //evaluate the properties and see if we have to process
+            //any of the virtual ones
+            for (String propertyName : propertyNames) {
+                if (propertyName.equalsIgnoreCase(DISTINGUISHED_NAME)) {
+                    hasDistinguishedName = true;
+                }
+                if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME)) {
+                    hasSamAccountName = true;
+                }
+                if (propertyName.equalsIgnoreCase(tokenGroupAttributeName)) {
+                    tokenGroupsAsTokenGroups = true;
+                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME)) {
+                    tokenGroupsAsSids = true;
+                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    tokenGroupsQualifiedWithDomainName = true;
+                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    tokenGroupsQualifiedWithLongDomainName = true;
+                } else if (propertyName.equalsIgnoreCase(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    tokenGroupsAsUnqualifiedName = true;
+                } else if (propertyName.equalsIgnoreCase(LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    fullyQualifiedDomainName = true;
+                } else if (propertyName.equalsIgnoreCase(DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    netBIOSDomainName = true;
+                } else if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    needSamAccountName = true;
+                    samAccountNameQualifiedWithDomainName = true;
+                } else if (propertyName.equalsIgnoreCase(SAM_ACCOUNT_NAME_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME)) {
+                    needSamAccountName = true;
+                    samAccountNameQualifiedWithLongDomainName = true;
+                } else {
+                    propList.add(propertyName);
+                }
+            }
+            returnTokenGroupsAsTokenGroups = tokenGroupsAsTokenGroups;
+            returnTokenGroupsAsSids = tokenGroupsAsSids;
+            returnTokenGroupsQualifiedWithDomainName = tokenGroupsQualifiedWithDomainName;
+            returnTokenGroupsQualifiedWithLongDomainName = tokenGroupsQualifiedWithLongDomainName;
+            returnTokenGroupsAsUnqualifiedName = tokenGroupsAsUnqualifiedName;
+            returnSamAccountNameQualifiedWithDomainName = samAccountNameQualifiedWithDomainName;
+            returnSamAccountNameQualifiedWithLongDomainName = samAccountNameQualifiedWithLongDomainName;
+            addFullyQualifiedDomainName = fullyQualifiedDomainName;
+            addNetBIOSDomainName = netBIOSDomainName;
+            needTokenGroups = tokenGroupsAsTokenGroups || tokenGroupsAsSids || tokenGroupsQualifiedWithDomainName
+                    || tokenGroupsQualifiedWithLongDomainName || tokenGroupsAsUnqualifiedName;
+            Set<TokenGroupFormat> formats = EnumSet.noneOf(TokenGroupFormat.class);
+            if (tokenGroupsAsTokenGroups || tokenGroupsAsSids) {
+                formats.add(TokenGroupFormat.SIDS);
+            }
+            if (tokenGroupsQualifiedWithDomainName) {
+                formats.add(TokenGroupFormat.QUALIFIED_BY_DOMAIN_NAME);
+            }
+            if (tokenGroupsQualifiedWithLongDomainName) {
+                formats.add(TokenGroupFormat.QUALIFIED_BY_LONG_DOMAIN_NAME);
+            }
+            if (tokenGroupsAsUnqualifiedName) {
+                formats.add(TokenGroupFormat.UNQUALIFIED_NAMES);
+            }
+            tokenGroupFormats = Collections.unmodifiableSet(formats);
+            needDomainNames = fullyQualifiedDomainName || netBIOSDomainName
+                    || samAccountNameQualifiedWithDomainName || samAccountNameQualifiedWithLongDomainName;
+            if ((needTokenGroups || needDomainNames) && !hasDistinguishedName) {
+                propList.add(DISTINGUISHED_NAME);
+            }
+            if (needSamAccountName && !hasSamAccountName) {
+                propList.add(SAM_ACCOUNT_NAME);
+            }
+            attributeNames = propList.toArray(new String[propList.size()]);
+            attributeCodecs = new AttributeCodec[attributeNames.length];
+            for (int i = 0; i < attributeNames.length; i++) {
+                attributeCodecs[i] = AttributeCodec.forAttribute(attributeNames[i]);
+            }
+        }
+    }
+
+    /**
+     * the plan for a list of requested properties, compiled the first time
+     * we see the list and then shared. Lists are matched by their contents
+     *
+     * @param propertyNames
+     * @return
+     */
+    private ClaimRequestPlan getClaimRequestPlan(String[] propertyNames) {
+        ClaimRequestPlan plan = claimRequestPlans.get(Arrays.asList(propertyNames));
+        if (plan == null) {
+            plan = new ClaimRequestPlan(propertyNames, tokenGroupAttributeName);
+            //past the limit someone is sending us lists we will not see again
+            if (claimRequestPlans.size() < MAXIMUM_CLAIM_REQUEST_PLANS) {
+                claimRequestPlans.putIfAbsent(Arrays.asList(propertyNames.clone()), plan);
+            }
+        }
+        return plan;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="token group queries">
+    /**
+     * the ways we can return a user's token groups as one claim, and the
+     * group name each of them is made from
+     */
+    private enum TokenGroupFormat {
+        SIDS(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, 48),
+        QUALIFIED_BY_DOMAIN_NAME(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, 32),
+        QUALIFIED_BY_LONG_DOMAIN_NAME(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, 48),
+        UNQUALIFIED_NAMES(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME, 24);
+
+        final String groupNameKey;
+        //a rough length for one group, to size the builder
+        final int typicalLength;
+
+        TokenGroupFormat(String groupNameKey, int typicalLength) {
+            this.groupNameKey = groupNameKey;
+            this.typicalLength = typicalLength;
+        }
+    }
+
+    /**
+     * an immutable set of token groups, interned by content so every user in
+     * exactly the same groups shares one, along with the claim strings made
+     * from it so far. The SIDs are kept in SID order so the same groups in
+     * any order make the same set, and the set is the same in every JVM
+     */
+    private static final class TokenGroupSet {
+
+        static final TokenGroupSet NONE = new TokenGroupSet(new SecurityIdentifier[0]);
+        //what a cache entry holding a set weighs for it
+        static final long REFERENCE_WEIGHT = 8;
+
+        final List<SecurityIdentifier> groupSids;
+        private final SecurityIdentifier[] sortedSids;
+        private final int hash;
+        private volatile TokenGroupClaims claims;
+        //sorted GroupDictionary ids of the groups, for role checks
+        private volatile int[] groupIds;
+
+        private TokenGroupSet(SecurityIdentifier[] sortedSids) {
+            this.sortedSids = sortedSids;
+            this.groupSids = Collections.unmodifiableList(Arrays.asList(sortedSids));
+            this.hash = Arrays.hashCode(sortedSids);
+        }
+
+        /**
+         * a set of the SIDs, duplicates removed
+         *
+         * @param groupSids
+         * @return
+         */
+        static TokenGroupSet of(Collection<SecurityIdentifier> groupSids) {
+            SecurityIdentifier[] sortedSids = new LinkedHashSet<>(groupSids).toArray(new SecurityIdentifier[0]);
+            Arrays.sort(sortedSids);
+            return new TokenGroupSet(sortedSids);
+        }
+
+        /**
+         * rough retained size of the set and the claims built from it,
+         * counted once however many users share it
+         *
+         * @return
+         */
+        long estimateWeight() {
+            return 64 + sortedSids.length * (44 + 2L * (TokenGroupFormat.SIDS.typicalLength
+                    + TokenGroupFormat.QUALIFIED_BY_DOMAIN_NAME.typicalLength
+                    + TokenGroupFormat.QUALIFIED_BY_LONG_DOMAIN_NAME.typicalLength
+                    + TokenGroupFormat.UNQUALIFIED_NAMES.typicalLength));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof TokenGroupSet)) {
+                return false;
+            }
+            TokenGroupSet otherSet = (TokenGroupSet) other;
+            return hash == otherSet.hash && Arrays.equals(sortedSids, otherSet.sortedSids);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * the claim strings built for a token group set, indexed by
+     * TokenGroupFormat, and the group names generation they were built from
+     */
+    private static final class TokenGroupClaims {
+
+        final long generation;
+        final String[] values;
+
+        TokenGroupClaims(long generation, String[] values) {
+            this.generation = generation;
+            this.values = values;
+        }
+    }
+
+    /**
+     * gets token groups for a user
+     *
+     * @param userDistinguishedName
+     * @param dirContext
+     * @return
+     */
+    private TokenGroupSet getUsersTokenGroups(String userDistinguishedName, DirContext dirContext) {
+
+        //concurrent requests for the same user share one read, and the
+        //cached set is shared with every user in the same groups
+        TokenGroupSet returnValue = userDistinguishedNameTokenGroupsCache.get(userDistinguishedName,
+                key -> readUsersTokenGroups(key, dirContext));
+        if (returnValue == null) {
+            return TokenGroupSet.NONE;
+        }
+        return returnValue;
+    }
+
+    /**
+     * the canonical instance of a token group set
+     *
+     * @param tokenGroupSet
+     * @return
+     */
+    private TokenGroupSet internTokenGroupSet(TokenGroupSet tokenGroupSet) {
+        TokenGroupSet existing = tokenGroupSets.putIfAbsent(tokenGroupSet, tokenGroupSet);
+        return existing == null ? tokenGroupSet : existing;
+    }
+
+    /**
+     * forgets the interned sets that no cached user holds any more. A set
+     * interned but not yet cached may be forgotten too, then the next user
+     * with those groups makes another one, which is harmless. The sets that
+     * are left are weighed and the token group cache gets what is left of
+     * UserTokenGroupsCacheMaxBytes, so the entries and the sets they share
+     * stay inside it between purges
+     */
+    private void purgeTokenGroupSets() {
+        Set<TokenGroupSet> heldSets = Collections.newSetFromMap(new IdentityHashMap<>());
+        userDistinguishedNameTokenGroupsCache.forEach((userDistinguishedName, userTokenGroups) -> heldSets.add(userTokenGroups));
+        tokenGroupSets.values().removeIf(tokenGroupSet -> !heldSets.contains(tokenGroupSet));
+        long setsWeight = 0;
+        for (TokenGroupSet tokenGroupSet : tokenGroupSets.keySet()) {
+            setsWeight += tokenGroupSet.estimateWeight();
+        }
+        tokenGroupSetsWeight = setsWeight;
+        if (userTokenGroupsCacheMaxBytes > 0) {
+            //zero would mean no bound at all, one evicts everything and the
+            //sets go with the next purge
+            userDistinguishedNameTokenGroupsCache.setMaximumWeight(Math.max(1, userTokenGroupsCacheMaxBytes - setsWeight));
+        }
+    }
+
+    /**
+     * the token group claims of a user in the formats asked for, indexed by
+     * TokenGroupFormat. Formats already built for the set are reused, by
+     * this user or anyone else in the same groups, unless group names have
+     * changed since. The others are built together in one pass over the
+     * group names
+     *
+     * @param userTokenGroups
+     * @param formats
+     * @return
+     * @throws UserStoreException
+     */
+    private String[] getTokenGroupClaims(TokenGroupSet userTokenGroups, Set<TokenGroupFormat> formats) throws UserStoreException {
+        long generation = groupNamesGeneration.get();
+        TokenGroupClaims builtClaims = userTokenGroups.claims;
+        String[] tokenGroupClaims = builtClaims != null && builtClaims.generation == generation
+                ? builtClaims.values : new String[TokenGroupFormat.values().length];
+        Set<TokenGroupFormat> missingFormats = null;
+        for (TokenGroupFormat format : formats) {
+            if (tokenGroupClaims[format.ordinal()] == null) {
+                if (missingFormats == null) {
+                    missingFormats = EnumSet.noneOf(TokenGroupFormat.class);
+                }
+                missingFormats.add(format);
+            }
+        }
+        if (missingFormats == null) {
+            return tokenGroupClaims;
+        }
+        Map<SecurityIdentifier, Map<String, String>> nameMap = getNamesForTokenGroups(userTokenGroups.groupSids);
+        String[] newClaims = assembleTokenGroupClaims(nameMap, missingFormats);
+        //if another request built other formats meanwhile we may drop them,
+        //they are only built again
+        String[] mergedClaims = tokenGroupClaims.clone();
+        for (TokenGroupFormat format : missingFormats) {
+            mergedClaims[format.ordinal()] = newClaims[format.ordinal()];
+        }
+        if (userTokenGroups != TokenGroupSet.NONE) {
+            userTokenGroups.claims = new TokenGroupClaims(generation, mergedClaims);
+        }
+        return mergedClaims;
+    }
+
+    /**
+     * reads the token groups for a user from AD as the interned set of their
+     * SIDs, returns null if they could not be read so that nothing is cached.
+     * SIDs that cannot be parsed are skipped, they would never have matched a
+     * group anyway
+     *
+     * @param userDistinguishedName
+     * @param dirContext
+     * @return
+     */
+    private TokenGroupSet readUsersTokenGroups(String userDistinguishedName, DirContext dirContext) {
+        List<SecurityIdentifier> groupSids;
+        String userReturnedAtts[] = {tokenGroupAttributeName};
+        try {
+
+            long readStart = System.nanoTime();
+            Attributes userAttributes = dirContext.getAttributes(userDistinguishedName, userReturnedAtts);
+            domainControllers.recordOperation(dirContext, readStart);
+            groupSids = getTokenGroupSids(userAttributes);
+        } catch (NamingException attributeError) {
+            reportDirectoryError(dirContext, attributeError);
+            String errorMessage = "Problem getting tokenGroups by distinguished name: " + attributeError;
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug(errorMessage, attributeError);
+            }
+            return null;
+        }
+        TokenGroupSet returnValue = internTokenGroupSet(TokenGroupSet.of(groupSids));
+        //we have just read them, so the role index might as well have them
+        updateIndexedUserGroups(userDistinguishedName, returnValue.groupSids);
+        return returnValue;
+    }
+
+    /**
+     * the token group SIDs in a users attributes, SIDs that cannot be parsed
+     * are skipped
+     *
+     * @param userAttributes
+     * @return
+     * @throws NamingException
+     */
+    private List<SecurityIdentifier> getTokenGroupSids(Attributes userAttributes) throws NamingException {
+        List<SecurityIdentifier> returnValue = new ArrayList<>();
+        Attribute sidAttribute = userAttributes == null ? null : userAttributes.get(tokenGroupAttributeName);
+        //TODO: check to see if this namingenumeration needs to be closed or if enumerator does it
+        for (NamingEnumeration e = sidAttribute == null ? null : sidAttribute.getAll(); e != null && e.hasMore();) {
+            SecurityIdentifier groupSid = SecurityIdentifier.fromBytes((byte[]) e.next());
+            if (groupSid != null) {
+                returnValue.add(groupSid);
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * Looks up tokengroups (SIDs) and gets all name variations for them
+     * the cache is checked first for values and then the AD lookup routine is
+     * called. SIDs that another request is already looking up are not looked
+     * up again, we wait for that request instead
+     *
+     * @param tokenGroups
+     * @return
+     */
+    private Map<SecurityIdentifier, Map<String, String>> getNamesForTokenGroups(List<SecurityIdentifier> tokenGroups) throws UserStoreException {
+        return groupSidGroupNamesCache.getAll(tokenGroups, this::lookupNamesForTokenGroupBatches);
+    }
+
+    /**
+     * Looks up uncached tokengroups from AD in batches. The batches are spread
+     * over up to sidLookupParallelism workers, this thread being one of them,
+     * and each helper borrows a context of its own, since a context cannot be
+     * shared between threads and since this also runs in the background to
+     * refresh cached groups. This thread keeps using the request's context
+     *
+     * @param uncachedNames
+     * @return
+     * @throws UserStoreException
+     */
+    private Map<SecurityIdentifier, Map<String, String>> lookupNamesForTokenGroupBatches(List<SecurityIdentifier> uncachedNames) throws UserStoreException {
+        Map<SecurityIdentifier, Map<String, String>> returnValue = new ConcurrentHashMap<>();
+        //technically the limit to the size of the query we send to AD is 10MEG, however
+        //I have seen this randomly not work correctly in remote LDAP (over the internet)
+        //Likely it is something to do with slower connectivity. Regardless, we batch this
+        //up into smaller queries to avoid any issues with filter string length, the
+        //workers size each batch from how long the recent ones took
+        ConcurrentLinkedQueue<SecurityIdentifier> pendingNames = new ConcurrentLinkedQueue<>(uncachedNames);
+        int batchCount = (uncachedNames.size() + sidBatchSizer.batchSize() - 1) / sidBatchSizer.batchSize();
+        List<Future<?>> helpers = new ArrayList<>();
+        int helperCount = Math.min(sidLookupParallelism, batchCount) - 1;
+        for (int helper = 0; helper < helperCount; helper++) {
+            try {
+                helpers.add(sidLookupExecutor.submit(() -> {
+                    lookupNameBatches(pendingNames, returnValue);
+                    return null;
+                }));
+            } catch (RejectedExecutionException busy) {
+                //the pool is saturated, whatever is left we do ourselves
+                break;
+            }
+        }
+        try {
+            lookupNameBatches(pendingNames, returnValue);
+        } finally {
+            for (Future<?> helperDone : helpers) {
+                try {
+                    helperDone.get();
+                } catch (ExecutionException helperError) {
+                    //its batches were picked up by the other workers
+                    if (sysLogger.isDebugEnabled()) {
+                        sysLogger.debug("Problem in parallel group SID lookup", helperError.getCause());
+                    }
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new UserStoreException("Interrupted while looking up group SIDs", interrupted);
+                }
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * One worker of lookupNamesForTokenGroupBatches, takes batches of SIDs
+     * from the shared queue until it is empty, on the context its thread
+     * borrows from the pool
+     *
+     * @param pendingNames
+     * @param returnValue
+     * @throws UserStoreException
+     */
+    private void lookupNameBatches(Queue<SecurityIdentifier> pendingNames, Map<SecurityIdentifier, Map<String, String>> returnValue) throws UserStoreException {
+        if (pendingNames.isEmpty()) {
+            return;
+        }
+        DirContext dirContext = domainControllers.borrow();
+        try {
+            List<SecurityIdentifier> nameBatch = new ArrayList<>();
+            while (true) {
+                int batchSize = sidBatchSizer.batchSize();
+                SecurityIdentifier groupSid;
+                while (nameBatch.size() < batchSize && (groupSid = pendingNames.poll()) != null) {
+                    nameBatch.add(groupSid);
+                }
+                if (nameBatch.isEmpty()) {
+                    break;
+                }
+                long batchStart = System.nanoTime();
+                Map<SecurityIdentifier, Map<String, String>> nameMap = lookupNamesForTokenGroups(nameBatch, dirContext);
+                sidBatchSizer.record(nameBatch.size(), nameMap.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStart));
+                returnValue.putAll(nameMap);
+                nameBatch.clear();
+            }
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
+
+    /**
+     * Looks up tokengroups (SIDs) and gets all name variations for them
+     * from AD
+     *
+     * @param tokenGroups
+     * @param dirContext
+     * @return
+     */
+    private Map<SecurityIdentifier, Map<String, String>> lookupNamesForTokenGroups(List<SecurityIdentifier> tokenGroups, DirContext dirContext) {
+        Map<SecurityIdentifier, Map<String, String>> returnValue = new HashMap<>();
+        if (!tokenGroups.isEmpty()) {
+            //first build the search filter
+            StringBuilder groupsSearchFilter = new StringBuilder();
+            groupsSearchFilter.append("(|");
+            for (SecurityIdentifier groupSid : tokenGroups) {
+                groupsSearchFilter.append("(objectSid=");
+                groupSid.appendTo(groupsSearchFilter);
+                groupsSearchFilter.append(")");
+            }
+            groupsSearchFilter.append(")");
+            returnValue = lookupGroupNamesForSearchFilter(groupsSearchFilter.toString(), dirContext);
+        }
+        return returnValue;
+    }
+
+    /**
+     * Looks up group in AD information based on a search filter
+     *
+     * @param groupsSearchFilter
+     * @param dirContext
+     * @return
+     */
+    private Map<SecurityIdentifier, Map<String, String>> lookupGroupNamesForSearchFilter(String groupsSearchFilter, DirContext dirContext) {
+        Map<SecurityIdentifier, Map<String, String>> returnValue = new HashMap<>();
+        try {
+            long searchStart = System.nanoTime();
+            LdapPagedSearch.search(dirContext, groupSearchBasePath, groupsSearchFilter, createGroupSearchControls(), ldapPageSize, groupResult -> {
+                SecurityIdentifier groupSid = getObjectSid(groupResult);
+                Map<String, String> groupNames = buildGroupNames(groupResult, groupSid);
+                if (groupNames != null) {
+                    returnValue.put(groupSid, groupNames);
+                }
+                return true;
+            });
+            domainControllers.recordOperation(dirContext, searchStart);
+        } catch (NamingException searchError) {
+            reportDirectoryError(dirContext, searchError);
+            String errorMessage = "Problem finding groups by SID: " + searchError;
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug(errorMessage, searchError);
+            }
+        }
+
+        return returnValue;
+    }
+
+    /**
+     * search controls for a group search that returns what buildGroupNames
+     * needs
+     *
+     * @return
+     */
+    private SearchControls createGroupSearchControls() {
+        SearchControls groupsSearchCtls = new SearchControls();
+        groupsSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        String[] groupsReturnedAtts = new String[]{groupNameAttributeName, "objectSid"};
+        if (!groupNameAttributeName.equalsIgnoreCase(SAM_ACCOUNT_NAME)) {
+            groupsReturnedAtts = new String[]{groupNameAttributeName, "objectSid", SAM_ACCOUNT_NAME};
+        }
+        groupsSearchCtls.setReturningAttributes(groupsReturnedAtts);
+        return groupsSearchCtls;
+    }
+
+    /**
+     * reads the objectSid of a search result
+     *
+     * @param searchResult
+     * @return null if it has none or it is not valid
+     * @throws NamingException
+     */
+    private static SecurityIdentifier getObjectSid(SearchResult searchResult) throws NamingException {
+        Attributes searchAttributes = searchResult.getAttributes();
+        Attribute sidAttribute = searchAttributes == null ? null : searchAttributes.get("objectSid");
+        return sidAttribute == null ? null : SecurityIdentifier.fromBytes((byte[]) sidAttribute.get());
+    }
+
+    /**
+     * parses a group search result into all of the name variations we cache
+     * for its SID. Groups are qualified by the domain they are in, the way
+     * ADFS does it, so the names do not depend on which user looked them up.
+     * The SID string is made here once per group, not once per login
+     *
+     * @param groupResult
+     * @param groupSid from getObjectSid
+     * @return null if the result has no attributes or no SID
+     * @throws NamingException
+     */
+    private Map<String, String> buildGroupNames(SearchResult groupResult, SecurityIdentifier groupSid) throws NamingException {
+        Attributes groupAttributes = groupResult.getAttributes();
+        //now do all the work to parse the group into the names we need
+        if (groupAttributes == null || groupSid == null) {
+            return null;
+        }
+        String groupDistinguishedName = groupResult.getNameInNamespace();
+        String netBIOSName = getDomainNameFromDistinguishedName(groupDistinguishedName, false);
+        String domainName = getDomainNameFromDistinguishedName(groupDistinguishedName, true);
+        //add all of the possible name variations
+        String samAccountName = (String) groupAttributes.get(SAM_ACCOUNT_NAME).get();
+        Map<String, String> groupNames = new HashMap<>();
+        groupNames.put(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, groupSid.toString());
+        String groupName = (String) groupAttributes.get(groupNameAttributeName).get();
+        //special case where tokenGroups is MemberOf attribute in QL
+        groupNames.put(TOKEN_GROUPS, groupName);
+        groupNames.put(groupNameAttributeName, groupName);
+        groupDictionary.nameGroup(groupSid, groupName);
+        String longName = domainName + "\\" + samAccountName;
+        String nt4Name = netBIOSName + "\\" + samAccountName;
+        groupNames.put(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, nt4Name);
+        groupNames.put(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, longName);
+        groupNames.put(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
+        //kept so change tracking can tell when a nested group changes
+        groupNames.put(DISTINGUISHED_NAME, groupDistinguishedName);
+        return groupNames;
+    }
+
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="group catalog preload">
+    /**
+     * streams every group under the group search base into the group SID
+     * cache with a paged search, so the first logins after a restart do not
+     * have to resolve their SIDs one batch at a time. Runs on its own thread
+     * from initializeMe, progress is logged and kept in the cache statistics
+     */
+    void preloadGroupCatalog() {
+        long preloadStart = System.nanoTime();
+        String groupListFilter = realmConfig.getUserStoreProperty(LDAPConstants.GROUP_NAME_LIST_FILTER);
+        if (groupListFilter == null || groupListFilter.trim().isEmpty()) {
+            groupListFilter = DEFAULT_GROUP_LIST_FILTER;
+        }
+        sysLogger.info("ADFSCompatibleADUserStore preloading groups under " + groupSearchBasePath);
+        DirContext dirContext = null;
+        try {
+            dirContext = domainControllers.borrow();
+            LdapPagedSearch.search(dirContext, groupSearchBasePath, groupListFilter, createGroupSearchControls(), ldapPageSize, groupResult -> {
+                SecurityIdentifier groupSid = getObjectSid(groupResult);
+                Map<String, String> groupNames = buildGroupNames(groupResult, groupSid);
+                if (groupNames != null) {
+                    groupSidGroupNamesCache.put(groupSid, groupNames);
+                    long loadedCount = groupCatalogLoadedCount.incrementAndGet();
+                    if (loadedCount % GROUP_CATALOG_PROGRESS_INTERVAL == 0) {
+                        sysLogger.info("ADFSCompatibleADUserStore preloaded " + loadedCount + " groups");
+                    }
+                }
+                return true;
+            });
+            groupCatalogComplete = true;
+            sysLogger.info("ADFSCompatibleADUserStore preloaded " + groupCatalogLoadedCount.get() + " groups in "
+                    + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - preloadStart) + " seconds");
+            if (groupSidGroupNamesCache.getEvictionCount() > 0) {
+                sysLogger.warn("ADFSCompatibleADUserStore group SID cache is smaller than the group catalog, raise "
+                        + GROUP_SID_CACHE_MAX_ENTRIES + " and " + GROUP_SID_CACHE_MAX_BYTES + " to keep it all");
+            }
+        } catch (NamingException | UserStoreException preloadError) {
+            sysLogger.warn("ADFSCompatibleADUserStore group preload stopped after " + groupCatalogLoadedCount.get()
+                    + " groups, the rest will be looked up as needed", preloadError);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="change tracking">
+    /**
+     * users and groups that changed since the last poll
+     */
+    private static final class DirectoryChanges {
+
+        final Set<String> userDistinguishedNames = new HashSet<>();
+        final Set<SecurityIdentifier> groupSids = new HashSet<>();
+        final Set<String> memberDistinguishedNames = new HashSet<>();
+        final Map<SecurityIdentifier, Map<String, String>> updatedGroups = new HashMap<>();
+        //the changed groups and the cached groups that are members of them
+        final Set<SecurityIdentifier> affectedGroupSids = new HashSet<>();
+    }
+
+    /**
+     * one poll of the change tracker. uSNChanged is local to each domain
+     * controller, so the polls stay on one domain controller whatever the
+     * traffic does, and we keep the last USN of every domain controller we
+     * have polled so coming back to one carries on where it left off. Only a
+     * domain controller we have never polled, or one whose USN went
+     * backwards, leaves us unable to tell what changed, then the user caches
+     * are dropped instead. Deleted objects are not returned, they age out of
+     * the caches
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    void pollDirectoryChanges() {
+        DirContext dirContext = null;
+        try {
+            dirContext = domainControllers.borrowForChangeTracking();
+            Attributes rootAttributes = dirContext.getAttributes("", new String[]{"highestCommittedUSN", "dsServiceName"});
+            long highestUSN = Long.parseLong((String) rootAttributes.get("highestCommittedUSN").get());
+            String serverName = ((String) rootAttributes.get("dsServiceName").get()).toUpperCase();
+            Long changeTrackingUSN = changeTrackingUSNs.get(serverName);
+            if (changeTrackingUSN == null || highestUSN < changeTrackingUSN) {
+                if (!changeTrackingUSNs.isEmpty()) {
+                    sysLogger.info("ADFSCompatibleADUserStore change tracking cannot tell what changed on " + serverName + ", clearing user caches");
+                    changeTrackingInvalidationCount.addAndGet(userDistinguishedNameTokenGroupsCache.removeIf((key, value) -> true)
+                            + userNameUserDistinguishedNameCache.removeIf((key, value) -> true)
+                            + userPropertyCache.removeIf((key, value) -> true));
+                }
+                changeTrackingUSNs.put(serverName, highestUSN);
+                return;
+            }
+            changeTrackingPollCount.incrementAndGet();
+            if (highestUSN == changeTrackingUSN) {
+                return;
+            }
+            DirectoryChanges changes = new DirectoryChanges();
+            String changeFilter = "(&(|(objectClass=user)(objectClass=group))(uSNChanged>=" + (changeTrackingUSN + 1) + "))";
+            searchDirectoryChanges(dirContext, userSearchBasePath, changeFilter, changes);
+            if (groupSearchBasePath != null && !groupSearchBasePath.equalsIgnoreCase(userSearchBasePath)) {
+                searchDirectoryChanges(dirContext, groupSearchBasePath, changeFilter, changes);
+            }
+            applyDirectoryChanges(changes);
+            updateUserRoleIndex(changes, dirContext);
+            changeTrackingUSNs.put(serverName, highestUSN);
+        } catch (NamingException | UserStoreException | NumberFormatException pollError) {
+            if (pollError instanceof NamingException) {
+                reportDirectoryError(dirContext, (NamingException) pollError);
+            }
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Error occurred in pollDirectoryChanges", pollError);
+            }
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
+
+    /**
+     * collects the changed users and groups under a search base
+     *
+     * @param dirContext
+     * @param searchBase
+     * @param changeFilter
+     * @param changes
+     * @throws NamingException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private void searchDirectoryChanges(DirContext dirContext, String searchBase, String changeFilter, DirectoryChanges changes) throws NamingException {
+        SearchControls changeSearchCtls = new SearchControls();
+        changeSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        Set<String> changeReturnedAtts = new HashSet<>(Arrays.asList("objectClass", "objectSid", "member", SAM_ACCOUNT_NAME, groupNameAttributeName));
+        changeSearchCtls.setReturningAttributes(changeReturnedAtts.toArray(new String[changeReturnedAtts.size()]));
+        LdapPagedSearch.search(dirContext, searchBase, changeFilter, changeSearchCtls, ldapPageSize, changeResult -> {
+            Attributes changeAttributes = changeResult.getAttributes();
+            Attribute objectClass = changeAttributes == null ? null : changeAttributes.get("objectClass");
+            String distinguishedName = changeResult.getNameInNamespace();
+            boolean isGroup = false;
+            for (NamingEnumeration<?> classes = objectClass == null ? null : objectClass.getAll(); classes != null && classes.hasMore();) {
+                isGroup |= "group".equalsIgnoreCase((String) classes.next());
+            }
+            if (!isGroup) {
+                changes.userDistinguishedNames.add(distinguishedName.toUpperCase());
+                return true;
+            }
+            SecurityIdentifier groupSid = getObjectSid(changeResult);
+            if (groupSid != null) {
+                changes.groupSids.add(groupSid);
+                if (groupSearchBasePath != null && distinguishedName.toUpperCase().endsWith(groupSearchBasePath.toUpperCase())
+                        && changeAttributes.get(SAM_ACCOUNT_NAME) != null && changeAttributes.get(groupNameAttributeName) != null) {
+                    changes.updatedGroups.put(groupSid, buildGroupNames(changeResult, groupSid));
                 }
+            }
+            addMemberDistinguishedNames(dirContext, distinguishedName, changeAttributes, changes.memberDistinguishedNames);
+            return true;
+        });
+    }
 
-            } finally {
-                JNDIUtil.closeContext(dirContext);
+    /**
+     * adds the upper cased member values of a group. A group with more
+     * members than the MaxValRange of the domain controller comes back as
+     * member;range=0-1499 instead of member, the rest is read a range at a
+     * time until AD hands back a range that ends in *
+     *
+     * @param dirContext
+     * @param groupDistinguishedName
+     * @param groupAttributes the attributes the group search returned
+     * @param memberDistinguishedNames
+     * @throws NamingException
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private static void addMemberDistinguishedNames(DirContext dirContext, String groupDistinguishedName, Attributes groupAttributes,
+            Set<String> memberDistinguishedNames) throws NamingException {
+        Attributes rangeAttributes = groupAttributes;
+        int rangeStart = 0;
+        while (rangeAttributes != null) {
+            int nextRangeStart = -1;
+            for (NamingEnumeration<? extends Attribute> attributes = rangeAttributes.getAll(); attributes.hasMore();) {
+                Attribute attribute = attributes.next();
+                String attributeId = attribute.getID();
+                if (!isMemberAttribute(attributeId)) {
+                    continue;
+                }
+                for (NamingEnumeration<?> members = attribute.getAll(); members.hasMore();) {
+                    memberDistinguishedNames.add(((String) members.next()).toUpperCase());
+                }
+                nextRangeStart = nextMemberRangeStart(attributeId);
+            }
+            //a range that does not move forward would have us asking forever
+            if (nextRangeStart <= rangeStart) {
+                return;
             }
-            userPropertyCache.put(cacheKey, returnValue);
+            rangeStart = nextRangeStart;
+            rangeAttributes = dirContext.getAttributes(groupDistinguishedName, new String[]{"member;range=" + rangeStart + "-*"});
         }
-        return returnValue;
     }
 
     /**
-     * This method is a variation of the ReadOnlyLDAPUserStoreManager and
-     * adjusted to more accurately reflect the requirements for Microsoft Azure
-     * Directories and Office 365 for Eduction implementations where the
-     * ObjectGUID attribute is base64 encoded "as is" and not treated as little
-     * endian We also provide support for "tokenGroups" as sid strings in the
-     * same format as ADFS
+     * true for member and for member with options, such as
+     * member;range=0-1499
      *
-     * @param userName
-     * @param propertyNames
-     * @param dirContext
+     * @param attributeId
      * @return
-     * @throws UserStoreException
      */
-    @SuppressFBWarnings({"DM_CONVERT_CASE", "DM_DEFAULT_ENCODING"})//justification: usage is correct
-    Map<String, String> getUserPropertyValuesInternal(String userName, String[] propertyNames, DirContext dirContext) throws UserStoreException {
+    static boolean isMemberAttribute(String attributeId) {
+        return attributeId.regionMatches(true, 0, "member", 0, 6)
+                && (attributeId.length() == 6 || attributeId.charAt(6) == ';');
+    }
 
-        String userAttributeSeparator = ",";
-        Map<String, String> returnValue = new HashMap<>();
-        // if user name contains domain name, remove domain name
-        String[] userNames = userName.split(CarbonConstants.DOMAIN_SEPARATOR);
-        if (userNames.length > 1) {
-            userName = userNames[1];
+    /**
+     * the first value of the next range of a ranged member attribute, -1 if
+     * the attribute is not ranged or this was the last range
+     *
+     * @param attributeId such as member;range=0-1499 or member;range=1500-*
+     * @return
+     */
+    static int nextMemberRangeStart(String attributeId) {
+        int rangeIndex = attributeId.toLowerCase(Locale.ENGLISH).indexOf(";range=");
+        if (rangeIndex < 0) {
+            return -1;
+        }
+        int rangeEndIndex = attributeId.indexOf('-', rangeIndex) + 1;
+        if (rangeEndIndex == 0 || attributeId.startsWith("*", rangeEndIndex)) {
+            return -1;
         }
-
-        String searchFilter = userSearchFilter.replace("?", escapeSpecialCharactersForFilter(userName));
-
-        NamingEnumeration<?> userAnswer = null;
-        NamingEnumeration<?> attributeValues = null;
         try {
+            return Integer.parseInt(attributeId.substring(rangeEndIndex)) + 1;
+        } catch (NumberFormatException badRange) {
+            return -1;
+        }
+    }
 
-            userAnswer = this.searchForUser(searchFilter, propertyNames, dirContext);
-            while (userAnswer.hasMoreElements()) {
-                SearchResult userResult = (SearchResult) userAnswer.next();
-                Attributes userAttributes = userResult.getAttributes();
-                if (userAttributes != null) {
-                    for (String propertyName : propertyNames) {
-                        if (propertyName != null) {
-                            Attribute userAttribute = userAttributes.get(propertyName);
-                            if (userAttribute != null) {
-                                StringBuilder attrBuffer = new StringBuilder();
-                                for (attributeValues = userAttribute.getAll(); attributeValues.hasMore();) {
-                                    Object attObject = attributeValues.next();
-                                    String attributeValue = null;
-                                    if (attObject instanceof String) {
-                                        attributeValue = (String) attObject;
-                                    } else if (attObject instanceof byte[]) {
-                                        // return canonical representation of UUIDs or base64 encoded string of other binary data
-                                        // except for the active Directory attribute: objectGUID, which must be base64 encoded
-                                        //to be compatiable with the AzureDirectorySync default configuration
-                                        final byte[] attributeBytes = (byte[]) attObject;
-                                        //easier and faster to compare as upper case
-                                        String normalName = propertyName.toUpperCase();
-                                        if (attributeBytes.length == 16 && normalName.endsWith("UID")) {
-                                            //patching CARBON-16026 by base64 encoding objectGUID
-                                            //instead of treating it as little-endian and UUID printing
-                                            //it, also added ignoreCase 
-                                            if (normalName.equals("OBJECTGUID")) {
-                                                attributeValue = new String(Base64.encodeBase64((byte[]) attObject));
-                                            } else {
-                                                final java.nio.ByteBuffer bb = java.nio.ByteBuffer.wrap(attributeBytes);
-                                                attributeValue = new java.util.UUID(bb.getLong(), bb.getLong()).toString();
-                                            }
-                                        } else {
-                                            //If we are asking for the SID, then convert it to the
-                                            //Microsoft format of the sid string 
-                                            //https://technet.microsoft.com/en-us/library/cc962011.aspx
-                                            if (normalName.equals("OBJECTSID")) {
-                                                attributeValue = convertSidToStr((byte[]) attObject);
-                                            } else {
-                                                attributeValue = new String(Base64.encodeBase64((byte[]) attObject));
-                                            }
-                                        }
-                                    }
-                                    if (attributeValue != null && attributeValue.trim().length() > 0) {
-                                        if (multiValueAttributeSeparator != null && !multiValueAttributeSeparator.trim().isEmpty()) {
-                                            userAttributeSeparator = multiValueAttributeSeparator;
-                                        }
-                                        attrBuffer.append(attributeValue).append(userAttributeSeparator);
-                                    }
-                                    String responseValue = attrBuffer.toString();
-
-                                    /*
-                                     * Length needs to be more than userAttributeSeparator.length() for a valid
-                                     * attribute, since we
-                                     * attach userAttributeSeparator
-                                     */
-                                    if (responseValue.trim().length() > userAttributeSeparator.length()) {
-                                        responseValue = responseValue.substring(0, responseValue.length() - userAttributeSeparator.length());
-                                        returnValue.put(propertyName, responseValue);
-                                    }
-
-                                }
-                            }
-                        }
-                    }
+    /**
+     * drops the cache entries the changes affect. A changed group affects its
+     * direct members, every user with it in their token groups, and, if one
+     * of its members is a group, every user with that group in their token
+     * groups. Group names are updated in place, user entries are dropped and
+     * will be loaded again on the next request
+     *
+     * @param changes
+     */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private void applyDirectoryChanges(DirectoryChanges changes) {
+        Set<SecurityIdentifier> affectedGroupSids = changes.affectedGroupSids;
+        affectedGroupSids.addAll(changes.groupSids);
+        if (!changes.memberDistinguishedNames.isEmpty()) {
+            groupSidGroupNamesCache.forEach((groupSid, groupNames) -> {
+                String groupDistinguishedName = groupNames.get(DISTINGUISHED_NAME);
+                if (groupDistinguishedName != null && changes.memberDistinguishedNames.contains(groupDistinguishedName.toUpperCase())) {
+                    affectedGroupSids.add(groupSid);
+                }
+            });
+        }
+        Set<String> affectedUserDistinguishedNames = new HashSet<>(changes.userDistinguishedNames);
+        affectedUserDistinguishedNames.addAll(changes.memberDistinguishedNames);
+        Set<String> knownMembershipDistinguishedNames = new HashSet<>();
+        userDistinguishedNameTokenGroupsCache.forEach((userDistinguishedName, userTokenGroups) -> {
+            String normalName = userDistinguishedName.toUpperCase();
+            knownMembershipDistinguishedNames.add(normalName);
+            for (SecurityIdentifier groupSid : userTokenGroups.groupSids) {
+                if (affectedGroupSids.contains(groupSid)) {
+                    affectedUserDistinguishedNames.add(normalName);
+                    break;
                 }
             }
-
-        } catch (NamingException e) {
-            String errorMessage = "Error occurred while getting user property values for user : " + userName;
-            if (sysLogger.isDebugEnabled()) {
-                sysLogger.debug(errorMessage, e);
+        });
+        //user records are keyed by the upper case user name, match on that
+        //as well as on the distinguished name they carry
+        Set<String> affectedUserNames = new HashSet<>();
+        userNameUserDistinguishedNameCache.forEach((userName, userDistinguishedName) -> {
+            if (userDistinguishedName != null && affectedUserDistinguishedNames.contains(userDistinguishedName.toUpperCase())) {
+                affectedUserNames.add(userName.toUpperCase());
+            }
+        });
+        boolean groupsChanged = !affectedGroupSids.isEmpty();
+        int removedCount = userDistinguishedNameTokenGroupsCache.removeIf((userDistinguishedName, userTokenGroups)
+                -> affectedUserDistinguishedNames.contains(userDistinguishedName.toUpperCase()));
+        removedCount += userNameUserDistinguishedNameCache.removeIf((userName, userDistinguishedName)
+                -> affectedUserNames.contains(userName.toUpperCase()));
+        removedCount += userPropertyCache.removeIf((cacheKey, userRecord) -> {
+            String userDistinguishedName = userRecord.get(DISTINGUISHED_NAME);
+            String normalName = userDistinguishedName == null ? null : userDistinguishedName.toUpperCase();
+            if (normalName != null && affectedUserDistinguishedNames.contains(normalName)) {
+                return true;
+            }
+            if (affectedUserNames.contains(cacheKey)) {
+                return true;
+            }
+            //if we no longer have the token groups we cannot tell, so be safe
+            return groupsChanged && userRecord.hasAny(tokenGroupAttributeName, TOKEN_GROUPS, TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME,
+                    TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME,
+                    TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME)
+                    && (normalName == null || !knownMembershipDistinguishedNames.contains(normalName));
+        });
+        for (Map.Entry<SecurityIdentifier, Map<String, String>> updatedGroup : changes.updatedGroups.entrySet()) {
+            if (groupSidGroupNamesCache.containsKey(updatedGroup.getKey())) {
+                groupSidGroupNamesCache.put(updatedGroup.getKey(), updatedGroup.getValue());
             }
-            throw new UserStoreException(errorMessage, e);
-        } finally {
-            // close the naming enumeration and free up resources
-            JNDIUtil.closeNamingEnumeration(attributeValues);
-            JNDIUtil.closeNamingEnumeration(userAnswer);
-
         }
-        return returnValue;
+        if (!changes.updatedGroups.isEmpty()) {
+            //token group sets are shared by users we did not drop
+            groupNamesGeneration.incrementAndGet();
+        }
+        changeTrackingInvalidationCount.addAndGet(removedCount);
+        if (sysLogger.isDebugEnabled()) {
+            sysLogger.debug("ADFSCompatibleADUserStore change tracking saw " + changes.userDistinguishedNames.size() + " users and "
+                    + changes.groupSids.size() + " groups change, removed " + removedCount + " cache entries");
+        }
     }
     //</editor-fold>
 
-    //<editor-fold defaultstate="collapsed" desc="token group queries">
+    //<editor-fold defaultstate="collapsed" desc="user role index">
     /**
-     * gets token groups for a user as an array of SID strings
+     * a page of the users in a role, in user name order, for the admin
+     * console and SCIM clients that page through big roles. It comes from the
+     * user role index when it can, otherwise the role is read from AD the way
+     * doGetUserListOfRole reads it, so it is bounded by MaxUserNameListLength,
+     * and then sorted and cut to the page
      *
-     * @param userDistinguishedName
-     * @param dirContext
+     * @param roleName
+     * @param filter WSO2 user name filter, * matches anything
+     * @param offset matching users to skip
+     * @param limit the most to return, zero or less for all of them
      * @return
+     * @throws UserStoreException
      */
-    private String[] getUsersTokenGroups(String userDistinguishedName, DirContext dirContext) {
+    public List<String> getUserListOfRole(String roleName, String filter, int offset, int limit) throws UserStoreException {
+        List<String> returnValue = getIndexedUserListOfRole(roleName, filter, offset, limit);
+        if (returnValue != null) {
+            return returnValue;
+        }
+        String[] roleUsers;
+        if (tokenGroupRoles) {
+            List<String> readUsers = readUserListOfRole(roleName, filter,
+                    (int) getLongProperty(UserCoreConstants.RealmConfig.PROPERTY_MAX_USER_LIST, 100));
+            roleUsers = readUsers.toArray(new String[readUsers.size()]);
+        } else {
+            roleUsers = super.doGetUserListOfRole(roleName, filter);
+        }
+        int pageStart = Math.max(0, offset);
+        if (roleUsers == null || pageStart >= roleUsers.length) {
+            return Collections.emptyList();
+        }
+        roleUsers = roleUsers.clone();
+        Arrays.sort(roleUsers, String.CASE_INSENSITIVE_ORDER);
+        int pageEnd = limit > 0 ? (int) Math.min(roleUsers.length, (long) pageStart + limit) : roleUsers.length;
+        return new ArrayList<>(Arrays.asList(roleUsers).subList(pageStart, pageEnd));
+    }
 
-        boolean addToCache = false;
-        List<String> returnValue = userDistinguishedNameTokenGroupsCache.get(userDistinguishedName);
-        if (returnValue == null) {
-            addToCache = true;
-            returnValue = new ArrayList<>();
+    /**
+     * the users in a role read from AD, with the same membership the user
+     * role index and the token groups have: the security groups with the
+     * role name under the group search base, their members however deeply
+     * nested (LDAP_MATCHING_RULE_IN_CHAIN), and the users who have one of
+     * them as their primary group. primaryGroupID is only a relative id, so
+     * those users are found in a search of their own and only kept if their
+     * objectSid is in the domain of the group. Users who get a group through
+     * a nested primary group are not found, AD has no search for that
+     *
+     * @param roleName
+     * @param filter WSO2 user name filter, * matches anything
+     * @param maximumUsers
+     * @return qualified with the DomainName of the user store when it has one
+     * @throws UserStoreException
+     */
+    private List<String> readUserListOfRole(String roleName, String filter, int maximumUsers) throws UserStoreException {
+        String unqualifiedRoleName = roleName.contains(CarbonConstants.DOMAIN_SEPARATOR) ? removeDomainFromName(roleName) : roleName;
+        String groupListFilter = realmConfig.getUserStoreProperty(LDAPConstants.GROUP_NAME_LIST_FILTER);
+        if (groupListFilter == null || groupListFilter.trim().isEmpty()) {
+            groupListFilter = DEFAULT_GROUP_LIST_FILTER;
         }
-        String userReturnedAtts[] = {tokenGroupAttributeName};
+        String groupsSearchFilter = "(&" + groupListFilter + "(" + groupNameAttributeName + "="
+                + escapeSpecialCharactersForFilter(unqualifiedRoleName) + "))";
+        SearchControls groupSearchCtls = new SearchControls();
+        groupSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        groupSearchCtls.setReturningAttributes(new String[]{"objectSid", "groupType"});
+        SearchControls userSearchCtls = new SearchControls();
+        userSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        userSearchCtls.setReturningAttributes(new String[]{userNameAttributeName});
+        SearchControls primaryUserSearchCtls = new SearchControls();
+        primaryUserSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        primaryUserSearchCtls.setReturningAttributes(new String[]{userNameAttributeName, "objectSid", "primaryGroupID"});
+        Pattern userPattern = compileNameFilter(filter);
+        String domainName = realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
+        List<String> returnValue = new ArrayList<>();
+        Set<String> foundUserNames = new HashSet<>();
+        DirContext dirContext = domainControllers.borrow();
         try {
-
-            Attributes userAttributes = dirContext.getAttributes(userDistinguishedName, userReturnedAtts);
-            //TODO: check to see if this namingenumeration needs to be closed or if enumerator does it
-            for (NamingEnumeration attributeEnum = userAttributes.getAll(); attributeEnum.hasMore();) {
-                Attribute sidAttribute = (Attribute) attributeEnum.next();
-                for (NamingEnumeration e = sidAttribute.getAll(); e.hasMore();) {
-                    byte[] sidBytes = (byte[]) e.next();
-                    String sidString = convertSidToStr(sidBytes);
-                    returnValue.add(sidString);
+            StringBuilder membersFilter = new StringBuilder("(|");
+            StringBuilder primaryMembersFilter = new StringBuilder("(|");
+            //the SID strings of the groups, to match the domain of a primary group member
+            Set<String> groupSidStrings = new HashSet<>();
+            LdapPagedSearch.search(dirContext, groupSearchBasePath, groupsSearchFilter, groupSearchCtls, ldapPageSize, groupResult -> {
+                Attribute groupTypeAttribute = groupResult.getAttributes() == null ? null : groupResult.getAttributes().get("groupType");
+                SecurityIdentifier groupSid = getObjectSid(groupResult);
+                if (groupTypeAttribute == null || groupSid == null
+                        || (Long.parseLong((String) groupTypeAttribute.get()) & SECURITY_ENABLED_GROUP) == 0) {
+                    //distribution groups are never in tokenGroups
+                    return true;
+                }
+                membersFilter.append("(memberOf:").append(IN_CHAIN_MATCHING_RULE).append(":=")
+                        .append(escapeSpecialCharactersForFilter(groupResult.getNameInNamespace())).append(")");
+                if (groupSidStrings.add(groupSid.toString())) {
+                    primaryMembersFilter.append("(primaryGroupID=").append(groupSid.getRelativeId()).append(")");
                 }
+                return true;
+            });
+            if (membersFilter.length() == 2) {
+                return returnValue;
             }
-            if (addToCache) {
-                userDistinguishedNameTokenGroupsCache.put(userDistinguishedName, returnValue);
+            String usersSearchFilter = "(&" + getUserListFilter() + membersFilter.append(")") + ")";
+            LdapPagedSearch.search(dirContext, userSearchBasePath, usersSearchFilter, userSearchCtls, ldapPageSize, userResult -> {
+                Attribute userNameAttribute = userResult.getAttributes() == null ? null : userResult.getAttributes().get(userNameAttributeName);
+                String userName = userNameAttribute == null ? null : (String) userNameAttribute.get();
+                if (userName != null && (userPattern == null || userPattern.matcher(userName).matches()) && foundUserNames.add(userName)) {
+                    returnValue.add(domainName == null ? userName : UserCoreUtil.addDomainToName(userName, domainName));
+                }
+                return maximumUsers <= 0 || returnValue.size() < maximumUsers;
+            });
+            if (maximumUsers > 0 && returnValue.size() >= maximumUsers) {
+                return returnValue;
             }
-        } catch (NamingException attributeError) {
-            String errorMessage = "Problem getting tokenGroups by distinguished name: " + attributeError;
+            //the same relative id is a different group in every other domain
+            //of the forest, so the user SID has to be in the domain of the group
+            String primaryUsersSearchFilter = "(&" + getUserListFilter() + primaryMembersFilter.append(")") + ")";
+            LdapPagedSearch.search(dirContext, userSearchBasePath, primaryUsersSearchFilter, primaryUserSearchCtls, ldapPageSize, userResult -> {
+                Attributes userAttributes = userResult.getAttributes();
+                Attribute userNameAttribute = userAttributes == null ? null : userAttributes.get(userNameAttributeName);
+                Attribute primaryGroupAttribute = userAttributes == null ? null : userAttributes.get("primaryGroupID");
+                SecurityIdentifier userSid = getObjectSid(userResult);
+                String userName = userNameAttribute == null ? null : (String) userNameAttribute.get();
+                if (userName == null || primaryGroupAttribute == null || userSid == null
+                        || !groupSidStrings.contains(userSid.getDomain().getPrefix() + "-" + Long.parseLong((String) primaryGroupAttribute.get()))) {
+                    return true;
+                }
+                if ((userPattern == null || userPattern.matcher(userName).matches()) && foundUserNames.add(userName)) {
+                    returnValue.add(domainName == null ? userName : UserCoreUtil.addDomainToName(userName, domainName));
+                }
+                return maximumUsers <= 0 || returnValue.size() < maximumUsers;
+            });
+        } catch (NamingException | NumberFormatException searchError) {
+            if (searchError instanceof NamingException) {
+                reportDirectoryError(dirContext, (NamingException) searchError);
+            }
+            String errorMessage = "Error occurred while getting the users of role " + roleName;
             if (sysLogger.isDebugEnabled()) {
-                sysLogger.debug(errorMessage, attributeError);
+                sysLogger.debug(errorMessage, searchError);
             }
+            throw new UserStoreException(errorMessage, searchError);
+        } finally {
+            domainControllers.release(dirContext);
         }
-        return returnValue.toArray(new String[returnValue.size()]);
+        return returnValue;
     }
 
     /**
-     * Looks up tokengroups (sid strings) and gets all name variations for them
-     * the cache is checked first for values and then the AD lookup routine is
-     * called
+     * the users in a role from the user role index, qualified with the
+     * DomainName of the user store when it has one
      *
-     * @param tokenGroups
-     * @param dirContext
-     * @param userDistinguishedName
-     * @return
+     * @param roleName
+     * @param filter
+     * @param offset
+     * @param limit
+     * @return null if the index cannot answer, it is not loaded, does not
+     * know the role name, or one of its groups is too big to be indexed
      */
-    private Map<String, Map<String, String>> getNamesForTokenGroups(String[] tokenGroups, DirContext dirContext, String userDistinguishedName) {
-        Map<String, Map<String, String>> returnValue = new HashMap<>();
-        List<String> uncachedNames = new ArrayList<>();
-        //first try the cache
-        for (String groupSid : tokenGroups) {
-            Map<String, String> groupNames = groupSidGroupNamesCache.get(groupSid);
-            if (groupNames == null) {
-                uncachedNames.add(groupSid);
-            } else {
-                returnValue.put(groupSid, groupNames);
+    private List<String> getIndexedUserListOfRole(String roleName, String filter, int offset, int limit) {
+        UserRoleIndex currentIndex = userRoleIndex;
+        if (currentIndex == null) {
+            if (userRoleIndexTimer != null) {
+                userRoleIndexFallbackCount.incrementAndGet();
             }
+            return null;
+        }
+        String unqualifiedRoleName = roleName.contains(CarbonConstants.DOMAIN_SEPARATOR) ? removeDomainFromName(roleName) : roleName;
+        int[] groupIds = groupDictionary.roleGroupIds(unqualifiedRoleName);
+        Pattern userPattern = compileNameFilter(filter);
+        List<String> userNames = groupIds == null ? null : currentIndex.members(groupIds,
+                userName -> userPattern == null || userPattern.matcher(userName).matches(), Math.max(0, offset), limit);
+        if (userNames == null) {
+            userRoleIndexFallbackCount.incrementAndGet();
+            return null;
+        }
+        userRoleIndexHitCount.incrementAndGet();
+        String domainName = realmConfig.getUserStoreProperty(UserCoreConstants.RealmConfig.PROPERTY_DOMAIN_NAME);
+        if (domainName == null) {
+            return userNames;
+        }
+        List<String> returnValue = new ArrayList<>(userNames.size());
+        for (String userName : userNames) {
+            returnValue.add(UserCoreUtil.addDomainToName(userName, domainName));
+        }
+        return returnValue;
+    }
+
+    /**
+     * queues a load of the user role index on its timer, unless one is
+     * already waiting to run
+     */
+    private void scheduleUserRoleIndexLoad() {
+        if (userRoleIndexTimer != null && userRoleIndexLoadPending.compareAndSet(false, true)) {
+            userRoleIndexTimer.schedule(new StoreTimerTask(this, store -> {
+                store.userRoleIndexLoadPending.set(false);
+                store.loadUserRoleIndex();
+            }), 0);
         }
-        //now lookup all the uncached items
-        while (uncachedNames.size() > 0) {
-            //technically the limit to the size of the query we send to AD is 10MEG, however
-            //I have seen this randomly not work correctly in remote LDAP (over the internet)
-            //Likely it is something to do with slower connectivity. Regardless, we batch this
-            //up into smaller queries of 50 SID's at a time to avoid any issues with filter
-            //string length
-            List<String> nameBatch = new ArrayList<>();
-            while (nameBatch.size() < 50 && uncachedNames.size() > 0) {
-                nameBatch.add(uncachedNames.remove(0));
+    }
+
+    /**
+     * reads the token groups of every user under the user search base into a
+     * new user role index and swaps it in, readers keep using the old one
+     * until then. AD only gives tokenGroups for one user at a time, so this
+     * is a paged search for the users and a read for each of them. The groups
+     * they are in are looked up afterwards, which is how a role name finds
+     * its groups. If the load fails we keep the index we have. If it
+     * overflows we keep it too, unless ours has overflowed as well, then the
+     * index is dropped and role members are read from AD until the next
+     * scheduled load
+     */
+    void loadUserRoleIndex() {
+        if (userNameAttributeName == null) {
+            sysLogger.warn("ADFSCompatibleADUserStore cannot build the user role index without a " + LDAPConstants.USER_NAME_ATTRIBUTE);
+            return;
+        }
+        long loadStart = System.nanoTime();
+        UserRoleIndex loadedIndex = new UserRoleIndex(getLongProperty(USER_ROLE_INDEX_MAX_ENTRIES, 1000000),
+                (int) getLongProperty(USER_ROLE_INDEX_MAX_GROUP_SIZE, 5000));
+        Set<SecurityIdentifier> indexedGroupSids = new HashSet<>();
+        AtomicLong indexedCount = new AtomicLong();
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{userNameAttributeName});
+        String[] tokenGroupAtts = {tokenGroupAttributeName};
+        boolean[] dictionaryFull = new boolean[1];
+        loadingUserRoleIndex = loadedIndex;
+        DirContext dirContext = null;
+        try {
+            dirContext = domainControllers.borrow();
+            DirContext userContext = dirContext;
+            LdapPagedSearch.search(userContext, userSearchBasePath, getUserListFilter(), searchCtls, ldapPageSize, userResult -> {
+                Attributes userAttributes = userResult.getAttributes();
+                Attribute userNameAttribute = userAttributes == null ? null : userAttributes.get(userNameAttributeName);
+                if (userNameAttribute == null) {
+                    return true;
+                }
+                String userDistinguishedName = userResult.getNameInNamespace();
+                List<SecurityIdentifier> groupSids = getTokenGroupSids(userContext.getAttributes(userDistinguishedName, tokenGroupAtts));
+                int[] groupIds = groupDictionary.groupIds(groupSids);
+                if (groupIds == null) {
+                    dictionaryFull[0] = true;
+                    return false;
+                }
+                if (!loadedIndex.update(userDistinguishedName, (String) userNameAttribute.get(), groupIds)) {
+                    return false;
+                }
+                indexedGroupSids.addAll(groupSids);
+                if (indexedCount.incrementAndGet() % USER_ROLE_INDEX_PROGRESS_INTERVAL == 0) {
+                    sysLogger.info("ADFSCompatibleADUserStore user role index has " + indexedCount.get() + " users");
+                }
+                return true;
+            });
+            if (dictionaryFull[0] || loadedIndex.isOverflowed()) {
+                sysLogger.warn("ADFSCompatibleADUserStore user role index stopped after " + indexedCount.get() + " users, "
+                        + (dictionaryFull[0] ? "there are too many groups" : "raise " + USER_ROLE_INDEX_MAX_ENTRIES + " to index them all")
+                        + ", role members are read from AD");
+                UserRoleIndex currentIndex = userRoleIndex;
+                if (currentIndex != null && currentIndex.isOverflowed()) {
+                    userRoleIndex = null;
+                }
+                return;
             }
-            Map<String, Map<String, String>> nameMap = lookupNamesForTokenGroups(nameBatch.toArray(new String[nameBatch.size()]), dirContext, userDistinguishedName);
-            for (Map.Entry<String, Map<String, String>> entry : nameMap.entrySet()) {
-                String groupSid = entry.getKey();
-                Map<String, String> groupNames = entry.getValue();
-                groupSidGroupNamesCache.put(groupSid, groupNames);
-                returnValue.put(groupSid, groupNames);
+            getNamesForTokenGroups(new ArrayList<>(indexedGroupSids));
+            userRoleIndex = loadedIndex;
+            userRoleIndexLoadCount.incrementAndGet();
+            sysLogger.info("ADFSCompatibleADUserStore user role index loaded " + loadedIndex.getUserCount() + " users in "
+                    + loadedIndex.getGroupCount() + " groups in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - loadStart)
+                    + " seconds, " + loadedIndex.getOversizedGroupCount() + " groups are too big to index");
+        } catch (NamingException | UserStoreException loadError) {
+            if (loadError instanceof NamingException) {
+                reportDirectoryError(dirContext, (NamingException) loadError);
             }
+            sysLogger.warn("ADFSCompatibleADUserStore could not load the user role index after " + indexedCount.get()
+                    + " users, " + (userRoleIndex == null ? "role members are read from AD" : "keeping the one we have"), loadError);
+        } finally {
+            loadingUserRoleIndex = null;
+            domainControllers.release(dirContext);
         }
-        return returnValue;
     }
 
     /**
-     * Looks up tokengroups (sid strings) and gets all name variations for them
-     * from AD
+     * gives the user role indexes the token groups we just read for a user,
+     * if they have the user. Users they do not have are left to the next load
+     * or change tracking, we do not know their user name here
      *
-     * @param tokenGroups
-     * @param dirContext
      * @param userDistinguishedName
-     * @return
+     * @param groupSids
      */
-    private Map<String, Map<String, String>> lookupNamesForTokenGroups(String[] tokenGroups, DirContext dirContext, String userDistinguishedName) {
-        Map<String, Map<String, String>> returnValue = new HashMap<>();
-        if (tokenGroups.length > 0) {
-            //first build the search filter
-            StringBuilder groupsSearchFilter = new StringBuilder();
-            groupsSearchFilter.append("(|");
-            for (String groupSid : tokenGroups) {
-                groupsSearchFilter.append("(objectSid=");
-                groupsSearchFilter.append(groupSid);
-                groupsSearchFilter.append(")");
-            }
-            groupsSearchFilter.append(")");
-            String netBIOSName = getDomainNameFromDistinguishedName(userDistinguishedName, false);
-            String domainName = getDomainNameFromDistinguishedName(userDistinguishedName, true);
-            returnValue = lookupGroupNamesForSearchFilter(groupsSearchFilter.toString(), dirContext, netBIOSName, domainName);
+    private void updateIndexedUserGroups(String userDistinguishedName, List<SecurityIdentifier> groupSids) {
+        UserRoleIndex currentIndex = userRoleIndex;
+        UserRoleIndex loadingIndex = loadingUserRoleIndex;
+        if ((currentIndex == null || !currentIndex.contains(userDistinguishedName))
+                && (loadingIndex == null || !loadingIndex.contains(userDistinguishedName))) {
+            return;
+        }
+        int[] groupIds = groupDictionary.groupIds(groupSids);
+        if (groupIds == null) {
+            return;
+        }
+        if (currentIndex != null && !currentIndex.updateGroups(userDistinguishedName, groupIds)) {
+            scheduleUserRoleIndexLoad();
+        }
+        if (loadingIndex != null) {
+            loadingIndex.updateGroups(userDistinguishedName, groupIds);
         }
-        return returnValue;
     }
 
     /**
-     * Looks up group in AD information based on a search filter
+     * brings the user role indexes up to date with a poll of the change
+     * tracker. The changed users, the direct members of the changed groups
+     * and every indexed member of an affected group are read again. If an
+     * affected group is too big to be indexed we cannot tell who is in it, so
+     * the whole index is loaded again instead, as it is when there are more
+     * users to read than a group may have, or when the index overflows.
+     * Deleted users are not returned by the change tracker, they stay until
+     * the next load unless they were members of a changed group
      *
-     * @param groupsSearchFilter
+     * @param changes
      * @param dirContext
-     * @param netBIOSName
-     * @param domainName
-     * @return
+     * @throws NamingException
+     * @throws UserStoreException
      */
-    private Map<String, Map<String, String>> lookupGroupNamesForSearchFilter(String groupsSearchFilter, DirContext dirContext, String netBIOSName, String domainName) {
-        Map<String, Map<String, String>> returnValue = new HashMap<>();
-        SearchControls groupsSearchCtls = new SearchControls();
-        groupsSearchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        String[] groupsReturnedAtts = new String[]{groupNameAttributeName, "objectSid"};
-        if (!groupNameAttributeName.equalsIgnoreCase(SAM_ACCOUNT_NAME)) {
-            groupsReturnedAtts = new String[]{groupNameAttributeName, "objectSid", SAM_ACCOUNT_NAME};
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
+    private void updateUserRoleIndex(DirectoryChanges changes, DirContext dirContext) throws NamingException, UserStoreException {
+        UserRoleIndex currentIndex = userRoleIndex;
+        UserRoleIndex loadingIndex = loadingUserRoleIndex;
+        if (currentIndex != null && currentIndex.isOverflowed()) {
+            scheduleUserRoleIndexLoad();
+            currentIndex = null;
         }
-        groupsSearchCtls.setReturningAttributes(groupsReturnedAtts);
-        NamingEnumeration groupsAnswer = null;
-
-        try {
-            groupsAnswer = dirContext.search(groupSearchBasePath, groupsSearchFilter, groupsSearchCtls);
-            while (groupsAnswer.hasMoreElements()) {
-                SearchResult groupResult = (SearchResult) groupsAnswer.next();
-                Attributes groupAttributes = groupResult.getAttributes();
-                //now do all the work to parse the group into the names we need
-                if (groupAttributes != null) {
-                    //add all of the possible name variations
-                    String samAccountName = (String) groupAttributes.get(SAM_ACCOUNT_NAME).get();
-                    byte[] sidBytes = (byte[]) groupAttributes.get("objectSid").get();
-                    String groupSid = convertSidToStr(sidBytes);
-                    Map<String, String> groupNames = new HashMap<>();
-                    groupNames.put(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, groupSid);
-                    String groupName = (String) groupAttributes.get(groupNameAttributeName).get();
-                    //special case where tokenGroups is MemberOf attribute in QL
-                    groupNames.put(TOKEN_GROUPS, groupName);
-                    groupNames.put(groupNameAttributeName, groupName);
-                    String longName = domainName + "\\" + samAccountName;
-                    String nt4Name = netBIOSName + "\\" + samAccountName;
-                    groupNames.put(TOKEN_GROUPS_AS_SIDS_VIRTUAL_ATTRIBUTE_NAME, groupSid);
-                    groupNames.put(TOKEN_GROUPS_QUALIFIED_BY_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, nt4Name);
-                    groupNames.put(TOKEN_GROUPS_QUALIFIED_BY_LONG_DOMAIN_NAME_VIRTUAL_ATTRIBUTE_NAME, longName);
-                    groupNames.put(TOKEN_GROUPS_UNQUALIFIED_NAME_VIRTUAL_ATTRIBUTE_NAME, samAccountName);
-
-                    returnValue.put(groupSid, groupNames);
+        if (currentIndex == null && loadingIndex == null) {
+            return;
+        }
+        String normalUserBase = userSearchBasePath == null ? "" : userSearchBasePath.toUpperCase();
+        Set<String> staleDistinguishedNames = new HashSet<>();
+        for (Set<String> changedNames : Arrays.asList(changes.userDistinguishedNames, changes.memberDistinguishedNames)) {
+            for (String distinguishedName : changedNames) {
+                if (distinguishedName.endsWith(normalUserBase)) {
+                    staleDistinguishedNames.add(distinguishedName);
                 }
             }
-        } catch (NamingException searchError) {
-            String errorMessage = "Problem finding groups by SID: " + searchError;
-            if (sysLogger.isDebugEnabled()) {
-                sysLogger.debug(errorMessage, searchError);
+        }
+        for (SecurityIdentifier groupSid : changes.affectedGroupSids) {
+            int groupId = groupDictionary.groupId(groupSid);
+            if (groupId == GroupDictionary.NO_ID
+                    || (currentIndex != null && !currentIndex.addMemberNames(groupId, staleDistinguishedNames))
+                    || (loadingIndex != null && !loadingIndex.addMemberNames(groupId, staleDistinguishedNames))) {
+                scheduleUserRoleIndexLoad();
+                return;
             }
-        } finally {
-            JNDIUtil.closeNamingEnumeration(groupsAnswer);
         }
-
-        return returnValue;
+        if (staleDistinguishedNames.size() > getLongProperty(USER_ROLE_INDEX_MAX_GROUP_SIZE, 5000)) {
+            scheduleUserRoleIndexLoad();
+            return;
+        }
+        //a base search with the list filter, so users that no longer match it
+        //leave the index
+        SearchControls userSearchCtls = new SearchControls();
+        userSearchCtls.setSearchScope(SearchControls.OBJECT_SCOPE);
+        userSearchCtls.setReturningAttributes(new String[]{userNameAttributeName, tokenGroupAttributeName});
+        String userListFilter = getUserListFilter();
+        Set<SecurityIdentifier> newGroupSids = new HashSet<>();
+        for (String userDistinguishedName : staleDistinguishedNames) {
+            String userName = null;
+            int[] groupIds = null;
+            NamingEnumeration<SearchResult> userAnswer = null;
+            try {
+                userAnswer = dirContext.search(userDistinguishedName, userListFilter, userSearchCtls);
+                if (userAnswer.hasMore()) {
+                    Attributes userAttributes = userAnswer.next().getAttributes();
+                    Attribute userNameAttribute = userAttributes == null ? null : userAttributes.get(userNameAttributeName);
+                    List<SecurityIdentifier> groupSids = getTokenGroupSids(userAttributes);
+                    userName = userNameAttribute == null ? null : (String) userNameAttribute.get();
+                    groupIds = groupDictionary.groupIds(groupSids);
+                    newGroupSids.addAll(groupSids);
+                }
+            } catch (NameNotFoundException deleted) {
+                //gone, take it out
+            } finally {
+                JNDIUtil.closeNamingEnumeration(userAnswer);
+            }
+            for (UserRoleIndex index : Arrays.asList(currentIndex, loadingIndex)) {
+                if (index == null) {
+                    continue;
+                }
+                if (userName != null && groupIds != null) {
+                    if (!index.update(userDistinguishedName, userName, groupIds) && index == currentIndex) {
+                        //it emptied itself, a new one is the only way back
+                        scheduleUserRoleIndexLoad();
+                    }
+                } else {
+                    index.remove(userDistinguishedName);
+                }
+            }
+        }
+        //names any groups the index has not seen before
+        getNamesForTokenGroups(new ArrayList<>(newGroupSids));
+        if (sysLogger.isDebugEnabled()) {
+            sysLogger.debug("ADFSCompatibleADUserStore user role index read " + staleDistinguishedNames.size() + " changed users");
+        }
     }
-
     //</editor-fold>
-    
+
     //<editor-fold defaultstate="collapsed" desc="naming context and netbios names and ldap lookups">
     /**
      * Lookup user distinguishedName in cache or AD
@@ -699,13 +3259,22 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
      * @return
      * @throws UserStoreException
      */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
     String getUserDistinguishedName(String userName, DirContext dirContext) throws UserStoreException {
         String returnValue = userNameUserDistinguishedNameCache.get(userName);
         if (returnValue == null) {
+            String unknownKey = userName.toUpperCase();
+            if (isUnknownUser(unknownKey)) {
+                return null;
+            }
             String[] propertyNames = new String[]{DISTINGUISHED_NAME};
             Map<String, String> userProps = getUserPropertyValuesInternal(userName, propertyNames, dirContext);
             returnValue = userProps.get(DISTINGUISHED_NAME);
-            userNameUserDistinguishedNameCache.put(userName, returnValue);
+            if (returnValue == null) {
+                rememberUnknownUser(unknownKey);
+            } else {
+                userNameUserDistinguishedNameCache.put(userName, returnValue);
+            }
         }
         return returnValue;
     }
@@ -717,10 +3286,15 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
      * @return
      */
     String getConfigurationNamingContext(DirContext dirContext) {
-        String returnValue = "";
+        String returnValue = configurationNamingContext;
+        if (returnValue != null) {
+            return returnValue;
+        }
+        returnValue = "";
         try {
             Attributes rootAttributes = dirContext.getAttributes("", new String[]{"configurationNamingContext",});
             returnValue = (String) rootAttributes.get("configurationNamingContext").get();
+            configurationNamingContext = returnValue;
         } catch (NamingException attributeError) {
             if (sysLogger.isDebugEnabled()) {
                 String errorMessage = "Error occurred in getNamingContext " + attributeError;
@@ -730,6 +3304,31 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         return returnValue;
     }
 
+    /**
+     * reads every domain crossRef in the forest into a new index and swaps it
+     * in, readers keep using the old one until then. If the read fails we
+     * keep the index we have
+     */
+    void loadDomainPartitionIndex() {
+        DirContext dirContext = null;
+        try {
+            dirContext = domainControllers.borrow();
+            String namingContext = getConfigurationNamingContext(dirContext);
+            if (namingContext != null && namingContext.length() > 0) {
+                DomainPartitionIndex loadedIndex = DomainPartitionIndex.load(dirContext, namingContext, ldapPageSize);
+                domainPartitionIndex = loadedIndex;
+                domainPartitionLoadCount.incrementAndGet();
+                if (sysLogger.isDebugEnabled()) {
+                    sysLogger.debug("ADFSCompatibleADUserStore loaded " + loadedIndex.size() + " domains from " + namingContext);
+                }
+            }
+        } catch (NamingException | UserStoreException loadError) {
+            sysLogger.warn("ADFSCompatibleADUserStore could not load the domain partitions, domains will be looked up as needed", loadError);
+        } finally {
+            domainControllers.release(dirContext);
+        }
+    }
+
     /**
      * Returns the netbios and fully qualified name from cache or AD element 0
      * is the netbios name, element 1 is the FQDN
@@ -745,7 +3344,7 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         NamingEnumeration configAnswer = null;
 
         try {
-            dirContext = this.connectionSource.getContext();
+            dirContext = domainControllers.borrow();
             String namingContext = getConfigurationNamingContext(dirContext);
             if (namingContext != null && namingContext.length() > 0) {
                 String configPath = "CN=Partitions," + namingContext;
@@ -756,6 +3355,7 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
                 searchCtls.setReturningAttributes(returnedAtts);
                 try {
                     configAnswer = dirContext.search(configPath, searchFilter, searchCtls);
+                    boolean foundDomain = false;
                     //we should only get one, unless replication has one staged
                     while (configAnswer.hasMoreElements()) {
                         SearchResult configResult = (SearchResult) configAnswer.next();
@@ -767,9 +3367,16 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
                             if (dnsRoot != null && nETBIOSName != null) {
                                 returnValue[0] = nETBIOSName.toUpperCase();
                                 returnValue[1] = dnsRoot.toUpperCase();
+                                foundDomain = true;
                             }
                         }
                     }
+                    if (!foundDomain) {
+                        //the search worked and there is no such domain, unlike an
+                        //error this will not fix itself on the next try
+                        sysLogger.warn("ADFSCompatibleADUserStore found no crossRef for " + domainPath + " under " + configPath);
+                        rememberUnknownDomain(domainPath.toUpperCase());
+                    }
                 } catch (NamingException searchError) {
                     String errorMessage = "Problem finding configuration by path " + domainPath;
                     if (sysLogger.isDebugEnabled()) {
@@ -783,34 +3390,30 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
                 sysLogger.debug(errorMessage, e);
             }
         } finally {
-            try {
-                JNDIUtil.closeNamingEnumeration(configAnswer);
-                JNDIUtil.closeContext(dirContext);
-            } catch (UserStoreException e) {
-
-                if (sysLogger.isDebugEnabled()) {
-                    String errorMessage = "Error cleaning up from getDomainNamesFromLDAP : " + domainPath;
-                    sysLogger.debug(errorMessage, e);
-                }
-            }
-
+            JNDIUtil.closeNamingEnumeration(configAnswer);
+            domainControllers.release(dirContext);
         }
         return returnValue;
     }
 
     /**
-     * Returns the netbios or fully qualified name from cache or LDAP, these
-     * cannot be change in an AD forest, so we can cache them forever in a
-     * single domain, we will only have two entries, in a forest we will have
-     * one for each domain
+     * Returns the netbios or fully qualified name from the partition index,
+     * or failing that from cache or LDAP, these cannot be change in an AD
+     * forest, so we can cache them forever in a single domain, we will only
+     * have two entries, in a forest we will have one for each domain
      *
      * @param distinguishedName
      * @param returnFQDN
      * @return
      */
+    @SuppressFBWarnings("DM_CONVERT_CASE")//justification: usage is correct
     String getDomainNameFromDistinguishedName(String distinguishedName, boolean returnFQDN) {
         String returnValue = "UNKNOWN";
         String domainPath = domainPathFromDistinguishedName(distinguishedName);
+        String[] indexedNames = domainPartitionIndex.lookup(domainPath);
+        if (indexedNames != null) {
+            return returnFQDN ? indexedNames[1] : indexedNames[0];
+        }
         String cacheKey = domainPath;
         if (domainPath.length() > 0) {
             if (returnFQDN) {
@@ -820,7 +3423,7 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
             }
             returnValue = (String) domainNameCache.get(cacheKey);
         }
-        if (returnValue == null || returnValue.length() == 0) {
+        if ((returnValue == null || returnValue.length() == 0) && !isUnknownDomain(domainPath.toUpperCase())) {
             //not found in cache so get them and cache them , they dont change
             //so we dont need to put them in an expiring cache
             String[] domainNames = getDomainNamesFromLDAP(domainPath);
@@ -848,12 +3451,120 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
 
     //<editor-fold defaultstate="collapsed" desc="escaping and stringifying utilities">
     /**
-     * returns the segment of the domain path that starts at DC=
+     * returns the segment of the domain path that starts at DC=, memoized per
+     * distinguished name. Ordinary DNs are scanned in place, anything unusual
+     * in the DC= part goes through LdapName the way it always has
      *
      * @param distinguishedName
      * @return
      */
     static String domainPathFromDistinguishedName(String distinguishedName) {
+        if (distinguishedName == null) {
+            return "";
+        }
+        String returnValue = domainPathCache.get(distinguishedName);
+        if (returnValue == null) {
+            returnValue = scanDomainPath(distinguishedName);
+            if (returnValue == null) {
+                returnValue = domainPathFromLdapName(distinguishedName);
+            }
+            domainPathCache.put(distinguishedName, returnValue);
+        }
+        return returnValue;
+    }
+
+    /**
+     * finds the DC= suffix by walking the RDNs from the right without parsing
+     * the name, it gives the same answer as domainPathFromLdapName when every
+     * DC= RDN is plain letters, digits and dashes with no spaces around it,
+     * which is how AD writes them
+     *
+     * @param distinguishedName
+     * @return the suffix, "" if there is none, or null if the name needs
+     * domainPathFromLdapName
+     */
+    static String scanDomainPath(String distinguishedName) {
+        int suffixStart = distinguishedName.length();
+        int rdnEnd = distinguishedName.length();
+        while (rdnEnd > 0) {
+            //find the comma that starts this RDN, skipping escaped ones
+            int rdnStart = rdnEnd - 1;
+            while (rdnStart >= 0) {
+                char nameChar = distinguishedName.charAt(rdnStart);
+                if (nameChar == '"' || nameChar == ';') {
+                    //quoted values and the old separator, let LdapName sort them out
+                    return null;
+                }
+                if (nameChar == ',' && !isEscaped(distinguishedName, rdnStart)) {
+                    break;
+                }
+                rdnStart--;
+            }
+            rdnStart++;
+            int rdnKind = domainComponentKind(distinguishedName, rdnStart, rdnEnd);
+            if (rdnKind < 0) {
+                return null;
+            }
+            if (rdnKind == 0) {
+                //once we are past the DC= we dont need to evaluate any more
+                break;
+            }
+            suffixStart = rdnStart;
+            rdnEnd = rdnStart - 1;
+        }
+        return suffixStart == distinguishedName.length() ? "" : distinguishedName.substring(suffixStart);
+    }
+
+    /**
+     * true if the character is preceded by an odd number of backslashes
+     */
+    private static boolean isEscaped(String distinguishedName, int charIndex) {
+        int backslashCount = 0;
+        for (int i = charIndex - 1; i >= 0 && distinguishedName.charAt(i) == '\\'; i--) {
+            backslashCount++;
+        }
+        return (backslashCount & 1) == 1;
+    }
+
+    /**
+     * 1 if the RDN is a plain DC= (or dc=) component, 0 if it is some other
+     * attribute, -1 if it needs a real parser, which includes any other case
+     * of DC
+     */
+    private static int domainComponentKind(String distinguishedName, int rdnStart, int rdnEnd) {
+        if (rdnEnd - rdnStart < 3) {
+            return rdnEnd > rdnStart && distinguishedName.charAt(rdnStart) == ' ' ? -1 : 0;
+        }
+        char first = distinguishedName.charAt(rdnStart);
+        if (first == ' ' || distinguishedName.charAt(rdnEnd - 1) == ' ') {
+            return -1;
+        }
+        if (!distinguishedName.startsWith("DC=", rdnStart) && !distinguishedName.startsWith("dc=", rdnStart)) {
+            //a mixed case Dc=, or a type with spaces before the =, could still
+            //be DC
+            char separator = distinguishedName.charAt(rdnStart + 2);
+            return distinguishedName.regionMatches(true, rdnStart, "DC", 0, 2) && (separator == '=' || separator == ' ') ? -1 : 0;
+        }
+        if (rdnEnd - rdnStart == 3) {
+            return -1;
+        }
+        for (int i = rdnStart + 3; i < rdnEnd; i++) {
+            char valueChar = distinguishedName.charAt(i);
+            if (!Character.isLetterOrDigit(valueChar) && valueChar != '-' && valueChar != '_') {
+                return -1;
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * returns the segment of the domain path that starts at DC=, by parsing
+     * the whole name
+     *
+     * @param distinguishedName
+     * @return
+     */
+    static String domainPathFromLdapName(String distinguishedName) {
         String returnValue = "";
         String rdnSeperator = "";
         try {
@@ -877,28 +3588,43 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
     }
 
     /**
-     * creates single delimited string from an array of values in all of the
-     * mapped collections
+     * creates a single delimited string for each format from the group names
+     * of all of the groups, walking the groups once for all of the formats
      *
      * @param nameMap
-     * @param keyName
-     * @return
+     * @param formats
+     * @return the strings indexed by TokenGroupFormat, null for formats not
+     * asked for
      */
-    String assembleStringifiedValue(Map<String, Map<String, String>> nameMap, String keyName) {
-
-        List<String> itemValues = new ArrayList<>();
-        for (Map.Entry<String, Map<String, String>> entry : nameMap.entrySet()) {
-            Map<String, String> groupNames = entry.getValue();
-            String itemValue = groupNames.get(keyName);
-            if (itemValue != null && itemValue.length() > 0) {
-                itemValues.add(itemValue);
+    private String[] assembleTokenGroupClaims(Map<?, Map<String, String>> nameMap, Set<TokenGroupFormat> formats) {
+        TokenGroupFormat[] wantedFormats = formats.toArray(new TokenGroupFormat[formats.size()]);
+        StringBuilder[] claimBuilders = new StringBuilder[wantedFormats.length];
+        for (int i = 0; i < wantedFormats.length; i++) {
+            claimBuilders[i] = new StringBuilder(nameMap.size() * (wantedFormats[i].typicalLength + multiValueAttributeSeparator.length()));
+        }
+        for (Map<String, String> groupNames : nameMap.values()) {
+            for (int i = 0; i < wantedFormats.length; i++) {
+                String itemValue = groupNames.get(wantedFormats[i].groupNameKey);
+                if (itemValue != null && itemValue.length() > 0) {
+                    if (claimBuilders[i].length() > 0) {
+                        claimBuilders[i].append(multiValueAttributeSeparator);
+                    }
+                    claimBuilders[i].append(itemValue);
+                }
             }
         }
-        return String.join(multiValueAttributeSeparator, itemValues);
+        String[] returnValue = new String[TokenGroupFormat.values().length];
+        for (int i = 0; i < wantedFormats.length; i++) {
+            returnValue[wantedFormats[i].ordinal()] = claimBuilders[i].toString();
+        }
+        return returnValue;
     }
 
     /**
      * Converts Windows SID to a String. NULL input returns NULL. Invalid byte
+     * arrays return INVALID SID. The bytes are decoded in place and the
+     * domain part of the string is shared by every SID in the domain, so only
+     * the relative id is formatted each time
      *
      * @param sid
      * @return
@@ -910,16 +3636,18 @@ public class ADFSCompatibleADUserStore extends ActiveDirectoryUserStoreManager {
         if (sid.length < 8 || sid.length % 4 != 0) {
             return "INVALID SID";
         }
-        StringBuilder returnValue = new StringBuilder();
-        returnValue.append("S-").append(sid[0]);
         int subAuthCount = sid[1]; // Init with Subauthority Count.
-        ByteBuffer sidBytes = ByteBuffer.wrap(sid); // default big endian.
-        returnValue.append("-").append((long) sidBytes.getLong() & 0XFFFFFFFFFFFFL);
-        sidBytes.order(ByteOrder.LITTLE_ENDIAN); // Now switch.
-        for (int i = 0; i < subAuthCount; i++) { // Create Subauthorities.
-            returnValue.append("-").append((long) sidBytes.getInt() & 0xFFFFFFFFL);
+        if (subAuthCount > (sid.length - 8) / 4) {
+            //same as we used to get reading past the end with a ByteBuffer
+            throw new BufferUnderflowException();
+        }
+        if (subAuthCount < 1) {
+            return "S-" + sid[0] + "-" + SecurityIdentifier.readIdentifierAuthority(sid);
         }
-        return returnValue.toString();
+        String domainPrefix = SecurityIdentifier.domainPrefix(sid, subAuthCount);
+        long relativeId = SecurityIdentifier.readSubAuthority(sid, subAuthCount - 1) & 0xFFFFFFFFL;
+        //the longest relative id is ten digits
+        return new StringBuilder(domainPrefix.length() + 11).append(domainPrefix).append('-').append(relativeId).toString();
     }
 
     /**
@@ -0,0 +1,75 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  picks the number of SIDs we put in one (|(objectSid=...)) search from how
+ *  long the recent searches took, so fast LAN links get fewer, larger
+ *  searches and slow remote links get smaller ones
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * additive increase, multiplicative decrease batch sizing between a minimum
+ * and maximum
+ *
+ * @author robert.ginsburg
+ */
+final class AdaptiveBatchSizer {
+
+    //SIDs added to the batch after each fast search
+    private static final int INCREASE_STEP = 10;
+    private final int minimumBatchSize;
+    private final int maximumBatchSize;
+    private final long targetMilliseconds;
+    private final AtomicInteger currentBatchSize;
+
+    /**
+     * CTOR
+     *
+     * @param minimumBatchSize
+     * @param initialBatchSize
+     * @param maximumBatchSize
+     * @param targetMilliseconds how long we want one search to take
+     */
+    AdaptiveBatchSizer(int minimumBatchSize, int initialBatchSize, int maximumBatchSize, long targetMilliseconds) {
+        this.minimumBatchSize = Math.max(1, minimumBatchSize);
+        this.maximumBatchSize = Math.max(this.minimumBatchSize, maximumBatchSize);
+        this.targetMilliseconds = Math.max(1, targetMilliseconds);
+        this.currentBatchSize = new AtomicInteger(clamp(initialBatchSize));
+    }
+
+    /**
+     * @return the number of SIDs to put in the next search
+     */
+    int batchSize() {
+        return currentBatchSize.get();
+    }
+
+    /**
+     * records how a search went. A search that ran over the target shrinks the
+     * batch by a third. A full batch that found groups and ran in under half
+     * the target grows it by INCREASE_STEP SIDs. A batch that found nothing tells us
+     * little about the cost of returning results, so it only ever shrinks
+     *
+     * @param batchSize SIDs in the search
+     * @param resultCount groups it returned
+     * @param elapsedMilliseconds
+     */
+    void record(int batchSize, int resultCount, long elapsedMilliseconds) {
+        int current = currentBatchSize.get();
+        int next = current;
+        if (elapsedMilliseconds > targetMilliseconds) {
+            next = clamp(Math.min(current, batchSize) * 2 / 3);
+        } else if (elapsedMilliseconds * 2 < targetMilliseconds && batchSize >= current && resultCount > 0) {
+            next = clamp(current + INCREASE_STEP);
+        }
+        if (next != current) {
+            //if someone else adjusted it meanwhile, their measurement is as good as ours
+            currentBatchSize.compareAndSet(current, next);
+        }
+    }
+
+    private int clamp(int batchSize) {
+        return Math.max(minimumBatchSize, Math.min(maximumBatchSize, batchSize));
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  a shared monotonic millisecond clock that is advanced by a single daemon
+ *  thread, so cache reads can check expiration with a volatile read instead
+ *  of a system call and a new Date(). The thread only runs while a store is
+ *  using the clock, so a bundle restart does not leave it behind
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * coarse monotonic clock, resolution is TICK_MILLISECONDS while it is
+ * started. Each store starts it when it initializes and stops it when it
+ * shuts down, when no store has it started every read is a precise one
+ *
+ * @author robert.ginsburg
+ */
+final class CoarseClock {
+
+    static final long TICK_MILLISECONDS = 100;
+    private static final long ORIGIN = System.nanoTime();
+    private static volatile long currentMillis = 0;
+    private static volatile boolean running;
+    //guarded by CoarseClock.class
+    private static int userCount;
+    private static Timer clockTimer;
+
+    private CoarseClock() {
+    }
+
+    /**
+     * starts the ticking thread if this is the first user, each start must be
+     * matched by a stop
+     */
+    static synchronized void start() {
+        if (userCount++ > 0) {
+            return;
+        }
+        tick();
+        clockTimer = new Timer("ADFSCompatibleADUserStore-clock", true);
+        clockTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, TICK_MILLISECONDS, TICK_MILLISECONDS);
+        running = true;
+    }
+
+    /**
+     * stops the ticking thread when the last user is done with it
+     */
+    static synchronized void stop() {
+        if (userCount == 0 || --userCount > 0) {
+            return;
+        }
+        running = false;
+        clockTimer.cancel();
+        clockTimer = null;
+    }
+
+    /**
+     * the number of starts that have not been stopped yet
+     *
+     * @return
+     */
+    static synchronized int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * milliseconds since the clock was loaded, never goes backwards and does
+     * not follow wall clock adjustments
+     *
+     * @return
+     */
+    static long currentTimeMillis() {
+        return running ? currentMillis : tick();
+    }
+
+    /**
+     * advances the clock to the precise time, also used by maintenance work
+     * that does not want to wait for the next tick
+     *
+     * @return
+     */
+    static synchronized long tick() {
+        long preciseMillis = (System.nanoTime() - ORIGIN) / 1000000L;
+        if (preciseMillis > currentMillis) {
+            currentMillis = preciseMillis;
+        }
+        return currentMillis;
+    }
+}
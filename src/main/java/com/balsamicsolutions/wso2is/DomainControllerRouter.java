@@ -0,0 +1,419 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  spreads LDAP work over several domain controllers, sending it to the one
+ *  that has been answering fastest and moving it away from one that is slow
+ *  or failing, so a single degraded domain controller does not slow down
+ *  every login
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * one connection pool per domain controller, each with a moving average of
+ * its latency and error rate. A borrow goes to the domain controller with
+ * the best score, staying with the current one unless another is clearly
+ * better so the traffic does not flap between equals. A domain controller
+ * that fails several times in a row is quarantined, it gets no traffic until
+ * the quarantine is over or a health probe gets an answer from it again
+ *
+ * @author robert.ginsburg
+ */
+final class DomainControllerRouter {
+
+    private static final Log sysLogger = LogFactory.getLog(DomainControllerRouter.class);
+    //weight of each new sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+    //how much errors count against the latency, an error rate of 10% makes
+    //a domain controller look twice as slow
+    private static final double ERROR_PENALTY = 10.0;
+    //another domain controller has to score this much better before we move
+    private static final double SWITCH_RATIO = 0.8;
+    //the probe only times a root DSE read, the searches the store does are
+    //timed too and compared with what is normal for that domain controller.
+    //Searches vary more than probes, so one slow one should not count for
+    //much, and the baseline moves slower still so a slowdown shows up
+    //against it
+    private static final double OPERATION_SMOOTHING = 0.05;
+    private static final double BASELINE_SMOOTHING = 0.01;
+    //searches have to be this much slower than normal before it counts,
+    //a busy moment should not move the traffic
+    private static final double SLOWDOWN_THRESHOLD = 2.0;
+    //samples needed before there is a baseline to compare with
+    private static final int MINIMUM_OPERATIONS = 20;
+    //a slowdown is forgotten if there has been no search to confirm it,
+    //the domain controller then gets traffic again and is measured again
+    private static final long OPERATION_MEMORY_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final String[] PROBE_ATTRIBUTES = new String[]{"currentTime"};
+
+    /**
+     * a domain controller, its pool and its health
+     */
+    static final class DomainController {
+
+        private final String url;
+        private final LdapConnectionPool pool;
+        private final AtomicLong selectionCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        //guarded by this
+        private double latencyMillis = -1;
+        private double errorRate;
+        private int consecutiveFailures;
+        private long quarantinedUntil;
+        private double operationMillis;
+        private double baselineOperationMillis;
+        private long operationCount;
+        private long lastOperationAt;
+
+        DomainController(String url, LdapConnectionPool pool) {
+            this.url = url;
+            this.pool = pool;
+        }
+
+        String getUrl() {
+            return url;
+        }
+
+        LdapConnectionPool getPool() {
+            return pool;
+        }
+
+        long getSelectionCount() {
+            return selectionCount.get();
+        }
+
+        long getFailureCount() {
+            return failureCount.get();
+        }
+
+        /**
+         * the moving average latency, -1 until there has been a sample
+         *
+         * @return
+         */
+        synchronized double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized boolean isQuarantined(long now) {
+            return quarantinedUntil > now;
+        }
+
+        synchronized long getQuarantinedUntil() {
+            return quarantinedUntil;
+        }
+
+        /**
+         * how many times slower than normal the searches on it have been
+         * lately, 1 unless the slowdown is past the threshold
+         */
+        synchronized double getSlowdown() {
+            if (operationCount < MINIMUM_OPERATIONS || baselineOperationMillis <= 0
+                    || System.currentTimeMillis() - lastOperationAt > OPERATION_MEMORY_MILLIS) {
+                return 1;
+            }
+            double slowdown = operationMillis / baselineOperationMillis;
+            return slowdown < SLOWDOWN_THRESHOLD ? 1 : slowdown;
+        }
+
+        /**
+         * lower is better, a domain controller we have not measured yet
+         * scores zero so it gets tried
+         */
+        synchronized double score() {
+            return Math.max(0, latencyMillis) * (1 + ERROR_PENALTY * errorRate) * getSlowdown();
+        }
+
+        synchronized void recordOperation(double sampleMillis) {
+            if (operationCount++ == 0) {
+                operationMillis = sampleMillis;
+                baselineOperationMillis = sampleMillis;
+            } else {
+                operationMillis += OPERATION_SMOOTHING * (sampleMillis - operationMillis);
+                baselineOperationMillis += BASELINE_SMOOTHING * (sampleMillis - baselineOperationMillis);
+            }
+            lastOperationAt = System.currentTimeMillis();
+        }
+
+        synchronized void recordSuccess(double sampleMillis) {
+            latencyMillis = latencyMillis < 0 ? sampleMillis : latencyMillis + SMOOTHING * (sampleMillis - latencyMillis);
+            errorRate -= SMOOTHING * errorRate;
+            consecutiveFailures = 0;
+            if (quarantinedUntil > 0) {
+                quarantinedUntil = 0;
+                sysLogger.info("Domain controller " + url + " is answering again, latency " + Math.round(latencyMillis) + " ms");
+            }
+        }
+
+        /**
+         * @return true if this failure put the domain controller in quarantine
+         */
+        synchronized boolean recordFailure(int failureThreshold, long quarantineMillis) {
+            failureCount.incrementAndGet();
+            errorRate += SMOOTHING * (1 - errorRate);
+            consecutiveFailures++;
+            long now = System.currentTimeMillis();
+            if (consecutiveFailures >= failureThreshold && quarantinedUntil <= now) {
+                quarantinedUntil = now + quarantineMillis;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final List<DomainController> domainControllers;
+    private final int failureThreshold;
+    private final long quarantineMillis;
+    private volatile DomainController preferred;
+
+    /**
+     *
+     * @param domainControllers in order of preference when nothing has been
+     * measured yet
+     * @param failureThreshold failures in a row that quarantine a domain
+     * controller
+     * @param quarantineMillis how long it is quarantined for
+     */
+    DomainControllerRouter(List<DomainController> domainControllers, int failureThreshold, long quarantineMillis) {
+        this.domainControllers = Collections.unmodifiableList(new ArrayList<>(domainControllers));
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.quarantineMillis = quarantineMillis;
+        this.preferred = this.domainControllers.get(0);
+    }
+
+    /**
+     * a context on the best domain controller, or the context this thread
+     * already has if it has not released it yet. If the best domain
+     * controller cannot give us one we fail over to the next best
+     *
+     * @return
+     * @throws UserStoreException if no domain controller could give us one
+     */
+    DirContext borrow() throws UserStoreException {
+        for (DomainController domainController : domainControllers) {
+            if (domainController.pool.isHeldByCurrentThread()) {
+                return domainController.pool.borrow();
+            }
+        }
+        List<DomainController> tried = new ArrayList<>(domainControllers.size());
+        UserStoreException lastError = null;
+        DomainController domainController;
+        while ((domainController = select(tried)) != null) {
+            tried.add(domainController);
+            try {
+                DirContext dirContext = domainController.pool.borrow();
+                domainController.selectionCount.incrementAndGet();
+                return dirContext;
+            } catch (LdapConnectionPool.PoolExhaustedException exhausted) {
+                //busy, not broken, spill over to the next one
+                lastError = exhausted;
+            } catch (UserStoreException connectError) {
+                lastError = connectError;
+                recordFailure(domainController);
+            }
+        }
+        throw lastError != null ? lastError : new UserStoreException("No domain controller is available");
+    }
+
+    /**
+     * a context for change tracking. USNs are local to a domain controller,
+     * so this is the first one in configured order that is not quarantined,
+     * whatever the scores say, and the next one only while it is down. A
+     * busy pool is not a reason to move, the caller tries again later
+     *
+     * @return
+     * @throws UserStoreException if no domain controller could give us one
+     */
+    DirContext borrowForChangeTracking() throws UserStoreException {
+        long now = System.currentTimeMillis();
+        UserStoreException lastError = null;
+        for (DomainController domainController : domainControllers) {
+            if (domainController.isQuarantined(now)) {
+                continue;
+            }
+            try {
+                return domainController.pool.borrow();
+            } catch (LdapConnectionPool.PoolExhaustedException exhausted) {
+                throw exhausted;
+            } catch (UserStoreException connectError) {
+                lastError = connectError;
+                recordFailure(domainController);
+            }
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+        //all of them are quarantined, the first one is as good as any
+        return domainControllers.get(0).pool.borrow();
+    }
+
+    /**
+     * gives back a borrowed context to the pool it came from
+     *
+     * @param dirContext may be null
+     */
+    void release(DirContext dirContext) {
+        if (dirContext == null) {
+            return;
+        }
+        for (DomainController domainController : domainControllers) {
+            if (domainController.pool.isHeldByCurrentThread(dirContext)) {
+                domainController.pool.release(dirContext);
+                return;
+            }
+        }
+        //released twice or on the wrong thread, the pool that owns it says so
+        for (DomainController domainController : domainControllers) {
+            if (domainController.pool.owns(dirContext)) {
+                domainController.pool.release(dirContext);
+                return;
+            }
+        }
+        //not a context from any of our pools
+        LdapConnectionPool.closeUnpooled(dirContext);
+    }
+
+    /**
+     * counts a connection failure against the domain controller of a context
+     * this thread has borrowed, the context is closed when it is released
+     *
+     * @param dirContext
+     */
+    void reportFailure(DirContext dirContext) {
+        for (DomainController domainController : domainControllers) {
+            if (domainController.pool.isHeldByCurrentThread(dirContext)) {
+                domainController.pool.invalidate(dirContext);
+                recordFailure(domainController);
+                return;
+            }
+        }
+    }
+
+    /**
+     * counts how long a search on a context this thread has borrowed took
+     * against its domain controller, so one that answers the probe but is
+     * slow with real work loses its traffic
+     *
+     * @param dirContext
+     * @param startNanos System.nanoTime() from before the search
+     */
+    void recordOperation(DirContext dirContext, long startNanos) {
+        for (DomainController domainController : domainControllers) {
+            if (domainController.pool.isHeldByCurrentThread(dirContext)) {
+                domainController.recordOperation(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos) / 1000.0);
+                return;
+            }
+        }
+    }
+
+    /**
+     * times a root DSE read on every domain controller, quarantined ones
+     * included so we notice when they come back. Called from the store's
+     * timer
+     */
+    void probe() {
+        for (DomainController domainController : domainControllers) {
+            DirContext dirContext = null;
+            try {
+                dirContext = domainController.pool.borrow();
+                long probeStart = System.nanoTime();
+                dirContext.getAttributes("", PROBE_ATTRIBUTES);
+                domainController.recordSuccess(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - probeStart) / 1000.0);
+            } catch (LdapConnectionPool.PoolExhaustedException exhausted) {
+                //every connection is busy, so it is answering
+            } catch (NamingException | UserStoreException probeError) {
+                if (dirContext != null) {
+                    domainController.pool.invalidate(dirContext);
+                }
+                recordFailure(domainController);
+                if (sysLogger.isDebugEnabled()) {
+                    sysLogger.debug("Health probe of domain controller " + domainController.url + " failed", probeError);
+                }
+            } finally {
+                domainController.pool.release(dirContext);
+            }
+        }
+    }
+
+    /**
+     * idle maintenance of every pool
+     */
+    void maintain() {
+        for (DomainController domainController : domainControllers) {
+            domainController.pool.maintain();
+        }
+    }
+
+    void close() {
+        for (DomainController domainController : domainControllers) {
+            domainController.pool.close();
+        }
+    }
+
+    List<DomainController> getDomainControllers() {
+        return domainControllers;
+    }
+
+    /**
+     * the best domain controller we have not tried yet, the preferred one
+     * unless another scores clearly better. If they are all quarantined the
+     * one that comes out of quarantine first, trying it beats failing
+     */
+    private DomainController select(List<DomainController> tried) {
+        long now = System.currentTimeMillis();
+        DomainController best = null;
+        double bestScore = Double.MAX_VALUE;
+        DomainController leastQuarantined = null;
+        for (DomainController domainController : domainControllers) {
+            if (tried.contains(domainController)) {
+                continue;
+            }
+            if (domainController.isQuarantined(now)) {
+                if (leastQuarantined == null || domainController.getQuarantinedUntil() < leastQuarantined.getQuarantinedUntil()) {
+                    leastQuarantined = domainController;
+                }
+                continue;
+            }
+            double score = domainController.score();
+            if (score < bestScore) {
+                best = domainController;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            return leastQuarantined;
+        }
+        DomainController current = preferred;
+        if (current != best && !tried.contains(current) && !current.isQuarantined(now)
+                && bestScore >= SWITCH_RATIO * current.score()) {
+            return current;
+        }
+        if (current != best && tried.isEmpty()) {
+            preferred = best;
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Moving LDAP traffic from " + current.url + " to domain controller " + best.url);
+            }
+        }
+        return best;
+    }
+
+    private void recordFailure(DomainController domainController) {
+        if (domainController.recordFailure(failureThreshold, quarantineMillis)) {
+            sysLogger.warn("Domain controller " + domainController.url + " failed " + failureThreshold
+                    + " times in a row, moving LDAP traffic away from it for " + TimeUnit.MILLISECONDS.toSeconds(quarantineMillis) + " seconds");
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  every domain partition (crossRef) in the forest, keyed by the DC= suffix
+ *  of its naming context, so the domain names for a distinguished name can
+ *  be found without going to AD
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+
+/**
+ * immutable map of domain naming context to netbios and fully qualified
+ * domain name, it is replaced as a whole when it is reloaded
+ *
+ * @author robert.ginsburg
+ */
+final class DomainPartitionIndex {
+
+    static final DomainPartitionIndex EMPTY = new DomainPartitionIndex(Collections.<String, String[]>emptyMap());
+    //only domain partitions have a netbios name, this leaves out the
+    //configuration, schema and application partitions
+    private static final String DOMAIN_CROSS_REF_FILTER = "(&(objectClass=crossRef)(nETBIOSName=*))";
+
+    //normalized nCName -> {NETBIOS, FQDN}, upper case like the lookups return them
+    private final Map<String, String[]> domainNames;
+
+    private DomainPartitionIndex(Map<String, String[]> domainNames) {
+        this.domainNames = domainNames;
+    }
+
+    /**
+     * reads every domain crossRef under CN=Partitions
+     *
+     * @param dirContext
+     * @param configurationNamingContext
+     * @param pageSize
+     * @return
+     * @throws NamingException
+     */
+    static DomainPartitionIndex load(DirContext dirContext, String configurationNamingContext, int pageSize) throws NamingException {
+        Map<String, String[]> loadedNames = new HashMap<>();
+        SearchControls searchCtls = new SearchControls();
+        searchCtls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        searchCtls.setReturningAttributes(new String[]{"dnsRoot", "nETBIOSName", "nCName"});
+        LdapPagedSearch.search(dirContext, "CN=Partitions," + configurationNamingContext, DOMAIN_CROSS_REF_FILTER, searchCtls, pageSize, configResult -> {
+            Attributes configAttributes = configResult.getAttributes();
+            String nCName = getString(configAttributes, "nCName");
+            String dnsRoot = getString(configAttributes, "dnsRoot");
+            String nETBIOSName = getString(configAttributes, "nETBIOSName");
+            if (nCName != null && dnsRoot != null && nETBIOSName != null) {
+                loadedNames.put(normalize(nCName), new String[]{nETBIOSName.toUpperCase(Locale.ENGLISH), dnsRoot.toUpperCase(Locale.ENGLISH)});
+            }
+            return true;
+        });
+        return new DomainPartitionIndex(Collections.unmodifiableMap(loadedNames));
+    }
+
+    /**
+     * the names of the domain with the naming context
+     *
+     * @param domainPath the DC= suffix of a distinguished name
+     * @return {NETBIOS, FQDN}, or null if the forest has no such domain or
+     * the index has not been loaded. Do not change it
+     */
+    String[] lookup(String domainPath) {
+        if (domainPath == null || domainPath.isEmpty() || domainNames.isEmpty()) {
+            return null;
+        }
+        return domainNames.get(normalize(domainPath));
+    }
+
+    /**
+     * the number of domains
+     *
+     * @return
+     */
+    int size() {
+        return domainNames.size();
+    }
+
+    private static String getString(Attributes configAttributes, String attributeName) throws NamingException {
+        Attribute configAttribute = configAttributes == null ? null : configAttributes.get(attributeName);
+        return configAttribute == null ? null : (String) configAttribute.get();
+    }
+
+    /**
+     * upper case without spaces, DC= values are DNS labels so they never have
+     * any of their own
+     */
+    private static String normalize(String domainPath) {
+        StringBuilder normalPath = new StringBuilder(domainPath.length());
+        for (int i = 0; i < domainPath.length(); i++) {
+            char pathChar = domainPath.charAt(i);
+            if (pathChar != ' ') {
+                normalPath.append(Character.toUpperCase(pathChar));
+            }
+        }
+        return normalPath.toString();
+    }
+}
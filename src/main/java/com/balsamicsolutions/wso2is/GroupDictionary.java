@@ -0,0 +1,181 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  numbers every group the store has seen, so the groups of a user can be
+ *  kept as a sorted array of small ints and a role check is a binary search
+ *  instead of a walk over group names
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * group SID to id, and role name to the ids of the groups with that name. Ids
+ * are never reused, a group keeps its id for the life of the store. Role
+ * names are matched without regard to case, and more than one group can have
+ * the same name when they are in different domains
+ *
+ * @author robert.ginsburg
+ */
+final class GroupDictionary {
+
+    static final int NO_ID = -1;
+    //more groups than any forest we know of, past this groups get no id and
+    //callers fall back to comparing names
+    private static final int MAXIMUM_GROUPS = 1 << 20;
+    private static final int[] NO_IDS = new int[0];
+
+    private final Map<SecurityIdentifier, Integer> groupIds = new ConcurrentHashMap<>();
+    private final Map<Integer, String> groupRoleNames = new ConcurrentHashMap<>();
+    //a skip list so a lookup by a name in any case does not allocate
+    private final ConcurrentSkipListMap<String, int[]> roleGroupIds = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * the id of a group, one is given to it if it does not have one
+     *
+     * @param groupSid
+     * @return NO_ID if the dictionary is full
+     */
+    int groupId(SecurityIdentifier groupSid) {
+        Integer groupId = groupIds.get(groupSid);
+        if (groupId != null) {
+            return groupId;
+        }
+        if (nextId.get() >= MAXIMUM_GROUPS) {
+            return NO_ID;
+        }
+        return groupIds.computeIfAbsent(groupSid, key -> nextId.getAndIncrement());
+    }
+
+    /**
+     * the ids of the groups, sorted so they can be binary searched
+     *
+     * @param groupSids
+     * @return null if the dictionary is full
+     */
+    int[] groupIds(List<SecurityIdentifier> groupSids) {
+        if (groupSids.isEmpty()) {
+            return NO_IDS;
+        }
+        int[] returnValue = new int[groupSids.size()];
+        for (int i = 0; i < returnValue.length; i++) {
+            returnValue[i] = groupId(groupSids.get(i));
+            if (returnValue[i] == NO_ID) {
+                return null;
+            }
+        }
+        Arrays.sort(returnValue);
+        return returnValue;
+    }
+
+    /**
+     * records the role name of a group, if the group was renamed the old
+     * name no longer matches it
+     *
+     * @param groupSid
+     * @param roleName
+     */
+    void nameGroup(SecurityIdentifier groupSid, String roleName) {
+        int groupId = groupId(groupSid);
+        if (groupId == NO_ID || roleName == null) {
+            return;
+        }
+        String previousName = groupRoleNames.get(groupId);
+        if (roleName.equals(previousName)) {
+            return;
+        }
+        synchronized (roleGroupIds) {
+            previousName = groupRoleNames.put(groupId, roleName);
+            if (previousName != null) {
+                removeRoleGroupId(previousName, groupId);
+            }
+            int[] namedIds = roleGroupIds.get(roleName);
+            if (namedIds == null) {
+                roleGroupIds.put(roleName, new int[]{groupId});
+            } else if (indexOf(namedIds, groupId) < 0) {
+                int[] newIds = Arrays.copyOf(namedIds, namedIds.length + 1);
+                newIds[namedIds.length] = groupId;
+                roleGroupIds.put(roleName, newIds);
+            }
+        }
+    }
+
+    /**
+     * true if any group with the role name is in the sorted ids. Allocates
+     * nothing
+     *
+     * @param sortedGroupIds from groupIds
+     * @param roleName
+     * @return
+     */
+    boolean isMember(int[] sortedGroupIds, String roleName) {
+        int[] namedIds = roleGroupIds.get(roleName);
+        if (namedIds == null) {
+            return false;
+        }
+        for (int groupId : namedIds) {
+            if (Arrays.binarySearch(sortedGroupIds, groupId) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the ids of the groups with the role name
+     *
+     * @param roleName
+     * @return null if no group we have named has it. Do not change it
+     */
+    int[] roleGroupIds(String roleName) {
+        return roleGroupIds.get(roleName);
+    }
+
+    /**
+     * the number of groups with an id
+     *
+     * @return
+     */
+    int size() {
+        return groupIds.size();
+    }
+
+    /**
+     * the number of distinct role names
+     *
+     * @return
+     */
+    int roleNameCount() {
+        return roleGroupIds.size();
+    }
+
+    private void removeRoleGroupId(String roleName, int groupId) {
+        int[] namedIds = roleGroupIds.get(roleName);
+        int index = namedIds == null ? -1 : indexOf(namedIds, groupId);
+        if (index < 0) {
+            return;
+        }
+        if (namedIds.length == 1) {
+            roleGroupIds.remove(roleName);
+            return;
+        }
+        int[] newIds = new int[namedIds.length - 1];
+        System.arraycopy(namedIds, 0, newIds, 0, index);
+        System.arraycopy(namedIds, index + 1, newIds, index, newIds.length - index);
+        roleGroupIds.put(roleName, newIds);
+    }
+
+    private static int indexOf(int[] ids, int groupId) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == groupId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
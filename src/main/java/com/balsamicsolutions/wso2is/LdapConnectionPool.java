@@ -0,0 +1,431 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  keeps bound LDAP contexts open between requests, so a login does not pay
+ *  for a new connection and bind every time it needs to read from AD
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * bounded pool of directory contexts. A context is only ever used by one
+ * thread at a time, but a thread that borrows again before it has released
+ * gets the context it already has, so every lookup made while serving one
+ * request shares one connection. Idle contexts are checked with a root DSE
+ * read before they are handed out again and closed when they have been idle
+ * too long. A maximum size of zero or less turns pooling off, every borrow
+ * opens a context and every release closes it, as the store did before
+ *
+ * @author robert.ginsburg
+ */
+final class LdapConnectionPool {
+
+    private static final Log sysLogger = LogFactory.getLog(LdapConnectionPool.class);
+    //validation only needs an answer, not data
+    private static final String[] VALIDATION_ATTRIBUTES = new String[]{"currentTime"};
+
+    /**
+     * opens a new bound context
+     */
+    interface ContextFactory {
+
+        DirContext create() throws UserStoreException;
+    }
+
+    /**
+     * every context is in use and none came free in time, unlike other
+     * failures this says nothing about the health of the server
+     */
+    static final class PoolExhaustedException extends UserStoreException {
+
+        private static final long serialVersionUID = 1L;
+
+        PoolExhaustedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * an idle context and when it was last given back
+     */
+    private static final class PooledContext {
+
+        final DirContext dirContext;
+        final long idleSince;
+
+        PooledContext(DirContext dirContext, long idleSince) {
+            this.dirContext = dirContext;
+            this.idleSince = idleSince;
+        }
+    }
+
+    /**
+     * the context a thread has borrowed, and how many of its borrows have not
+     * been released yet
+     */
+    private static final class ThreadLease {
+
+        final DirContext dirContext;
+        int depth = 1;
+        boolean broken;
+
+        ThreadLease(DirContext dirContext) {
+            this.dirContext = dirContext;
+        }
+    }
+
+    private final String poolName;
+    private final ContextFactory contextFactory;
+    private final int minimumIdle;
+    private final int maximumSize;
+    private final long maximumIdleMillis;
+    private final long maximumWaitMillis;
+    private final long validateAfterIdleMillis;
+    private final Semaphore permits;
+    //most recently released first, so the warm ones are reused and the
+    //ones at the tail are the ones that go idle and get closed
+    private final ConcurrentLinkedDeque<PooledContext> idleContexts = new ConcurrentLinkedDeque<>();
+    private final ThreadLocal<ThreadLease> threadLeases = new ThreadLocal<>();
+    //every context this pool has open, idle or borrowed, so a release of
+    //one we did not lend can be told from a release of one we did
+    private final Set<DirContext> openContexts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger openCount = new AtomicInteger();
+    private final AtomicLong borrowCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong createCount = new AtomicLong();
+    private final AtomicLong closeCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong waitMillis = new AtomicLong();
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong validationFailureCount = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     *
+     * @param poolName used in log messages
+     * @param contextFactory
+     * @param minimumIdle idle contexts that are kept however long they are
+     * idle
+     * @param maximumSize contexts open at once, zero or less turns pooling off
+     * @param maximumIdleMillis idle contexts past the minimum are closed after
+     * this long
+     * @param maximumWaitMillis how long a borrow waits for a context when the
+     * pool is exhausted
+     * @param validateAfterIdleMillis contexts idle longer than this are
+     * checked before they are handed out, zero checks every time
+     */
+    LdapConnectionPool(String poolName, ContextFactory contextFactory, int minimumIdle, int maximumSize,
+            long maximumIdleMillis, long maximumWaitMillis, long validateAfterIdleMillis) {
+        this.poolName = poolName;
+        this.contextFactory = contextFactory;
+        this.maximumSize = maximumSize;
+        this.minimumIdle = Math.max(0, Math.min(minimumIdle, maximumSize));
+        this.maximumIdleMillis = maximumIdleMillis;
+        this.maximumWaitMillis = Math.max(0, maximumWaitMillis);
+        this.validateAfterIdleMillis = Math.max(0, validateAfterIdleMillis);
+        this.permits = maximumSize > 0 ? new Semaphore(maximumSize, true) : null;
+    }
+
+    /**
+     * a context for this thread, the one it already has if it has not
+     * released it yet. Each borrow must be matched by a release
+     *
+     * @return
+     * @throws UserStoreException if no context could be opened, or none came
+     * free in time
+     */
+    DirContext borrow() throws UserStoreException {
+        borrowCount.incrementAndGet();
+        ThreadLease lease = threadLeases.get();
+        if (lease != null) {
+            lease.depth++;
+            reuseCount.incrementAndGet();
+            return lease.dirContext;
+        }
+        DirContext dirContext = permits == null ? createContext() : checkOut();
+        threadLeases.set(new ThreadLease(dirContext));
+        return dirContext;
+    }
+
+    /**
+     * gives back a borrowed context, it goes back to the pool when the
+     * outermost borrow on the thread releases it. Null is ignored so it can be
+     * called from finally blocks where the borrow may have failed
+     *
+     * @param dirContext
+     */
+    void release(DirContext dirContext) {
+        if (dirContext == null) {
+            return;
+        }
+        ThreadLease lease = threadLeases.get();
+        if (lease == null || lease.dirContext != dirContext) {
+            if (openContexts.contains(dirContext)) {
+                //released more often than borrowed, or by another thread, it
+                //is idle or in use elsewhere so it has to be left alone
+                sysLogger.warn(poolName + " was given back an LDAP connection this thread does not hold, it was released twice or by another thread",
+                        new IllegalStateException("double release"));
+            } else {
+                closeUnpooled(dirContext);
+            }
+            return;
+        }
+        if (--lease.depth > 0) {
+            return;
+        }
+        threadLeases.remove();
+        if (permits == null) {
+            closeContext(dirContext);
+            return;
+        }
+        if (closed || lease.broken) {
+            closeContext(dirContext);
+        } else {
+            idleContexts.addFirst(new PooledContext(dirContext, System.currentTimeMillis()));
+        }
+        permits.release();
+    }
+
+    /**
+     * true if the context is one this pool opened and has not closed, on any
+     * thread
+     *
+     * @param dirContext
+     * @return
+     */
+    boolean owns(DirContext dirContext) {
+        return openContexts.contains(dirContext);
+    }
+
+    /**
+     * closes a context that did not come from a pool, none of the counters
+     * of any pool change
+     *
+     * @param dirContext
+     */
+    static void closeUnpooled(DirContext dirContext) {
+        if (sysLogger.isDebugEnabled()) {
+            sysLogger.debug("Closing an LDAP connection that did not come from a pool");
+        }
+        try {
+            dirContext.close();
+        } catch (NamingException | RuntimeException closeError) {
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Error closing LDAP connection", closeError);
+            }
+        }
+    }
+
+    /**
+     * true if this thread has a context from this pool it has not released
+     *
+     * @return
+     */
+    boolean isHeldByCurrentThread() {
+        return threadLeases.get() != null;
+    }
+
+    /**
+     * true if the context is the one this thread has borrowed from this pool
+     *
+     * @param dirContext
+     * @return
+     */
+    boolean isHeldByCurrentThread(DirContext dirContext) {
+        ThreadLease lease = threadLeases.get();
+        return lease != null && lease.dirContext == dirContext;
+    }
+
+    /**
+     * marks the context this thread has borrowed as broken, it is closed
+     * instead of going back to the pool when it is released
+     *
+     * @param dirContext
+     */
+    void invalidate(DirContext dirContext) {
+        ThreadLease lease = threadLeases.get();
+        if (lease != null && lease.dirContext == dirContext) {
+            lease.broken = true;
+        }
+    }
+
+    /**
+     * closes contexts that have been idle too long, leaving at least the
+     * minimum, then opens contexts until there are that many idle. Called from
+     * the store's timer
+     */
+    void maintain() {
+        if (permits == null || closed) {
+            return;
+        }
+        long idleCutoff = System.currentTimeMillis() - maximumIdleMillis;
+        int keptCount = 0;
+        Iterator<PooledContext> idleIterator = idleContexts.iterator();
+        while (idleIterator.hasNext()) {
+            PooledContext pooledContext = idleIterator.next();
+            if (keptCount < minimumIdle || maximumIdleMillis <= 0 || pooledContext.idleSince > idleCutoff) {
+                keptCount++;
+            } else if (idleContexts.removeFirstOccurrence(pooledContext)) {
+                closeContext(pooledContext.dirContext);
+            }
+        }
+        while (idleContexts.size() < minimumIdle && openCount.get() < maximumSize) {
+            try {
+                idleContexts.addLast(new PooledContext(createContext(), System.currentTimeMillis()));
+            } catch (UserStoreException createError) {
+                if (sysLogger.isDebugEnabled()) {
+                    sysLogger.debug(poolName + " could not open an idle LDAP connection", createError);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * closes the idle contexts, the borrowed ones are closed as they come
+     * back
+     */
+    void close() {
+        closed = true;
+        PooledContext pooledContext;
+        while ((pooledContext = idleContexts.pollFirst()) != null) {
+            closeContext(pooledContext.dirContext);
+        }
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="statistics">
+    int getOpenCount() {
+        return openCount.get();
+    }
+
+    int getIdleCount() {
+        return idleContexts.size();
+    }
+
+    int getActiveCount() {
+        return permits == null ? openCount.get() : maximumSize - permits.availablePermits();
+    }
+
+    long getBorrowCount() {
+        return borrowCount.get();
+    }
+
+    /**
+     * borrows answered with the context the thread already had
+     */
+    long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    long getCreateCount() {
+        return createCount.get();
+    }
+
+    long getCloseCount() {
+        return closeCount.get();
+    }
+
+    /**
+     * borrows that found the pool exhausted and had to wait
+     */
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    long getWaitMillis() {
+        return waitMillis.get();
+    }
+
+    long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    long getValidationFailureCount() {
+        return validationFailureCount.get();
+    }
+    //</editor-fold>
+
+    private DirContext checkOut() throws UserStoreException {
+        if (closed) {
+            throw new UserStoreException(poolName + " is closed");
+        }
+        if (!permits.tryAcquire()) {
+            waitCount.incrementAndGet();
+            long waitStart = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maximumWaitMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException interrupted) {
+                Thread.currentThread().interrupt();
+                throw new UserStoreException(poolName + " interrupted waiting for an LDAP connection", interrupted);
+            } finally {
+                waitMillis.addAndGet(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart));
+            }
+            if (!acquired) {
+                timeoutCount.incrementAndGet();
+                throw new PoolExhaustedException(poolName + " had no free LDAP connection after " + maximumWaitMillis
+                        + " ms, " + maximumSize + " are in use");
+            }
+        }
+        try {
+            PooledContext pooledContext;
+            while ((pooledContext = idleContexts.pollFirst()) != null) {
+                if (System.currentTimeMillis() - pooledContext.idleSince < validateAfterIdleMillis
+                        || isValid(pooledContext.dirContext)) {
+                    return pooledContext.dirContext;
+                }
+                validationFailureCount.incrementAndGet();
+                closeContext(pooledContext.dirContext);
+            }
+            return createContext();
+        } catch (UserStoreException | RuntimeException checkOutError) {
+            permits.release();
+            throw checkOutError;
+        }
+    }
+
+    private DirContext createContext() throws UserStoreException {
+        DirContext dirContext = contextFactory.create();
+        openContexts.add(dirContext);
+        openCount.incrementAndGet();
+        createCount.incrementAndGet();
+        return dirContext;
+    }
+
+    private static boolean isValid(DirContext dirContext) {
+        try {
+            dirContext.getAttributes("", VALIDATION_ATTRIBUTES);
+            return true;
+        } catch (NamingException | RuntimeException validationError) {
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Pooled LDAP connection failed validation", validationError);
+            }
+            return false;
+        }
+    }
+
+    private void closeContext(DirContext dirContext) {
+        openContexts.remove(dirContext);
+        openCount.decrementAndGet();
+        closeCount.incrementAndGet();
+        try {
+            dirContext.close();
+        } catch (NamingException | RuntimeException closeError) {
+            if (sysLogger.isDebugEnabled()) {
+                sysLogger.debug("Error closing pooled LDAP connection", closeError);
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  runs an LDAP search with the paged results control, so results are not
+ *  silently cut off at the MaxPageSize of the domain controller
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.io.IOException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.PartialResultException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+import org.wso2.carbon.user.core.util.JNDIUtil;
+
+/**
+ * paged LDAP search, falls back to a plain search if the context is not an
+ * LdapContext
+ *
+ * @author robert.ginsburg
+ */
+final class LdapPagedSearch {
+
+    /**
+     * receives the results of a search one at a time
+     */
+    interface ResultHandler {
+
+        /**
+         * handles one result
+         *
+         * @param searchResult
+         * @return false to stop the search
+         * @throws NamingException
+         */
+        boolean handle(SearchResult searchResult) throws NamingException;
+    }
+
+    private LdapPagedSearch() {
+    }
+
+    /**
+     * searches page by page and hands each result to the handler, only one
+     * page is held at a time. The paging controls are set on a context of our
+     * own that shares the connection, so the caller's context can be used for
+     * other searches meanwhile, even from inside the handler
+     *
+     * @param dirContext
+     * @param searchBase
+     * @param searchFilter
+     * @param searchControls
+     * @param pageSize
+     * @param handler
+     * @return the number of results handled
+     * @throws NamingException
+     */
+    static int search(DirContext dirContext, String searchBase, String searchFilter, SearchControls searchControls,
+            int pageSize, ResultHandler handler) throws NamingException {
+        int[] resultCount = new int[1];
+        if (!(dirContext instanceof LdapContext) || pageSize <= 0) {
+            searchPage(dirContext, searchBase, searchFilter, searchControls, handler, resultCount);
+            return resultCount[0];
+        }
+        LdapContext ldapContext = ((LdapContext) dirContext).newInstance(null);
+        byte[] cookie = null;
+        try {
+            do {
+                ldapContext.setRequestControls(new Control[]{new PagedResultsControl(pageSize, cookie, Control.NONCRITICAL)});
+                if (searchPage(ldapContext, searchBase, searchFilter, searchControls, handler, resultCount) < 0) {
+                    break;
+                }
+                cookie = null;
+                Control[] responseControls = ldapContext.getResponseControls();
+                if (responseControls != null) {
+                    for (Control responseControl : responseControls) {
+                        if (responseControl instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) responseControl).getCookie();
+                        }
+                    }
+                }
+            } while (cookie != null && cookie.length > 0);
+        } catch (IOException controlError) {
+            NamingException namingError = new NamingException("Could not create paged results control");
+            namingError.setRootCause(controlError);
+            throw namingError;
+        } finally {
+            ldapContext.close();
+        }
+        return resultCount[0];
+    }
+
+    /**
+     * runs one page, returns -1 if the handler asked us to stop. Referrals
+     * that AD hands back at the end of a search from the forest root are
+     * ignored, the same as hasMoreElements() would
+     */
+    private static int searchPage(DirContext dirContext, String searchBase, String searchFilter, SearchControls searchControls,
+            ResultHandler handler, int[] resultCount) throws NamingException {
+        NamingEnumeration<SearchResult> searchAnswer = null;
+        try {
+            searchAnswer = dirContext.search(searchBase, searchFilter, searchControls);
+            while (searchAnswer.hasMore()) {
+                resultCount[0]++;
+                if (!handler.handle(searchAnswer.next())) {
+                    return -1;
+                }
+            }
+        } catch (PartialResultException referralsIgnored) {
+            //nothing more in this naming context
+        } finally {
+            JNDIUtil.closeNamingEnumeration(searchAnswer);
+        }
+        return resultCount[0];
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  compact immutable Windows SID. Every group in a domain shares the same
+ *  domain part, so that is interned once and each SID only carries its
+ *  relative id, which makes them cheap to keep as cache keys
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.Arrays;
+
+/**
+ * a SID split into its shared domain part and its relative id (the last sub
+ * authority). SIDs are ordered by their values, the way the numbers in the
+ * string form compare, so the order is the same in every JVM
+ *
+ * @author robert.ginsburg
+ */
+final class SecurityIdentifier implements Comparable<SecurityIdentifier> {
+
+    //a forest rarely has more than a few dozen, past this we stop interning
+    private static final int MAXIMUM_INTERNED_DOMAINS = 1024;
+    private static final Object DOMAIN_LOCK = new Object();
+    private static volatile SidDomain[] internedDomains = new SidDomain[0];
+
+    private final SidDomain domain;
+    private final int relativeId;
+    private final int hash;
+
+    /**
+     * everything in a SID but the relative id: the revision, the identifier
+     * authority and all but the last sub authority, kept in the binary form
+     * they arrive in
+     */
+    static final class SidDomain implements Comparable<SidDomain> {
+
+        private final byte[] prefixBytes;
+        private final int subAuthorityCount;
+        private final int hash;
+        private final String prefix;
+
+        private SidDomain(byte[] sid, int subAuthorityCount) {
+            this.subAuthorityCount = subAuthorityCount;
+            this.prefixBytes = Arrays.copyOfRange(sid, 0, prefixLength(subAuthorityCount));
+            this.hash = hashPrefix(sid, subAuthorityCount);
+            this.prefix = formatPrefix(sid, subAuthorityCount);
+        }
+
+        /**
+         * the string form of the domain part, "S-1-5-21-x-y-z" for a domain
+         * SID
+         *
+         * @return
+         */
+        String getPrefix() {
+            return prefix;
+        }
+
+        boolean matches(byte[] sid, int subAuthorityCount) {
+            if (this.subAuthorityCount != subAuthorityCount) {
+                return false;
+            }
+            //domains differ in their last sub authorities, so start there
+            for (int i = prefixBytes.length - 1; i > 1; i--) {
+                if (prefixBytes[i] != sid[i]) {
+                    return false;
+                }
+            }
+            return prefixBytes[0] == sid[0];
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof SidDomain)) {
+                return false;
+            }
+            SidDomain otherDomain = (SidDomain) other;
+            return hash == otherDomain.hash && subAuthorityCount == otherDomain.subAuthorityCount
+                    && Arrays.equals(prefixBytes, otherDomain.prefixBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        /**
+         * by the number of sub authorities, then the revision, the
+         * identifier authority and each sub authority as unsigned numbers
+         *
+         * @param other
+         * @return
+         */
+        @Override
+        public int compareTo(SidDomain other) {
+            if (this == other) {
+                return 0;
+            }
+            int order = Integer.compare(subAuthorityCount, other.subAuthorityCount);
+            if (order == 0) {
+                order = Integer.compare(prefixBytes[0] & 0xFF, other.prefixBytes[0] & 0xFF);
+            }
+            if (order == 0) {
+                order = Long.compare(readIdentifierAuthority(prefixBytes), readIdentifierAuthority(other.prefixBytes));
+            }
+            for (int i = 0; order == 0 && i < subAuthorityCount - 1; i++) {
+                order = Integer.compareUnsigned(readSubAuthority(prefixBytes, i), readSubAuthority(other.prefixBytes, i));
+            }
+            return order;
+        }
+    }
+
+    private SecurityIdentifier(SidDomain domain, int relativeId) {
+        this.domain = domain;
+        this.relativeId = relativeId;
+        this.hash = 31 * domain.hash + relativeId;
+    }
+
+    /**
+     * parses the binary form of a SID, as it comes back in objectSid and
+     * tokenGroups
+     *
+     * @param sid
+     * @return null if the bytes are not a valid SID
+     */
+    static SecurityIdentifier fromBytes(byte[] sid) {
+        if (sid == null || sid.length < 8 || sid.length % 4 != 0) {
+            return null;
+        }
+        int subAuthorityCount = sid[1];
+        if (subAuthorityCount < 1 || sid.length < 8 + 4 * subAuthorityCount) {
+            return null;
+        }
+        int relativeId = readSubAuthority(sid, subAuthorityCount - 1);
+        return new SecurityIdentifier(internDomain(sid, subAuthorityCount), relativeId);
+    }
+
+    /**
+     * the string form of everything but the last sub authority, shared by
+     * every SID in the domain so formatting one only appends its relative id.
+     * The caller has checked the bytes hold subAuthorityCount sub authorities
+     *
+     * @param sid
+     * @param subAuthorityCount at least one
+     * @return
+     */
+    static String domainPrefix(byte[] sid, int subAuthorityCount) {
+        return internDomain(sid, subAuthorityCount).prefix;
+    }
+
+    /**
+     * the shared domain part of the SID
+     *
+     * @return
+     */
+    SidDomain getDomain() {
+        return domain;
+    }
+
+    /**
+     * the last sub authority, unsigned
+     *
+     * @return
+     */
+    long getRelativeId() {
+        return relativeId & 0xFFFFFFFFL;
+    }
+
+    /**
+     * appends the string form of the SID, so a search filter can be built
+     * without an intermediate string for every SID
+     *
+     * @param builder
+     * @return
+     */
+    StringBuilder appendTo(StringBuilder builder) {
+        return builder.append(domain.prefix).append('-').append(getRelativeId());
+    }
+
+    @Override
+    public String toString() {
+        return appendTo(new StringBuilder(domain.prefix.length() + 11)).toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof SecurityIdentifier)) {
+            return false;
+        }
+        SecurityIdentifier otherSid = (SecurityIdentifier) other;
+        return relativeId == otherSid.relativeId && hash == otherSid.hash
+                && (domain == otherSid.domain || domain.equals(otherSid.domain));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    /**
+     * by domain and then by relative id, SIDs in the same domain only
+     * compare their relative ids
+     *
+     * @param other
+     * @return
+     */
+    @Override
+    public int compareTo(SecurityIdentifier other) {
+        int order = domain.compareTo(other.domain);
+        return order != 0 ? order : Integer.compareUnsigned(relativeId, other.relativeId);
+    }
+
+    /**
+     * finds the interned domain for the SID without allocating if we have
+     * seen it before, the list is copied on write since it rarely changes
+     */
+    private static SidDomain internDomain(byte[] sid, int subAuthorityCount) {
+        SidDomain found = findDomain(internedDomains, sid, subAuthorityCount);
+        if (found != null) {
+            return found;
+        }
+        synchronized (DOMAIN_LOCK) {
+            SidDomain[] currentDomains = internedDomains;
+            found = findDomain(currentDomains, sid, subAuthorityCount);
+            if (found != null) {
+                return found;
+            }
+            found = new SidDomain(sid, subAuthorityCount);
+            if (currentDomains.length < MAXIMUM_INTERNED_DOMAINS) {
+                SidDomain[] newDomains = Arrays.copyOf(currentDomains, currentDomains.length + 1);
+                newDomains[currentDomains.length] = found;
+                internedDomains = newDomains;
+            }
+            return found;
+        }
+    }
+
+    private static SidDomain findDomain(SidDomain[] domains, byte[] sid, int subAuthorityCount) {
+        for (SidDomain domain : domains) {
+            if (domain.matches(sid, subAuthorityCount)) {
+                return domain;
+            }
+        }
+        return null;
+    }
+
+    private static int prefixLength(int subAuthorityCount) {
+        return 8 + 4 * (subAuthorityCount - 1);
+    }
+
+    private static int hashPrefix(byte[] sid, int subAuthorityCount) {
+        int prefixHash = 31 * subAuthorityCount + sid[0];
+        for (int i = 2; i < prefixLength(subAuthorityCount); i++) {
+            prefixHash = 31 * prefixHash + sid[i];
+        }
+        return prefixHash;
+    }
+
+    private static String formatPrefix(byte[] sid, int subAuthorityCount) {
+        StringBuilder prefixBuilder = new StringBuilder();
+        prefixBuilder.append("S-").append(sid[0]).append('-').append(readIdentifierAuthority(sid));
+        for (int i = 0; i < subAuthorityCount - 1; i++) {
+            prefixBuilder.append('-').append(readSubAuthority(sid, i) & 0xFFFFFFFFL);
+        }
+        return prefixBuilder.toString();
+    }
+
+    /**
+     * the 48 bit big endian identifier authority
+     */
+    static long readIdentifierAuthority(byte[] sid) {
+        long authority = 0;
+        for (int i = 2; i < 8; i++) {
+            authority = (authority << 8) | (sid[i] & 0xFF);
+        }
+        return authority;
+    }
+
+    /**
+     * a little endian sub authority, as a signed int
+     */
+    static int readSubAuthority(byte[] sid, int index) {
+        int offset = 8 + 4 * index;
+        return (sid[offset] & 0xFF) | (sid[offset + 1] & 0xFF) << 8 | (sid[offset + 2] & 0xFF) << 16 | (sid[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -1,19 +1,54 @@
 /*
  * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
  *  this is a very simple implementation of a concurrent hash that also
- *  includes an expiration processor,  
+ *  includes an expiration processor, and an optional size bound that is
+ *  enforced with a segmented LRU so that entries read more than once survive
+ *  a burst of one-time entries (a login storm)
  */
 package com.balsamicsolutions.wso2is;
 
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiPredicate;
 
 /**
- * simple cache, expires on a timer interval
+ * simple cache, expires on a timer interval. If a maximum entry count or
+ * maximum weight is set, the cache is also bounded. New entries go into a
+ * probation segment, entries that are read again are promoted to a protected
+ * segment, and victims are taken from the least recently used end of probation
+ * first.
+ *
+ * Each entry is a single immutable node holding the value and its deadline,
+ * so a reader can never see a value paired with another value's deadline.
+ * Readers and writers only touch the concurrent map, the eviction order and
+ * the expiration queue are maintained from buffers by whichever thread gets
+ * the policy lock without waiting for it. Since every entry in a cache lives
+ * for the same time, the order entries are written in is also the order they
+ * expire in, so expiration only looks at the entries that are due.
+ *
+ * Values can also be loaded through the cache, concurrent misses for the
+ * same key then share a single load instead of each going to the directory.
+ * With refresh ahead enabled, a value loaded through the cache that is past
+ * its refresh time is still returned, and reloaded in the background, until it
+ * reaches its expiration time.
  *
  * @author robert.ginsburg
  * @param <K>
@@ -22,13 +57,116 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SimpleExpiringCache<K, V>  {
 
     private static final long TEN_SECONDS = 10000;
-    private Map<K, Long> expirationMap;
+    private static final int PROTECTED_PERCENTAGE = 80;
+    //reads are recorded into a lossy ring, writes into an unbounded queue that
+    //is drained on every DRAIN_THRESHOLD writes or when the ring wraps
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = 32;
+    //if the maintenance backlog gets this large, writers wait for the lock
+    private static final int WRITE_BUFFER_LIMIT = 4096;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_PROBATION = 1;
+    private static final int STATE_PROTECTED = 2;
+    private static final int STATE_DEAD = 3;
+
     private long expirationTimeInMilliseconds = TEN_SECONDS; //10 seconds is default cache
+    //refresh ahead, disabled while there is no executor
+    private long refreshTimeInMilliseconds;
+    private Executor refreshExecutor;
     private Timer expirationTimer;
     private final boolean internalTimer;
-    private Map<K,V> valueMap;
-  
-    
+    private ConcurrentHashMap<K, Node<K, V>> valueMap;
+    //loads that are running, so other threads missing on the key can wait for them
+    private final ConcurrentHashMap<K, CompletableFuture<V>> loadsInFlight = new ConcurrentHashMap<>();
+
+    //size bounds, zero means unbounded
+    private long maximumEntries;
+    //volatile since it can be changed while the cache is in use
+    private volatile long maximumWeight;
+    private Weigher<? super K, ? super V> weigher;
+
+    //buffers of work for the policy, filled without locking
+    private final ConcurrentLinkedQueue<PendingWrite<K, V>> writeBuffer = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingWriteCount = new AtomicInteger();
+    private final AtomicReferenceArray<Node<K, V>> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferIndex = new AtomicLong();
+
+    //segmented LRU and expiration queue, only touched while holding the policyLock
+    private final ReentrantLock policyLock = new ReentrantLock();
+    private final NodeList<K, V> probationSegment = new NodeList<>(false);
+    private final NodeList<K, V> protectedSegment = new NodeList<>(false);
+    private final NodeList<K, V> expirationQueue = new NodeList<>(true);
+    private volatile long totalWeight;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
+    private final LongAdder refreshCount = new LongAdder();
+    private final LongAdder refreshFailureCount = new LongAdder();
+
+    /**
+     * calculates the weight of an entry, used to bound the cache by an
+     * estimate of its memory footprint
+     *
+     * @param <K>
+     * @param <V>
+     */
+    public interface Weigher<K, V> {
+
+        /**
+         * the weight of an entry, must not be negative
+         *
+         * @param key
+         * @param value
+         * @return
+         */
+        long weigh(K key, V value);
+    }
+
+    /**
+     * loads a single missing value
+     *
+     * @param <K>
+     * @param <V>
+     * @param <E> the checked exception the load can throw
+     */
+    public interface Loader<K, V, E extends Exception> {
+
+        /**
+         * loads the value for a key, a null means there is no value and
+         * nothing is cached
+         *
+         * @param key
+         * @return
+         * @throws E
+         */
+        V load(K key) throws E;
+    }
+
+    /**
+     * loads a group of missing values in one go
+     *
+     * @param <K>
+     * @param <V>
+     * @param <E> the checked exception the load can throw
+     */
+    public interface BulkLoader<K, V, E extends Exception> {
+
+        /**
+         * loads the values for the keys, keys without a value are left out
+         * of the returned map and are not cached
+         *
+         * @param keys
+         * @return
+         * @throws E
+         */
+        Map<K, V> loadAll(List<K> keys) throws E;
+    }
+
+
     /**
      * CTOR
      *
@@ -70,26 +208,63 @@ public class SimpleExpiringCache<K, V>  {
         internalTimer = !externalThread;
         initializeMe();
     }
-    
+
+    /**
+     * CTOR
+     *
+     * @param expiryInMillis
+     * @param externalThread
+     * @param maxEntries maximum number of entries, zero for no limit
+     * @param maxWeight maximum total weight, zero for no limit
+     * @param entryWeigher weigher for maxWeight, may be null if maxWeight is zero
+     */
+    public SimpleExpiringCache(long expiryInMillis, boolean externalThread, long maxEntries, long maxWeight, Weigher<? super K, ? super V> entryWeigher) {
+        internalTimer = !externalThread;
+        this.expirationTimeInMilliseconds = expiryInMillis;
+        this.maximumEntries = Math.max(0, maxEntries);
+        this.maximumWeight = Math.max(0, maxWeight);
+        this.weigher = entryWeigher;
+        if (this.maximumWeight > 0 && this.weigher == null) {
+            this.weigher = estimatingWeigher();
+        }
+        initializeMe();
+    }
+
      @Override
     protected void finalize() throws Throwable {
       try{
              if(internalTimer){
                 expirationTimer.cancel();
              }
-               
+
           }catch(Throwable t){
               throw t;
           }finally{
               super.finalize();
           }
-      } 
-    
+      }
+
+    /**
+     * turns on refresh ahead, entries loaded through get(key, loader) or
+     * getAll are reloaded on the executor when they are read after
+     * refreshAfterInMillis, and are still returned until they expire. The
+     * executor should be bounded, if it rejects a refresh the entry is simply
+     * refreshed on a later read or loaded again once it expires
+     *
+     * @param refreshAfterInMillis must be less than the expiration time
+     * @param executor
+     */
+    public void enableRefreshAhead(long refreshAfterInMillis, Executor executor) {
+        if (refreshAfterInMillis > 0 && refreshAfterInMillis < expirationTimeInMilliseconds && executor != null) {
+            this.refreshTimeInMilliseconds = refreshAfterInMillis;
+            this.refreshExecutor = executor;
+        }
+    }
+
     /**
      * Initialization
      */
     private void initializeMe() {
-        expirationMap = new ConcurrentHashMap<>();
         valueMap = new ConcurrentHashMap<>();
         if (expirationTimeInMilliseconds <= 0) {
             expirationTimeInMilliseconds = TEN_SECONDS;
@@ -99,7 +274,7 @@ public class SimpleExpiringCache<K, V>  {
             timerInterval = TEN_SECONDS;
         }
         if (internalTimer) {
-            expirationTimer = new Timer();
+            expirationTimer = new Timer(true);
             expirationTimer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
@@ -117,10 +292,39 @@ public class SimpleExpiringCache<K, V>  {
      * @return
      */
     public V put(K key, V value) {
-        long expirationTime = new Date().getTime() + expirationTimeInMilliseconds;
-        expirationMap.put(key, expirationTime);
-        V returnVal = valueMap.put(key, value);
-        return returnVal;
+        long weight = weigher == null ? 1 : weigher.weigh(key, value);
+        long currentTime = CoarseClock.currentTimeMillis();
+        long deadline = currentTime + expirationTimeInMilliseconds;
+        long refreshTime = refreshExecutor == null ? Long.MAX_VALUE : currentTime + refreshTimeInMilliseconds;
+        Node<K, V> node = new Node<>(key, value, deadline, refreshTime, weight);
+        Node<K, V> replaced = valueMap.put(key, node);
+        afterWrite(node, replaced);
+        return replaced == null ? null : replaced.value;
+    }
+
+    /**
+     * replaces a value with one built from it, keeping the deadline and
+     * refresh time it had, so adding to an entry does not make it live
+     * longer than the values it was first loaded with
+     *
+     * @param key
+     * @param oldValue the value we built on, compared by identity
+     * @param newValue
+     * @return false if the entry has expired or the value is no longer the
+     * old one, nothing is changed
+     */
+    public boolean replace(K key, V oldValue, V newValue) {
+        Node<K, V> oldNode = valueMap.get(key);
+        if (oldNode == null || oldNode.value != oldValue || CoarseClock.currentTimeMillis() > oldNode.deadline) {
+            return false;
+        }
+        long weight = weigher == null ? 1 : weigher.weigh(key, newValue);
+        Node<K, V> node = new Node<>(key, newValue, oldNode.deadline, oldNode.refreshTime, weight);
+        if (!valueMap.replace(key, oldNode, node)) {
+            return false;
+        }
+        afterWrite(node, oldNode);
+        return true;
     }
 
     /**
@@ -130,41 +334,854 @@ public class SimpleExpiringCache<K, V>  {
      * @return
      */
     public V get(K key) {
+        Node<K, V> node = getNode(key);
+        return node == null ? null : node.value;
+    }
 
-        //we need to make sure the requested item is not expired
-        long currentTime = new Date().getTime();
-        if (expirationMap.containsKey(key)) {
-            long expirationTime = expirationMap.get(key);
-            if (currentTime > (expirationTime)) {
-                //we dont delete here, the timer will eventually clean 
-                //it up, but for now we return a null
-                return null;
-            } else {
-                return valueMap.get(key);
+    /**
+     * the live node for a key, counting the hit or miss
+     *
+     * @param key
+     * @return
+     */
+    private Node<K, V> getNode(K key) {
+        Node<K, V> node = valueMap.get(key);
+        if (node == null || CoarseClock.currentTimeMillis() > node.deadline) {
+            //we dont delete here, the timer will eventually clean
+            //it up, but for now we return a null
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        if (isBounded()) {
+            afterRead(node);
+        }
+        return node;
+    }
+
+    /**
+     * get a value, loading it if it is missing or expired. Only one load runs
+     * for a key at a time, other callers missing on the same key wait for it
+     * and get its value, or its exception. With refresh ahead, a value past its
+     * refresh time is returned and the loader is run again in the background
+     *
+     * @param <E>
+     * @param key
+     * @param loader
+     * @return
+     * @throws E
+     */
+    public <E extends Exception> V get(K key, Loader<? super K, ? extends V, E> loader) throws E {
+        Node<K, V> node = getNode(key);
+        if (node != null) {
+            if (CoarseClock.currentTimeMillis() > node.refreshTime) {
+                refreshAhead(key, node.value, loader);
+            }
+            return node.value;
+        }
+        V returnVal;
+        CompletableFuture<V> ourLoad = new CompletableFuture<>();
+        CompletableFuture<V> runningLoad = loadsInFlight.putIfAbsent(key, ourLoad);
+        if (runningLoad != null) {
+            return this.<E>awaitLoad(runningLoad);
+        }
+        try {
+            //someone may have finished loading it between our get and our claim
+            returnVal = getQuietly(key);
+            if (returnVal == null) {
+                returnVal = loader.load(key);
+                if (returnVal != null) {
+                    put(key, returnVal);
+                }
             }
+            ourLoad.complete(returnVal);
+            return returnVal;
+        } catch (Throwable loadError) {
+            ourLoad.completeExceptionally(loadError);
+            throw loadError;
+        } finally {
+            loadsInFlight.remove(key, ourLoad);
+        }
+    }
+
+    /**
+     * get the values for a group of keys, loading the missing ones in one
+     * call. Keys that another thread is already loading are not loaded again,
+     * we wait for that thread instead, so across all callers every key is
+     * loaded once. Keys without a value are left out of the returned map
+     *
+     * @param <E>
+     * @param keys
+     * @param loader
+     * @return
+     * @throws E
+     */
+    public <E extends Exception> Map<K, V> getAll(Collection<K> keys, BulkLoader<K, ? extends V, E> loader) throws E {
+        Map<K, V> returnVal = new LinkedHashMap<>();
+        Map<K, CompletableFuture<V>> ourLoads = new HashMap<>();
+        Map<K, CompletableFuture<V>> runningLoads = new HashMap<>();
+        Map<K, V> staleValues = null;
+        for (K key : keys) {
+            Node<K, V> node = getNode(key);
+            if (node != null) {
+                returnVal.put(key, node.value);
+                if (CoarseClock.currentTimeMillis() > node.refreshTime) {
+                    if (staleValues == null) {
+                        staleValues = new HashMap<>();
+                    }
+                    staleValues.put(key, node.value);
+                }
+            } else if (!ourLoads.containsKey(key) && !runningLoads.containsKey(key)) {
+                CompletableFuture<V> ourLoad = new CompletableFuture<>();
+                CompletableFuture<V> runningLoad = loadsInFlight.putIfAbsent(key, ourLoad);
+                if (runningLoad == null) {
+                    ourLoads.put(key, ourLoad);
+                } else {
+                    runningLoads.put(key, runningLoad);
+                }
+            }
+        }
+        //load what we claimed before waiting on anyone else, so two callers
+        //waiting on each other's keys can never block each other
+        if (!ourLoads.isEmpty()) {
+            try {
+                List<K> missingKeys = new ArrayList<>(ourLoads.size());
+                for (K key : ourLoads.keySet()) {
+                    V value = getQuietly(key);
+                    if (value == null) {
+                        missingKeys.add(key);
+                    } else {
+                        returnVal.put(key, value);
+                    }
+                }
+                Map<K, ? extends V> loaded = missingKeys.isEmpty() ? new HashMap<K, V>() : loader.loadAll(missingKeys);
+                for (K key : missingKeys) {
+                    V value = loaded.get(key);
+                    if (value != null) {
+                        put(key, value);
+                        returnVal.put(key, value);
+                    }
+                }
+                for (Map.Entry<K, CompletableFuture<V>> ourLoad : ourLoads.entrySet()) {
+                    ourLoad.getValue().complete(returnVal.get(ourLoad.getKey()));
+                }
+            } catch (Throwable loadError) {
+                for (CompletableFuture<V> ourLoad : ourLoads.values()) {
+                    ourLoad.completeExceptionally(loadError);
+                }
+                throw loadError;
+            } finally {
+                for (Map.Entry<K, CompletableFuture<V>> ourLoad : ourLoads.entrySet()) {
+                    loadsInFlight.remove(ourLoad.getKey(), ourLoad.getValue());
+                }
+            }
+        }
+        for (Map.Entry<K, CompletableFuture<V>> runningLoad : runningLoads.entrySet()) {
+            V value = this.<E>awaitLoad(runningLoad.getValue());
+            if (value != null) {
+                returnVal.put(runningLoad.getKey(), value);
+            }
+        }
+        if (staleValues != null) {
+            refreshAheadAll(staleValues, loader);
+        }
+        return returnVal;
+    }
+
+    /**
+     * reloads a value on the refresh executor, unless a load for it is
+     * already running. Anyone who misses on the key meanwhile waits for the
+     * refresh, if it cannot be queued they get the value we already had
+     *
+     * @param key
+     * @param staleValue
+     * @param loader
+     */
+    private void refreshAhead(K key, V staleValue, Loader<? super K, ? extends V, ?> loader) {
+        CompletableFuture<V> refresh = new CompletableFuture<>();
+        if (loadsInFlight.putIfAbsent(key, refresh) != null) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    V value = loader.load(key);
+                    storeRefreshed(key, value);
+                    refresh.complete(value);
+                } catch (Throwable refreshError) {
+                    refreshFailureCount.increment();
+                    refresh.completeExceptionally(refreshError);
+                } finally {
+                    loadsInFlight.remove(key, refresh);
+                }
+            });
+        } catch (RejectedExecutionException busy) {
+            loadsInFlight.remove(key, refresh);
+            refresh.complete(staleValue);
+        }
+    }
+
+    /**
+     * reloads a group of values on the refresh executor in one bulk load,
+     * skipping the keys that are already being loaded
+     *
+     * @param staleValues
+     * @param loader
+     */
+    private void refreshAheadAll(Map<K, V> staleValues, BulkLoader<K, ? extends V, ?> loader) {
+        Map<K, CompletableFuture<V>> refreshes = new HashMap<>();
+        for (K key : staleValues.keySet()) {
+            CompletableFuture<V> refresh = new CompletableFuture<>();
+            if (loadsInFlight.putIfAbsent(key, refresh) == null) {
+                refreshes.put(key, refresh);
+            }
+        }
+        if (refreshes.isEmpty()) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    Map<K, ? extends V> loaded = loader.loadAll(new ArrayList<>(refreshes.keySet()));
+                    for (Map.Entry<K, CompletableFuture<V>> refresh : refreshes.entrySet()) {
+                        V value = loaded.get(refresh.getKey());
+                        storeRefreshed(refresh.getKey(), value);
+                        refresh.getValue().complete(value);
+                    }
+                } catch (Throwable refreshError) {
+                    refreshFailureCount.increment();
+                    for (CompletableFuture<V> refresh : refreshes.values()) {
+                        refresh.completeExceptionally(refreshError);
+                    }
+                } finally {
+                    for (Map.Entry<K, CompletableFuture<V>> refresh : refreshes.entrySet()) {
+                        loadsInFlight.remove(refresh.getKey(), refresh.getValue());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException busy) {
+            for (Map.Entry<K, CompletableFuture<V>> refresh : refreshes.entrySet()) {
+                loadsInFlight.remove(refresh.getKey(), refresh.getValue());
+                refresh.getValue().complete(staleValues.get(refresh.getKey()));
+            }
+        }
+    }
+
+    /**
+     * stores a refreshed value, a refresh that finds nothing means the value
+     * is gone from the directory, so we drop it
+     *
+     * @param key
+     * @param value
+     */
+    private void storeRefreshed(K key, V value) {
+        refreshCount.increment();
+        if (value == null) {
+            remove(key);
         } else {
+            put(key, value);
+        }
+    }
+
+    /**
+     * waits for another thread's load, rethrowing its exception as is. The
+     * loader could only throw E or an unchecked exception, so the cast holds
+     *
+     * @param <E>
+     * @param runningLoad
+     * @return
+     * @throws E
+     */
+    @SuppressWarnings("unchecked")
+    private <E extends Exception> V awaitLoad(CompletableFuture<V> runningLoad) throws E {
+        try {
+            return runningLoad.join();
+        } catch (CompletionException loadFailed) {
+            Throwable loadError = loadFailed.getCause() == null ? loadFailed : loadFailed.getCause();
+            if (loadError instanceof Error) {
+                throw (Error) loadError;
+            }
+            throw (E) loadError;
+        }
+    }
+
+    /**
+     * get without counting a hit or miss or touching the eviction order, for
+     * re-checking after a claim, or for a loader that builds on the value it
+     * is replacing
+     *
+     * @param key
+     * @return
+     */
+    public V getQuietly(K key) {
+        Node<K, V> node = valueMap.get(key);
+        if (node == null || CoarseClock.currentTimeMillis() > node.deadline) {
+            return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * removes a value
+     *
+     * @param key
+     * @return
+     */
+    public V remove(K key) {
+        Node<K, V> removed = valueMap.remove(key);
+        if (removed == null) {
             return null;
         }
+        afterWrite(null, removed);
+        return removed.value;
+    }
+
+    /**
+     * true if there is a live value for the key, does not count as a read
+     *
+     * @param key
+     * @return
+     */
+    public boolean containsKey(K key) {
+        return getQuietly(key) != null;
+    }
+
+    /**
+     * removes every entry the predicate matches, this visits the whole cache
+     * so it is meant for invalidation from a background thread
+     *
+     * @param predicate
+     * @return number of entries removed
+     */
+    public int removeIf(BiPredicate<? super K, ? super V> predicate) {
+        int removedCount = 0;
+        for (Map.Entry<K, Node<K, V>> entry : valueMap.entrySet()) {
+            Node<K, V> node = entry.getValue();
+            if (predicate.test(node.key, node.value) && valueMap.remove(node.key, node)) {
+                afterWrite(null, node);
+                removedCount++;
+            }
+        }
+        return removedCount;
+    }
+
+    /**
+     * visits every live entry, does not count as reads
+     *
+     * @param action
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        long currentTime = CoarseClock.currentTimeMillis();
+        for (Node<K, V> node : valueMap.values()) {
+            if (currentTime <= node.deadline) {
+                action.accept(node.key, node.value);
+            }
+        }
+    }
 
+    /**
+     * changes the weight bound, for a cache whose entries share memory that
+     * is accounted for outside of it. Entries over the new bound are evicted
+     * right away. Only for caches built with a weigher, otherwise each entry
+     * weighs 1
+     *
+     * @param maxWeight maximum total weight, zero for no limit
+     */
+    public void setMaximumWeight(long maxWeight) {
+        policyLock.lock();
+        try {
+            maximumWeight = Math.max(0, maxWeight);
+            maintain(CoarseClock.currentTimeMillis());
+        } finally {
+            policyLock.unlock();
+        }
     }
 
     /**
-     * check all expirations
+     * check all expirations, this only visits the entries that are due
      */
     public void checkExpirations() {
-        long currentTime = new Date().getTime();
-        //We do the delete in two steps because the enumerator
-        //can change when we delete, and we dont want to miss
-        ArrayList<K> expiredEntries = new ArrayList<>();
-        for (K key : expirationMap.keySet()) {
-            if (currentTime > (expirationMap.get(key))) {
-                expiredEntries.add(key);
+        policyLock.lock();
+        try {
+            maintain(CoarseClock.tick());
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="statistics">
+    /**
+     * number of entries currently held, including expired ones that have not
+     * been cleaned up yet
+     *
+     * @return
+     */
+    public int size() {
+        return valueMap.size();
+    }
+
+    /**
+     * total weight of the entries currently held, or their count if the cache
+     * has no weigher
+     *
+     * @return
+     */
+    public long weightedSize() {
+        return totalWeight;
+    }
+
+    /**
+     * @return number of get calls that returned a value
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return number of get calls that did not return a value
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return number of entries removed to stay inside the size bounds
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return number of entries removed because they expired
+     */
+    public long getExpirationCount() {
+        return expirationCount.sum();
+    }
+
+    /**
+     * @return number of entries reloaded ahead of their expiration
+     */
+    public long getRefreshCount() {
+        return refreshCount.sum();
+    }
+
+    /**
+     * @return number of background reloads that failed
+     */
+    public long getRefreshFailureCount() {
+        return refreshFailureCount.sum();
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="size bound">
+    /**
+     * a weigher that estimates the heap used by strings, maps, collections and
+     * arrays of them, which is what the user store caches
+     *
+     * @param <K>
+     * @param <V>
+     * @return
+     */
+    public static <K, V> Weigher<K, V> estimatingWeigher() {
+        return (key, value) -> estimateWeight(key) + estimateWeight(value);
+    }
+
+    /**
+     * rough estimate of the bytes retained by an object, strings are counted
+     * as two bytes a character plus header, containers as their entries plus
+     * overhead. It does not need to be exact, only proportional
+     *
+     * @param value
+     * @return
+     */
+    public static long estimateWeight(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof Map) {
+            long weight = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                weight += 32 + estimateWeight(entry.getKey()) + estimateWeight(entry.getValue());
+            }
+            return weight;
+        }
+        if (value instanceof Collection) {
+            long weight = 40;
+            for (Object item : (Collection<?>) value) {
+                weight += 8 + estimateWeight(item);
+            }
+            return weight;
+        }
+        if (value instanceof Object[]) {
+            long weight = 16;
+            for (Object item : (Object[]) value) {
+                weight += 8 + estimateWeight(item);
+            }
+            return weight;
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        return 16;
+    }
+
+    private boolean isBounded() {
+        return maximumEntries > 0 || maximumWeight > 0;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="buffered maintenance">
+    /**
+     * records a read in the lossy ring, a read that overwrites another one
+     * that was not drained yet only costs us some eviction accuracy
+     *
+     * @param node
+     */
+    private void afterRead(Node<K, V> node) {
+        long index = readBufferIndex.getAndIncrement();
+        readBuffer.lazySet((int) (index & READ_BUFFER_MASK), node);
+        if ((index & (DRAIN_THRESHOLD - 1)) == DRAIN_THRESHOLD - 1) {
+            tryMaintain();
+        }
+    }
+
+    /**
+     * queues an insert, replacement or removal for the policy
+     *
+     * @param added
+     * @param removed
+     */
+    private void afterWrite(Node<K, V> added, Node<K, V> removed) {
+        writeBuffer.offer(new PendingWrite<>(added, removed));
+        int pending = pendingWriteCount.incrementAndGet();
+        if (pending >= WRITE_BUFFER_LIMIT) {
+            //the maintenance is falling behind, so make the writer help
+            policyLock.lock();
+            try {
+                maintain(CoarseClock.currentTimeMillis());
+            } finally {
+                policyLock.unlock();
+            }
+        } else if (pending >= DRAIN_THRESHOLD || isBounded()) {
+            tryMaintain();
+        }
+    }
+
+    private void tryMaintain() {
+        if (policyLock.tryLock()) {
+            try {
+                maintain(CoarseClock.currentTimeMillis());
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * applies the buffered writes and reads, then expires and evicts, must
+     * hold the policyLock
+     *
+     * @param currentTime
+     */
+    private void maintain(long currentTime) {
+        drainWrites();
+        drainReads();
+        expire(currentTime);
+        evictIfNeeded();
+    }
+
+    private void drainWrites() {
+        PendingWrite<K, V> pending;
+        while ((pending = writeBuffer.poll()) != null) {
+            pendingWriteCount.decrementAndGet();
+            if (pending.added != null && pending.removed != null && pending.added.state == STATE_PENDING
+                    && pending.added.deadline == pending.removed.deadline
+                    && (pending.removed.state == STATE_PROBATION || pending.removed.state == STATE_PROTECTED)) {
+                //a replace that kept the deadline takes the place of the node
+                //it replaced, so the expiration queue stays in deadline order
+                substitute(pending.removed, pending.added);
+                continue;
+            }
+            if (pending.removed != null) {
+                unlink(pending.removed);
+            }
+            //the node may have been replaced or removed before we got to it
+            if (pending.added != null && pending.added.state == STATE_PENDING) {
+                pending.added.state = STATE_PROBATION;
+                probationSegment.addLast(pending.added);
+                expirationQueue.addLast(pending.added);
+                totalWeight += pending.added.weight;
+            }
+        }
+    }
+
+    /**
+     * a read promotes a probation entry to protected, or moves a protected one
+     * to the most recently used end
+     */
+    private void drainReads() {
+        if (!isBounded()) {
+            return;
+        }
+        for (int slot = 0; slot < READ_BUFFER_SIZE; slot++) {
+            Node<K, V> node = readBuffer.get(slot);
+            if (node == null) {
+                continue;
+            }
+            readBuffer.lazySet(slot, null);
+            if (node.state == STATE_PROTECTED) {
+                protectedSegment.moveToEnd(node);
+            } else if (node.state == STATE_PROBATION) {
+                probationSegment.remove(node);
+                node.state = STATE_PROTECTED;
+                protectedSegment.addLast(node);
+                protectedSegment.weight += node.weight;
             }
         }
-        //ok now we have them, so remove them
-        for(K deleteMe:expiredEntries){
-            expirationMap.remove(deleteMe);
-            valueMap.remove(deleteMe);
+        //keep protected at its share of the bound by demoting its oldest
+        //entries back to probation, where they become the next victims
+        //only if they are not read again
+        long protectedEntryLimit = maximumEntries * PROTECTED_PERCENTAGE / 100;
+        long protectedWeightLimit = maximumWeight * PROTECTED_PERCENTAGE / 100;
+        while (protectedSegment.count > 1
+                && ((maximumEntries > 0 && protectedSegment.count > protectedEntryLimit)
+                || (maximumWeight > 0 && protectedSegment.weight > protectedWeightLimit))) {
+            Node<K, V> demoted = protectedSegment.head;
+            protectedSegment.remove(demoted);
+            protectedSegment.weight -= demoted.weight;
+            demoted.state = STATE_PROBATION;
+            probationSegment.addLast(demoted);
+        }
+    }
+
+    /**
+     * entries are queued in write order, which for a fixed time to live is
+     * also deadline order, so we stop at the first one that is not due
+     *
+     * @param currentTime
+     */
+    private void expire(long currentTime) {
+        Node<K, V> oldest;
+        while ((oldest = expirationQueue.head) != null && currentTime > oldest.deadline) {
+            valueMap.remove(oldest.key, oldest);
+            unlink(oldest);
+            expirationCount.increment();
+        }
+    }
+
+    /**
+     * evicts from the least recently used end of probation, then protected,
+     * until we are inside the bounds
+     */
+    private void evictIfNeeded() {
+        while (isOverBound()) {
+            Node<K, V> victim = probationSegment.head != null ? probationSegment.head : protectedSegment.head;
+            if (victim == null) {
+                return;
+            }
+            valueMap.remove(victim.key, victim);
+            unlink(victim);
+            evictionCount.increment();
+        }
+    }
+
+    private boolean isOverBound() {
+        long entryCount = probationSegment.count + protectedSegment.count;
+        return (maximumEntries > 0 && entryCount > maximumEntries)
+                || (maximumWeight > 0 && totalWeight > maximumWeight);
+    }
+
+    /**
+     * takes a node out of the policy, if its insert has not been drained
+     * yet it is marked so that it never gets linked
+     *
+     * @param node
+     */
+    private void unlink(Node<K, V> node) {
+        if (node.state == STATE_PROBATION) {
+            probationSegment.remove(node);
+        } else if (node.state == STATE_PROTECTED) {
+            protectedSegment.remove(node);
+            protectedSegment.weight -= node.weight;
+        }
+        if (node.state == STATE_PROBATION || node.state == STATE_PROTECTED) {
+            expirationQueue.remove(node);
+            totalWeight -= node.weight;
+        }
+        node.state = STATE_DEAD;
+    }
+
+    /**
+     * puts a node in the place of another in its segment and the expiration
+     * queue
+     *
+     * @param removed
+     * @param added
+     */
+    private void substitute(Node<K, V> removed, Node<K, V> added) {
+        if (removed.state == STATE_PROBATION) {
+            probationSegment.replace(removed, added);
+        } else {
+            protectedSegment.replace(removed, added);
+            protectedSegment.weight += added.weight - removed.weight;
+        }
+        expirationQueue.replace(removed, added);
+        totalWeight += added.weight - removed.weight;
+        added.state = removed.state;
+        removed.state = STATE_DEAD;
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="nodes">
+    /**
+     * one cache entry, the key, value, deadlines and weight never change, the
+     * links and state belong to the policy and are guarded by the policyLock
+     *
+     * @param <K>
+     * @param <V>
+     */
+    static final class Node<K, V> {
+
+        final K key;
+        final V value;
+        final long deadline;
+        final long refreshTime;
+        final long weight;
+        int state = STATE_PENDING;
+        Node<K, V> segmentPrevious;
+        Node<K, V> segmentNext;
+        Node<K, V> expirationPrevious;
+        Node<K, V> expirationNext;
+
+        Node(K key, V value, long deadline, long refreshTime, long weight) {
+            this.key = key;
+            this.value = value;
+            this.deadline = deadline;
+            this.refreshTime = refreshTime;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * an insert, a replacement (both set) or a removal waiting for the policy
+     *
+     * @param <K>
+     * @param <V>
+     */
+    private static final class PendingWrite<K, V> {
+
+        final Node<K, V> added;
+        final Node<K, V> removed;
+
+        PendingWrite(Node<K, V> added, Node<K, V> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /**
+     * intrusive doubly linked list of nodes, either through the segment links
+     * or the expiration links so a node can be on one of each
+     *
+     * @param <K>
+     * @param <V>
+     */
+    private static final class NodeList<K, V> {
+
+        private final boolean expirationLinks;
+        Node<K, V> head;
+        Node<K, V> tail;
+        long count;
+        //only kept for the protected segment, which is held to its share of
+        //the weight bound, probation is bounded through totalWeight
+        long weight;
+
+        NodeList(boolean expirationLinks) {
+            this.expirationLinks = expirationLinks;
+        }
+
+        void addLast(Node<K, V> node) {
+            setPrevious(node, tail);
+            setNext(node, null);
+            if (tail == null) {
+                head = node;
+            } else {
+                setNext(tail, node);
+            }
+            tail = node;
+            count++;
+        }
+
+        void remove(Node<K, V> node) {
+            Node<K, V> previous = previous(node);
+            Node<K, V> next = next(node);
+            if (previous == null) {
+                head = next;
+            } else {
+                setNext(previous, next);
+            }
+            if (next == null) {
+                tail = previous;
+            } else {
+                setPrevious(next, previous);
+            }
+            setPrevious(node, null);
+            setNext(node, null);
+            count--;
+        }
+
+        void replace(Node<K, V> node, Node<K, V> replacement) {
+            Node<K, V> previous = previous(node);
+            Node<K, V> next = next(node);
+            setPrevious(replacement, previous);
+            setNext(replacement, next);
+            if (previous == null) {
+                head = replacement;
+            } else {
+                setNext(previous, replacement);
+            }
+            if (next == null) {
+                tail = replacement;
+            } else {
+                setPrevious(next, replacement);
+            }
+            setPrevious(node, null);
+            setNext(node, null);
+        }
+
+        void moveToEnd(Node<K, V> node) {
+            if (tail != node) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        private Node<K, V> previous(Node<K, V> node) {
+            return expirationLinks ? node.expirationPrevious : node.segmentPrevious;
+        }
+
+        private Node<K, V> next(Node<K, V> node) {
+            return expirationLinks ? node.expirationNext : node.segmentNext;
+        }
+
+        private void setPrevious(Node<K, V> node, Node<K, V> previous) {
+            if (expirationLinks) {
+                node.expirationPrevious = previous;
+            } else {
+                node.segmentPrevious = previous;
+            }
+        }
+
+        private void setNext(Node<K, V> node, Node<K, V> next) {
+            if (expirationLinks) {
+                node.expirationNext = next;
+            } else {
+                node.segmentNext = next;
+            }
         }
     }
+    //</editor-fold>
 }
@@ -0,0 +1,165 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  everything we have read for one user, so that requests for different sets
+ *  of claims for the same user can share one cache entry and one copy of each
+ *  value
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * immutable set of attribute values for a user, attribute names are matched
+ * without regard to case. Attributes we asked for that the user does not have
+ * are remembered as well, so they are not searched for again
+ *
+ * @author robert.ginsburg
+ */
+final class UserAttributeRecord {
+
+    //upper case name -> value
+    private final Map<String, String> values;
+    //upper case names of every attribute we have asked AD for
+    private final Set<String> loadedNames;
+
+    private UserAttributeRecord(Map<String, String> values, Set<String> loadedNames) {
+        this.values = values;
+        this.loadedNames = loadedNames;
+    }
+
+    /**
+     * a record of what a load returned for the names we asked for
+     *
+     * @param propertyNames the names that were asked for
+     * @param propertyValues what the load returned, may include extra names
+     * @return
+     */
+    static UserAttributeRecord of(String[] propertyNames, Map<String, String> propertyValues) {
+        return new UserAttributeRecord(new HashMap<>(), new HashSet<>()).merge(propertyNames, propertyValues);
+    }
+
+    /**
+     * a new record with the values of another load added, values already in
+     * this record are replaced by the new ones
+     *
+     * @param propertyNames the names that were asked for
+     * @param propertyValues what the load returned, may include extra names
+     * @return
+     */
+    UserAttributeRecord merge(String[] propertyNames, Map<String, String> propertyValues) {
+        Map<String, String> mergedValues = new HashMap<>(values);
+        Set<String> mergedNames = new HashSet<>(loadedNames);
+        for (String propertyName : propertyNames) {
+            if (propertyName != null) {
+                String normalName = normalize(propertyName);
+                mergedNames.add(normalName);
+                //asked for again and not there any more
+                mergedValues.remove(normalName);
+            }
+        }
+        for (Map.Entry<String, String> propertyValue : propertyValues.entrySet()) {
+            String normalName = normalize(propertyValue.getKey());
+            mergedNames.add(normalName);
+            mergedValues.put(normalName, propertyValue.getValue());
+        }
+        return new UserAttributeRecord(Collections.unmodifiableMap(mergedValues), Collections.unmodifiableSet(mergedNames));
+    }
+
+    /**
+     * the names we have not asked AD for yet
+     *
+     * @param propertyNames
+     * @return empty if the record can answer all of them
+     */
+    String[] getMissingNames(String[] propertyNames) {
+        List<String> missingNames = null;
+        for (String propertyName : propertyNames) {
+            if (propertyName != null && !loadedNames.contains(normalize(propertyName))) {
+                if (missingNames == null) {
+                    missingNames = new ArrayList<>();
+                }
+                missingNames.add(propertyName);
+            }
+        }
+        return missingNames == null ? new String[0] : missingNames.toArray(new String[missingNames.size()]);
+    }
+
+    /**
+     * the names we have asked AD for, in upper case
+     *
+     * @return
+     */
+    String[] getLoadedNames() {
+        return loadedNames.toArray(new String[loadedNames.size()]);
+    }
+
+    /**
+     * a value by name
+     *
+     * @param propertyName
+     * @return null if the user does not have it or we have not loaded it
+     */
+    String get(String propertyName) {
+        return values.get(normalize(propertyName));
+    }
+
+    /**
+     * true if any of the names have been loaded into the record
+     *
+     * @param propertyNames
+     * @return
+     */
+    boolean hasAny(String... propertyNames) {
+        for (String propertyName : propertyNames) {
+            if (loadedNames.contains(normalize(propertyName))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the values for a request, keyed by the names as the caller spelled
+     * them, so a request for Mail gets Mail back even if the value was
+     * loaded for mail
+     *
+     * @param propertyNames
+     * @return a new map the caller may change
+     */
+    Map<String, String> select(String[] propertyNames) {
+        Map<String, String> returnValue = new HashMap<>();
+        for (String propertyName : propertyNames) {
+            if (propertyName != null) {
+                String propertyValue = values.get(normalize(propertyName));
+                if (propertyValue != null) {
+                    returnValue.put(propertyName, propertyValue);
+                }
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * rough retained size for the cache weigher
+     *
+     * @return
+     */
+    long estimateWeight() {
+        long weight = 64 + SimpleExpiringCache.estimateWeight(loadedNames);
+        for (String propertyValue : values.values()) {
+            weight += 56 + SimpleExpiringCache.estimateWeight(propertyValue);
+        }
+        return weight;
+    }
+
+    private static String normalize(String propertyName) {
+        return propertyName.toUpperCase(Locale.ENGLISH);
+    }
+}
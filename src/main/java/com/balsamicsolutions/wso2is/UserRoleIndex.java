@@ -0,0 +1,319 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  the users in each group, from their token groups, so listing the users in
+ *  a role does not have to search AD every time
+ */
+package com.balsamicsolutions.wso2is;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Predicate;
+
+/**
+ * reverse index from GroupDictionary id to the users with that group in their
+ * token groups, kept in user name order so a page of members is a walk from
+ * an offset. Reads do not lock, changes are serialized on the index. A group
+ * with more members than the group size limit is not indexed, its members are
+ * left to AD. If the index would hold more memberships than its limit it
+ * empties itself and stays empty, the store loads a new one later
+ *
+ * @author robert.ginsburg
+ */
+final class UserRoleIndex {
+
+    /**
+     * a user and the sorted ids of their groups
+     */
+    private static final class IndexedUser {
+
+        final String distinguishedName;
+        final String userName;
+        //guarded by the index
+        int[] groupIds;
+
+        IndexedUser(String distinguishedName, String userName, int[] groupIds) {
+            this.distinguishedName = distinguishedName;
+            this.userName = userName;
+            this.groupIds = groupIds;
+        }
+    }
+
+    /**
+     * the members of one group, the size is kept because a skip list has to
+     * be walked to count it
+     */
+    private static final class GroupMembers {
+
+        final NavigableSet<IndexedUser> members = new ConcurrentSkipListSet<>(USER_ORDER);
+        //guarded by the index
+        int size;
+    }
+
+    //the same user name can be in more than one domain of the forest
+    private static final Comparator<IndexedUser> USER_ORDER = Comparator
+            .comparing((IndexedUser indexedUser) -> indexedUser.userName, String.CASE_INSENSITIVE_ORDER)
+            .thenComparing(indexedUser -> indexedUser.distinguishedName);
+
+    private final long maximumEntries;
+    private final int maximumGroupSize;
+    //upper case distinguished name -> user
+    private final Map<String, IndexedUser> users = new ConcurrentHashMap<>();
+    private final Map<Integer, GroupMembers> groupMembers = new ConcurrentHashMap<>();
+    private final Set<Integer> oversizedGroups = ConcurrentHashMap.newKeySet();
+    //guarded by this
+    private long entryCount;
+    private volatile boolean overflowed;
+
+    /**
+     *
+     * @param maximumEntries memberships the index may hold
+     * @param maximumGroupSize members a group may have and still be indexed
+     */
+    UserRoleIndex(long maximumEntries, int maximumGroupSize) {
+        this.maximumEntries = maximumEntries;
+        this.maximumGroupSize = maximumGroupSize;
+    }
+
+    /**
+     * adds a user or replaces their groups
+     *
+     * @param distinguishedName
+     * @param userName
+     * @param sortedGroupIds from GroupDictionary.groupIds
+     * @return false if the index has overflowed
+     */
+    synchronized boolean update(String distinguishedName, String userName, int[] sortedGroupIds) {
+        if (overflowed) {
+            return false;
+        }
+        String userKey = distinguishedName.toUpperCase(Locale.ENGLISH);
+        IndexedUser indexedUser = users.get(userKey);
+        if (indexedUser != null && indexedUser.userName.equals(userName)) {
+            return updateGroups(indexedUser, sortedGroupIds);
+        }
+        if (indexedUser != null) {
+            //renamed, its place in the member order has changed
+            removeUser(indexedUser);
+        }
+        indexedUser = new IndexedUser(userKey, userName, new int[0]);
+        users.put(userKey, indexedUser);
+        return updateGroups(indexedUser, sortedGroupIds);
+    }
+
+    /**
+     * replaces the groups of a user who is already in the index, other users
+     * are left alone since we do not know their user name
+     *
+     * @param distinguishedName
+     * @param sortedGroupIds
+     * @return false if the index has overflowed
+     */
+    synchronized boolean updateGroups(String distinguishedName, int[] sortedGroupIds) {
+        if (overflowed) {
+            return false;
+        }
+        IndexedUser indexedUser = users.get(distinguishedName.toUpperCase(Locale.ENGLISH));
+        return indexedUser == null || updateGroups(indexedUser, sortedGroupIds);
+    }
+
+    /**
+     * takes a user out of the index
+     *
+     * @param distinguishedName
+     */
+    synchronized void remove(String distinguishedName) {
+        IndexedUser indexedUser = users.get(distinguishedName.toUpperCase(Locale.ENGLISH));
+        if (indexedUser != null) {
+            removeUser(indexedUser);
+        }
+    }
+
+    /**
+     * true if the user is in the index
+     *
+     * @param distinguishedName
+     * @return
+     */
+    boolean contains(String distinguishedName) {
+        return users.containsKey(distinguishedName.toUpperCase(Locale.ENGLISH));
+    }
+
+    /**
+     * adds the upper case distinguished names of the members of a group
+     *
+     * @param groupId
+     * @param distinguishedNames
+     * @return false if the group is not indexed because it is too big, or the
+     * index has overflowed
+     */
+    boolean addMemberNames(int groupId, Set<String> distinguishedNames) {
+        GroupMembers indexedMembers = groupMembers.get(groupId);
+        if (overflowed || oversizedGroups.contains(groupId)) {
+            return false;
+        }
+        if (indexedMembers != null) {
+            for (IndexedUser indexedUser : indexedMembers.members) {
+                distinguishedNames.add(indexedUser.distinguishedName);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * a page of the user names in any of the groups, in user name order
+     *
+     * @param groupIds
+     * @param userNameFilter which user names to include
+     * @param offset matching users to skip
+     * @param limit the most to return, zero or less for all of them
+     * @return null if one of the groups is too big to be indexed or the index
+     * has overflowed, the caller has to ask AD
+     */
+    List<String> members(int[] groupIds, Predicate<String> userNameFilter, int offset, int limit) {
+        if (overflowed) {
+            return null;
+        }
+        NavigableSet<IndexedUser> roleMembers = null;
+        for (int groupId : groupIds) {
+            if (oversizedGroups.contains(groupId)) {
+                return null;
+            }
+            GroupMembers indexedMembers = groupMembers.get(groupId);
+            if (indexedMembers == null) {
+                continue;
+            }
+            if (roleMembers == null) {
+                roleMembers = indexedMembers.members;
+            } else {
+                //groups with the same name in different domains
+                NavigableSet<IndexedUser> mergedMembers = new TreeSet<>(USER_ORDER);
+                mergedMembers.addAll(roleMembers);
+                mergedMembers.addAll(indexedMembers.members);
+                roleMembers = mergedMembers;
+            }
+        }
+        if (roleMembers == null) {
+            return Collections.emptyList();
+        }
+        List<String> returnValue = new ArrayList<>();
+        int skipped = 0;
+        for (IndexedUser indexedUser : roleMembers) {
+            if (limit > 0 && returnValue.size() >= limit) {
+                break;
+            }
+            if (!userNameFilter.test(indexedUser.userName)) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                returnValue.add(indexedUser.userName);
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * true if it went over its limit and emptied itself
+     *
+     * @return
+     */
+    boolean isOverflowed() {
+        return overflowed;
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="statistics">
+    int getUserCount() {
+        return users.size();
+    }
+
+    synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    int getGroupCount() {
+        return groupMembers.size();
+    }
+
+    int getOversizedGroupCount() {
+        return oversizedGroups.size();
+    }
+    //</editor-fold>
+
+    /**
+     * moves the user out of the groups they left and into the ones they
+     * joined, walking the two sorted arrays side by side
+     */
+    private boolean updateGroups(IndexedUser indexedUser, int[] sortedGroupIds) {
+        int[] previousIds = indexedUser.groupIds;
+        int previousIndex = 0;
+        int newIndex = 0;
+        while (previousIndex < previousIds.length || newIndex < sortedGroupIds.length) {
+            if (newIndex >= sortedGroupIds.length
+                    || (previousIndex < previousIds.length && previousIds[previousIndex] < sortedGroupIds[newIndex])) {
+                removeMember(previousIds[previousIndex++], indexedUser);
+            } else if (previousIndex >= previousIds.length || sortedGroupIds[newIndex] < previousIds[previousIndex]) {
+                addMember(sortedGroupIds[newIndex++], indexedUser);
+            } else {
+                previousIndex++;
+                newIndex++;
+            }
+        }
+        indexedUser.groupIds = sortedGroupIds;
+        if (entryCount > maximumEntries) {
+            overflow();
+            return false;
+        }
+        return true;
+    }
+
+    private void removeUser(IndexedUser indexedUser) {
+        for (int groupId : indexedUser.groupIds) {
+            removeMember(groupId, indexedUser);
+        }
+        users.remove(indexedUser.distinguishedName);
+    }
+
+    private void addMember(int groupId, IndexedUser indexedUser) {
+        if (oversizedGroups.contains(groupId)) {
+            return;
+        }
+        GroupMembers indexedMembers = groupMembers.computeIfAbsent(groupId, key -> new GroupMembers());
+        if (indexedMembers.size >= maximumGroupSize) {
+            //too big to be worth the memory, AD answers for it from now on
+            oversizedGroups.add(groupId);
+            groupMembers.remove(groupId);
+            entryCount -= indexedMembers.size;
+            return;
+        }
+        if (indexedMembers.members.add(indexedUser)) {
+            indexedMembers.size++;
+            entryCount++;
+        }
+    }
+
+    private void removeMember(int groupId, IndexedUser indexedUser) {
+        GroupMembers indexedMembers = groupMembers.get(groupId);
+        if (indexedMembers != null && indexedMembers.members.remove(indexedUser)) {
+            indexedMembers.size--;
+            entryCount--;
+        }
+    }
+
+    private void overflow() {
+        overflowed = true;
+        users.clear();
+        groupMembers.clear();
+        oversizedGroups.clear();
+        entryCount = 0;
+    }
+}
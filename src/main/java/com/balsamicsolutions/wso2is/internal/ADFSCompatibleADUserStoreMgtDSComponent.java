@@ -40,6 +40,8 @@ public class ADFSCompatibleADUserStoreMgtDSComponent {
      * @param ctxt
      */
     protected void deactivate(ComponentContext ctxt) {
+        //the stores WSO2 built from this bundle are not told it is going away
+        ADFSCompatibleADUserStore.shutdownAll();
         if (sysLogger.isDebugEnabled()) {
             sysLogger.debug("ADFSCompatibleADUserStore bundle " + QL_VER +" has deactivated ");
         }
@@ -0,0 +1,532 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  runs the store against an in memory directory that stands in for AD
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wso2.carbon.user.api.RealmConfiguration;
+
+/**
+ * lookups, the batched and async lookups, and change tracking. Each test gets
+ * its own directory and store, change tracking is polled by the test instead
+ * of on a timer
+ *
+ * @author robert.ginsburg
+ */
+public class ADFSCompatibleADUserStoreTest {
+
+    private static final String[] CLAIMS = {"mail", "netBIOSDomainName", "tokenGroupsUnqualifiedNames", "tokenGroupsQualifiedByDomainName"};
+
+    private InMemoryActiveDirectory directory;
+    private ADFSCompatibleADUserStore store;
+
+    private InMemoryActiveDirectory secondDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = new InMemoryActiveDirectory("dc1");
+        addTestObjects(directory);
+    }
+
+    @After
+    public void tearDown() throws Throwable {
+        if (store != null) {
+            store.shutdown();
+        }
+        directory.shutDown();
+        if (secondDirectory != null) {
+            secondDirectory.shutDown();
+        }
+    }
+
+    @Test
+    public void readsAttributesAndNestedTokenGroups() throws Exception {
+        store = createStore(Collections.emptyMap());
+        Map<String, String> claims = store.getUserPropertyValuesInternal("alice", CLAIMS);
+        assertEquals("alice@example.com", claims.get("mail"));
+        assertEquals("EXAMPLE", claims.get("netBIOSDomainName"));
+        assertEquals(names("Sales", "Staff"), split(claims.get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("EXAMPLE\\Sales", "EXAMPLE\\Staff"), split(claims.get("tokenGroupsQualifiedByDomainName")));
+    }
+
+    @Test
+    public void everyTokenGroupFormatIsBuiltOnceForUsersInTheSameGroups() throws Exception {
+        directory.addMember("Sales", directory.addUser("dave", 1203));
+        directory.addMember("Sales", directory.addUser("erin", 1204));
+        store = createStore(Collections.emptyMap());
+        Map<String, String> claims = store.getUserPropertyValuesInternal("alice", new String[]{"tokenGroupsAsSids", "tokenGroupsQualifiedByLongDomainName"});
+        assertEquals(names("S-1-5-21-1-2-3-1101", "S-1-5-21-1-2-3-1100"), split(claims.get("tokenGroupsAsSids")));
+        assertEquals(names("EXAMPLE.COM\\Sales", "EXAMPLE.COM\\Staff"), split(claims.get("tokenGroupsQualifiedByLongDomainName")));
+        //dave has the same groups, only the formats alice did not ask for are built
+        long groupLookups = store.getCacheStatistics().get("groupSidGroupNamesCache.hits");
+        claims = store.getUserPropertyValuesInternal("dave", CLAIMS);
+        assertEquals(names("Sales", "Staff"), split(claims.get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("EXAMPLE\\Sales", "EXAMPLE\\Staff"), split(claims.get("tokenGroupsQualifiedByDomainName")));
+        assertTrue(store.getCacheStatistics().get("groupSidGroupNamesCache.hits") > groupLookups);
+        //and erin gets all of them without looking at the groups again
+        groupLookups = store.getCacheStatistics().get("groupSidGroupNamesCache.hits");
+        String[] allFormats = {"tokenGroupsAsSids", "tokenGroupsQualifiedByLongDomainName", "tokenGroupsUnqualifiedNames", "tokenGroupsQualifiedByDomainName"};
+        claims = store.getUserPropertyValuesInternal("erin", allFormats);
+        assertEquals(names("S-1-5-21-1-2-3-1101", "S-1-5-21-1-2-3-1100"), split(claims.get("tokenGroupsAsSids")));
+        assertEquals(names("EXAMPLE.COM\\Sales", "EXAMPLE.COM\\Staff"), split(claims.get("tokenGroupsQualifiedByLongDomainName")));
+        assertEquals(names("Sales", "Staff"), split(claims.get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("EXAMPLE\\Sales", "EXAMPLE\\Staff"), split(claims.get("tokenGroupsQualifiedByDomainName")));
+        assertEquals(Long.valueOf(groupLookups), store.getCacheStatistics().get("groupSidGroupNamesCache.hits"));
+    }
+
+    @Test
+    public void unknownUserHasNoClaims() throws Exception {
+        store = createStore(Collections.emptyMap());
+        assertTrue(store.getUserPropertyValuesInternal("nobody", CLAIMS).isEmpty());
+        assertTrue(store.getUserPropertyValuesInternal("nobody", CLAIMS).isEmpty());
+        assertEquals(Long.valueOf(1), store.getCacheStatistics().get("unknownUserCache.hits"));
+    }
+
+    @Test
+    public void negativeCachingCanBeTurnedOff() throws Exception {
+        store = createStore(Collections.singletonMap("NegativeCacheSeconds", "0"));
+        assertTrue(store.getUserPropertyValuesInternal("nobody", CLAIMS).isEmpty());
+        int searchCount = directory.getSearchCount();
+        assertTrue(store.getUserPropertyValuesInternal("nobody", CLAIMS).isEmpty());
+        assertTrue(directory.getSearchCount() > searchCount);
+        assertFalse(store.getCacheStatistics().containsKey("unknownUserCache.hits"));
+    }
+
+    @Test
+    public void batchMatchesSingleLookups() throws Throwable {
+        store = createStore(Collections.singletonMap("UserBatchSize", "2"));
+        Map<String, Map<String, String>> batch = store.getUserPropertyValuesBatch(Arrays.asList("alice", "bob", "carol", "nobody"), CLAIMS);
+        assertEquals(Arrays.asList("alice", "bob", "carol", "nobody"), Arrays.asList(batch.keySet().toArray()));
+        assertTrue(batch.get("nobody").isEmpty());
+        ADFSCompatibleADUserStore singleStore = createStore(Collections.emptyMap());
+        try {
+            for (String userName : Arrays.asList("alice", "bob", "carol")) {
+                assertClaimsEqual(singleStore.getUserPropertyValuesInternal(userName, CLAIMS), batch.get(userName));
+            }
+        } finally {
+            singleStore.shutdown();
+        }
+    }
+
+    @Test
+    public void exportMatchesSingleLookupsAndLeavesTheUserCachesAlone() throws Throwable {
+        directory.addMember("Support", directory.addUser("dave", 1203));
+        directory.addMember("Sales", directory.addUser("erin", 1204));
+        //five users in batches of two
+        store = createStore(Collections.singletonMap("UserBatchSize", "2"));
+        store.getUserPropertyValuesInternal("alice", CLAIMS);
+        Map<String, Long> userCacheStatistics = userCacheStatistics(store);
+        assertEquals(Long.valueOf(1), userCacheStatistics.get("userPropertyCache.size"));
+        Map<String, Map<String, String>> exported = new HashMap<>();
+        assertEquals(5, store.exportUserClaims(CLAIMS, (userName, claims) -> {
+            assertNull(userName, exported.put(userName, claims));
+            return true;
+        }));
+        assertEquals(names("alice", "bob", "carol", "dave", "erin"), exported.keySet());
+        assertEquals(userCacheStatistics, userCacheStatistics(store));
+        ADFSCompatibleADUserStore singleStore = createStore(Collections.emptyMap());
+        try {
+            for (Map.Entry<String, Map<String, String>> exportedUser : exported.entrySet()) {
+                assertClaimsEqual(singleStore.getUserPropertyValuesInternal(exportedUser.getKey(), CLAIMS), exportedUser.getValue());
+            }
+        } finally {
+            singleStore.shutdown();
+        }
+        //false from the handler stops it part way through the second batch
+        AtomicInteger handledCount = new AtomicInteger();
+        assertEquals(3, store.exportUserClaims(CLAIMS, (userName, claims) -> handledCount.incrementAndGet() < 3));
+        assertEquals(3, handledCount.get());
+    }
+
+    @Test
+    public void asyncMatchesSingleLookups() throws Exception {
+        store = createStore(Collections.emptyMap());
+        Map<String, String> asyncClaims = store.getUserPropertyValuesAsync("alice", CLAIMS).get(10, TimeUnit.SECONDS);
+        assertClaimsEqual(store.getUserPropertyValuesInternal("alice", CLAIMS), asyncClaims);
+        assertEquals(names("Sales", "Staff"), split(asyncClaims.get("tokenGroupsUnqualifiedNames")));
+        //the second one is answered from the cache
+        assertClaimsEqual(asyncClaims, store.getUserPropertyValuesAsync("alice", CLAIMS).get(10, TimeUnit.SECONDS));
+        assertTrue(store.getUserPropertyValuesAsync("nobody", CLAIMS).get(10, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void groupSidsAreLookedUpInParallelBatches() throws Exception {
+        Set<String> expectedNames = new HashSet<>();
+        String carol = directory.userDistinguishedName("carol");
+        for (int i = 0; i < 60; i++) {
+            directory.addGroup("Project" + i, 2000 + i);
+            directory.addMember("Project" + i, carol);
+            expectedNames.add("Project" + i);
+        }
+        Map<String, String> properties = new HashMap<>();
+        properties.put("SidBatchSizeMin", "5");
+        properties.put("SidBatchSizeInitial", "7");
+        properties.put("SidLookupParallelism", "4");
+        store = createStore(properties);
+        assertEquals(expectedNames, split(store.getUserPropertyValuesInternal("carol", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        assertEquals(Long.valueOf(60), store.getCacheStatistics().get("groupSidGroupNamesCache.size"));
+    }
+
+    @Test
+    public void pagedSearchesGetPastTheServerSizeLimit() throws Exception {
+        //like AD with its MaxPageSize, the server hands out 20 entries a page
+        directory.shutDown();
+        directory = new InMemoryActiveDirectory("dc1", 20);
+        addTestObjects(directory);
+        Set<String> expectedNames = new HashSet<>();
+        String carol = directory.userDistinguishedName("carol");
+        for (int i = 0; i < 60; i++) {
+            directory.addGroup("Project" + i, 2000 + i);
+            directory.addMember("Project" + i, carol);
+            expectedNames.add("Project" + i);
+        }
+        Map<String, String> properties = new HashMap<>();
+        //all 60 SIDs in one search
+        properties.put("SidBatchSizeMin", "60");
+        properties.put("SidBatchSizeInitial", "60");
+        properties.put("SidLookupParallelism", "1");
+        properties.put("LdapPageSize", "10");
+        store = createStore(properties);
+        assertEquals(expectedNames, split(store.getUserPropertyValuesInternal("carol", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        store.preloadGroupCatalog();
+        assertEquals(Long.valueOf(63), store.getCacheStatistics().get("groupCatalog.loaded"));
+        assertEquals(Long.valueOf(1), store.getCacheStatistics().get("groupCatalog.complete"));
+    }
+
+    @Test(timeout = 10000)
+    public void domainNamesComeFromThePartitionIndex() throws Exception {
+        directory.addPartition("EMEA", "emea.example.com", "DC=emea," + InMemoryActiveDirectory.BASE_DN);
+        store = createStore(Collections.emptyMap());
+        //the first load starts with the store
+        while (store.getCacheStatistics().get("partitionIndex.loads") < 1) {
+            Thread.sleep(10);
+        }
+        assertEquals(Long.valueOf(2), store.getCacheStatistics().get("partitionIndex.domains"));
+        int searchCount = directory.getSearchCount();
+        String alice = directory.userDistinguishedName("alice");
+        assertEquals("EXAMPLE", store.getDomainNameFromDistinguishedName(alice, false));
+        assertEquals("EXAMPLE.COM", store.getDomainNameFromDistinguishedName(alice, true));
+        assertEquals("EMEA", store.getDomainNameFromDistinguishedName("CN=dana,OU=Users,DC=emea,DC=example,DC=com", false));
+        assertEquals("EMEA.EXAMPLE.COM", store.getDomainNameFromDistinguishedName("CN=dana,OU=Users,DC=Emea, DC=Example, DC=Com", true));
+        assertEquals(searchCount, directory.getSearchCount());
+        //a domain the forest does not have is still looked up
+        store.getDomainNameFromDistinguishedName("CN=erin,DC=example,DC=org", false);
+        assertTrue(directory.getSearchCount() > searchCount);
+    }
+
+    @Test(timeout = 10000)
+    public void preloadedGroupsNeedNoSidSearches() throws Exception {
+        store = createStore(Collections.singletonMap("PreloadGroupCatalog", "true"));
+        while (store.getCacheStatistics().get("groupCatalog.complete") == 0) {
+            Thread.sleep(10);
+        }
+        Map<String, Long> statistics = store.getCacheStatistics();
+        assertEquals(Long.valueOf(3), statistics.get("groupCatalog.loaded"));
+        assertEquals(Long.valueOf(3), statistics.get("groupSidGroupNamesCache.size"));
+        //the first login finds every group of its tokenGroups in the cache
+        Map<String, String> claims = store.getUserPropertyValuesInternal("alice", CLAIMS);
+        assertEquals(names("Sales", "Staff"), split(claims.get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("Support"), split(store.getUserPropertyValuesInternal("bob", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        assertEquals(0, directory.getSidSearchCount());
+    }
+
+    @Test
+    public void attributeChangeIsSeenAfterPoll() throws Exception {
+        store = createStore(Collections.emptyMap());
+        store.pollDirectoryChanges();
+        assertEquals("alice@example.com", store.getUserPropertyValuesInternal("alice", CLAIMS).get("mail"));
+        assertEquals("bob@example.com", store.getUserPropertyValuesInternal("bob", CLAIMS).get("mail"));
+        directory.modifyUser("alice", "mail", "alice.smith@example.com");
+        //cached until the change is polled
+        assertEquals("alice@example.com", store.getUserPropertyValuesInternal("alice", CLAIMS).get("mail"));
+        store.pollDirectoryChanges();
+        long missCount = store.getCacheStatistics().get("userPropertyCache.misses");
+        assertEquals("alice.smith@example.com", store.getUserPropertyValuesInternal("alice", CLAIMS).get("mail"));
+        assertEquals(missCount + 1, (long) store.getCacheStatistics().get("userPropertyCache.misses"));
+        //bob did not change, so he is still cached
+        assertEquals("bob@example.com", store.getUserPropertyValuesInternal("bob", CLAIMS).get("mail"));
+        assertEquals(missCount + 1, (long) store.getCacheStatistics().get("userPropertyCache.misses"));
+    }
+
+    @Test
+    public void groupRenameIsSeenAfterPoll() throws Exception {
+        store = createStore(Collections.emptyMap());
+        store.pollDirectoryChanges();
+        assertEquals(names("Sales", "Staff"), split(store.getUserPropertyValuesInternal("alice", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        directory.renameGroup("Staff", "Employees");
+        store.pollDirectoryChanges();
+        Map<String, String> claims = store.getUserPropertyValuesInternal("alice", CLAIMS);
+        assertEquals(names("Sales", "Employees"), split(claims.get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("EXAMPLE\\Sales", "EXAMPLE\\Employees"), split(claims.get("tokenGroupsQualifiedByDomainName")));
+    }
+
+    @Test
+    public void membershipChangeIsSeenAfterPoll() throws Exception {
+        store = createStore(Collections.emptyMap());
+        store.pollDirectoryChanges();
+        assertEquals(names("Support"), split(store.getUserPropertyValuesInternal("bob", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("Sales", "Staff"), split(store.getUserPropertyValuesInternal("alice", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        directory.addMember("Sales", directory.userDistinguishedName("bob"));
+        store.pollDirectoryChanges();
+        assertEquals(names("Sales", "Staff", "Support"), split(store.getUserPropertyValuesInternal("bob", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        //a nested group leaving takes its parent away from everyone in it
+        directory.removeMember("Staff", directory.groupDistinguishedName("Sales"));
+        store.pollDirectoryChanges();
+        assertEquals(names("Sales"), split(store.getUserPropertyValuesInternal("alice", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        assertEquals(names("Sales", "Support"), split(store.getUserPropertyValuesInternal("bob", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+        assertTrue(store.getCacheStatistics().get("changeTracking.invalidations") > 0);
+    }
+
+    @Test
+    public void membershipChangeInARangedGroupIsSeenAfterPoll() throws Exception {
+        //Sales has more members than fit in one range, so AD hands them back
+        //as member;range=0-1 and the rest has to be asked for
+        directory.setMaxValRange(2);
+        directory.addMember("Sales", directory.addUser("dave", 1203));
+        directory.addMember("Sales", directory.addUser("erin", 1204));
+        store = createStore(Collections.emptyMap());
+        store.pollDirectoryChanges();
+        assertFalse(split(store.getUserPropertyValuesInternal("carol", CLAIMS).get("tokenGroupsUnqualifiedNames")).contains("Sales"));
+        //carol is the fourth member, she is only in the second range
+        directory.addMember("Sales", directory.userDistinguishedName("carol"));
+        store.pollDirectoryChanges();
+        assertEquals(names("Sales", "Staff"), split(store.getUserPropertyValuesInternal("carol", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+    }
+
+    @Test
+    public void rolesAreNestedTokenGroupsWithoutTheDomain() throws Exception {
+        store = createStore(Collections.singletonMap("DomainName", "EXAMPLE.COM"));
+        assertEquals(names("Sales", "Staff"), names(store.doGetExternalRoleListOfUser("alice", "*")));
+        assertEquals(names("Sales"), names(store.doGetExternalRoleListOfUser("alice", "Sa*")));
+        assertTrue(store.doCheckIsUserInRole("alice", "Staff"));
+        assertTrue(store.doCheckIsUserInRole("alice", "EXAMPLE.COM/Staff"));
+        assertFalse(store.doCheckIsUserInRole("alice", "Support"));
+    }
+
+    @Test
+    public void roleMembersFromTheDirectoryIncludeNestedMembers() throws Exception {
+        store = createStore(Collections.singletonMap("DomainName", "EXAMPLE.COM"));
+        //Staff only has the Sales group as a member, alice is in it through Sales
+        assertEquals(names("EXAMPLE.COM/alice"), names(store.doGetUserListOfRole("Staff", "*")));
+        assertEquals(names("EXAMPLE.COM/alice"), names(store.doGetUserListOfRole("EXAMPLE.COM/Sales", "a*")));
+        assertEquals(names(), names(store.doGetUserListOfRole("Sales", "b*")));
+        assertEquals(Arrays.asList("EXAMPLE.COM/bob"), store.getUserListOfRole("Support", "*", 0, 10));
+        assertEquals(names(), names(store.doGetUserListOfRole("NoSuchRole", "*")));
+    }
+
+    @Test
+    public void primaryGroupMembersMustBeInTheDomainOfTheGroup() throws Exception {
+        //frank has Support (1102) as his primary group, grace has 1102 in
+        //another domain, which is some other group
+        directory.addUser("frank", 1205);
+        directory.modifyUser("frank", "primaryGroupID", "1102");
+        directory.addOtherDomainUser("grace", 1206);
+        directory.modifyUser("grace", "primaryGroupID", "1102");
+        store = createStore(Collections.singletonMap("DomainName", "EXAMPLE.COM"));
+        assertEquals(names("EXAMPLE.COM/bob", "EXAMPLE.COM/frank"), names(store.doGetUserListOfRole("Support", "*")));
+        assertEquals(Arrays.asList("EXAMPLE.COM/bob", "EXAMPLE.COM/frank"), store.getUserListOfRole("Support", "*", 0, 10));
+    }
+
+    @Test
+    public void roleMembersFromTheIndexMatchTheDirectory() throws Throwable {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("UserRoleIndex", "true");
+        properties.put("DomainName", "EXAMPLE.COM");
+        store = createStore(properties);
+        for (int i = 0; i < 100 && store.getCacheStatistics().get("userRoleIndex.loads") == 0; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(Long.valueOf(1), store.getCacheStatistics().get("userRoleIndex.loads"));
+        for (String roleName : Arrays.asList("Staff", "Sales", "Support")) {
+            long hitCount = store.getCacheStatistics().get("userRoleIndex.hits");
+            Set<String> indexedUsers = names(store.doGetUserListOfRole(roleName, "*"));
+            assertEquals(hitCount + 1, (long) store.getCacheStatistics().get("userRoleIndex.hits"));
+            ADFSCompatibleADUserStore directoryStore = createStore(Collections.singletonMap("DomainName", "EXAMPLE.COM"));
+            try {
+                assertEquals(roleName, names(directoryStore.doGetUserListOfRole(roleName, "*")), indexedUsers);
+            } finally {
+                directoryStore.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void droppedStoreCanBeCollected() throws Exception {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ChangeTrackingIntervalSeconds", "1");
+        properties.put("UserRoleIndex", "true");
+        ADFSCompatibleADUserStore droppedStore = createStore(properties);
+        droppedStore.getUserPropertyValuesInternal("alice", CLAIMS);
+        WeakReference<ADFSCompatibleADUserStore> storeReference = new WeakReference<>(droppedStore);
+        droppedStore = null;
+        //the timer threads are still running, they must not keep it alive
+        for (int i = 0; i < 100 && storeReference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertNull(storeReference.get());
+        //its finalizer lets go of the clock, it must not do it during a later test
+        System.runFinalization();
+    }
+
+    @Test
+    public void shutdownLetsGoOfTheClock() throws Exception {
+        int userCount = CoarseClock.getUserCount();
+        ADFSCompatibleADUserStore clockStore = createStore(Collections.emptyMap());
+        assertEquals(userCount + 1, CoarseClock.getUserCount());
+        clockStore.shutdown();
+        assertEquals(userCount, CoarseClock.getUserCount());
+        //a second shutdown must not take another store's start away
+        clockStore.shutdown();
+        assertEquals(userCount, CoarseClock.getUserCount());
+    }
+
+    @Test
+    public void changeTrackingComesBackWithoutClearingTheCaches() throws Exception {
+        secondDirectory = new InMemoryActiveDirectory("dc2");
+        addTestObjects(secondDirectory);
+        Map<String, String> properties = new HashMap<>();
+        properties.put("DomainControllerURLs", directory.getUrl() + "," + secondDirectory.getUrl());
+        properties.put("DomainControllerProbeSeconds", "0");
+        properties.put("DomainControllerQuarantineSeconds", "1");
+        store = createStore(properties);
+        store.pollDirectoryChanges();
+        //three failed polls quarantine dc1, the next one is on dc2 which we
+        //have never polled, so the caches go
+        directory.setUnavailable(true);
+        for (int i = 0; i < 3; i++) {
+            store.pollDirectoryChanges();
+        }
+        store.getUserPropertyValuesInternal("bob", CLAIMS);
+        long invalidationCount = store.getCacheStatistics().get("changeTracking.invalidations");
+        store.pollDirectoryChanges();
+        assertTrue(store.getCacheStatistics().get("changeTracking.invalidations") > invalidationCount);
+        assertEquals("alice@example.com", store.getUserPropertyValuesInternal("alice", CLAIMS).get("mail"));
+        store.getUserPropertyValuesInternal("bob", CLAIMS);
+        //back on dc1, carrying on from its last USN picks up the change made
+        //while we were away and leaves the rest of the cache alone
+        directory.modifyUser("alice", "mail", "alice.smith@example.com");
+        directory.setUnavailable(false);
+        Thread.sleep(1100);
+        store.pollDirectoryChanges();
+        long missCount = store.getCacheStatistics().get("userPropertyCache.misses");
+        store.getUserPropertyValuesInternal("bob", CLAIMS);
+        assertEquals(missCount, (long) store.getCacheStatistics().get("userPropertyCache.misses"));
+        store.getUserPropertyValuesInternal("alice", CLAIMS);
+        assertEquals(missCount + 1, (long) store.getCacheStatistics().get("userPropertyCache.misses"));
+    }
+
+    @Test
+    public void domainControllersDoNotWaitForADeadConnectionUrl() throws Exception {
+        secondDirectory = new InMemoryActiveDirectory("dc2");
+        addTestObjects(secondDirectory);
+        try (ServerSocket deadConnectionUrl = new ServerSocket(0)) {
+            //takes connections and hangs up on them
+            AtomicInteger connectCount = new AtomicInteger();
+            Thread hangUp = new Thread(() -> {
+                while (true) {
+                    try (Socket connection = deadConnectionUrl.accept()) {
+                        connectCount.incrementAndGet();
+                    } catch (IOException closed) {
+                        return;
+                    }
+                }
+            });
+            hangUp.setDaemon(true);
+            hangUp.start();
+            Map<String, String> properties = new HashMap<>();
+            properties.put("ConnectionURL", "ldap://localhost:" + deadConnectionUrl.getLocalPort());
+            properties.put("DomainControllerURLs", directory.getUrl() + "," + secondDirectory.getUrl());
+            //a new context for every lookup, and the probe opens some right away
+            properties.put("LdapPoolMaxSize", "0");
+            //so tokenGroups is only binary because the store asks for it
+            properties.put("java.naming.ldap.attributes.binary", null);
+            store = createStore(properties);
+            for (String userName : Arrays.asList("alice", "bob", "carol")) {
+                assertEquals(userName + "@example.com", store.getUserPropertyValuesInternal(userName, CLAIMS).get("mail"));
+            }
+            assertEquals(names("Sales", "Staff"), split(store.getUserPropertyValuesInternal("alice", CLAIMS).get("tokenGroupsUnqualifiedNames")));
+            assertEquals(1, connectCount.get());
+        }
+    }
+
+    /**
+     * the groups and users every test starts with
+     */
+    private static void addTestObjects(InMemoryActiveDirectory testDirectory) throws Exception {
+        testDirectory.addGroup("Staff", 1100);
+        String sales = testDirectory.addGroup("Sales", 1101);
+        testDirectory.addGroup("Support", 1102);
+        testDirectory.addMember("Staff", sales);
+        testDirectory.addMember("Sales", testDirectory.addUser("alice", 1200));
+        testDirectory.addMember("Support", testDirectory.addUser("bob", 1201));
+        testDirectory.addUser("carol", 1202);
+    }
+
+    /**
+     * a store on the directory, with the properties added to the ones the
+     * directory needs
+     */
+    private ADFSCompatibleADUserStore createStore(Map<String, String> properties) throws Exception {
+        Map<String, String> storeProperties = directory.getUserStoreProperties();
+        storeProperties.putAll(properties);
+        RealmConfiguration realmConfig = new RealmConfiguration();
+        realmConfig.setUserStoreProperties(storeProperties);
+        return new ADFSCompatibleADUserStore(realmConfig, null, null);
+    }
+
+    /**
+     * the counters of the caches that hold one entry per user
+     */
+    private static Map<String, Long> userCacheStatistics(ADFSCompatibleADUserStore userStore) {
+        Map<String, Long> returnValue = new HashMap<>();
+        for (Map.Entry<String, Long> statistic : userStore.getCacheStatistics().entrySet()) {
+            if (statistic.getKey().startsWith("user") && statistic.getKey().contains("Cache.")) {
+                returnValue.put(statistic.getKey(), statistic.getValue());
+            }
+        }
+        return returnValue;
+    }
+
+    private static void assertClaimsEqual(Map<String, String> expected, Map<String, String> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String claimName : expected.keySet()) {
+            if (claimName.startsWith("tokenGroups")) {
+                //the order of the groups is not part of the claim
+                assertEquals(claimName, split(expected.get(claimName)), split(actual.get(claimName)));
+            } else {
+                assertEquals(claimName, expected.get(claimName), actual.get(claimName));
+            }
+        }
+    }
+
+    private static Set<String> names(String... names) {
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    private static Set<String> split(String claim) {
+        List<String> names = claim == null ? Collections.emptyList() : Arrays.asList(claim.split(","));
+        return new HashSet<>(names);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the SID batch sizing
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * additive growth after fast searches, shrinking by a third after slow ones,
+ * the bounds, and batches that tell us nothing
+ *
+ * @author robert.ginsburg
+ */
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void fastFullBatchesGrowByASteadyStep() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 50, 250, 200);
+        for (int i = 1; i <= 3; i++) {
+            sizer.record(sizer.batchSize(), 5, 50);
+            assertEquals(50 + 10 * i, sizer.batchSize());
+        }
+        //on target, but not under half of it, leaves it alone
+        sizer.record(sizer.batchSize(), 5, 150);
+        assertEquals(80, sizer.batchSize());
+    }
+
+    @Test
+    public void slowBatchesShrinkByAThird() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 90, 250, 200);
+        sizer.record(90, 5, 300);
+        assertEquals(60, sizer.batchSize());
+        //a smaller batch that was slow shrinks from its own size
+        sizer.record(30, 5, 300);
+        assertEquals(20, sizer.batchSize());
+    }
+
+    @Test
+    public void staysBetweenTheBounds() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 1000, 100, 200);
+        assertEquals(100, sizer.batchSize());
+        sizer.record(100, 5, 10);
+        assertEquals(100, sizer.batchSize());
+        for (int i = 0; i < 10; i++) {
+            sizer.record(sizer.batchSize(), 5, 1000);
+        }
+        assertEquals(10, sizer.batchSize());
+        //nonsense settings still give a usable size
+        AdaptiveBatchSizer unset = new AdaptiveBatchSizer(0, 0, 0, 0);
+        assertEquals(1, unset.batchSize());
+        unset.record(1, 1, 0);
+        assertEquals(1, unset.batchSize());
+    }
+
+    @Test
+    public void emptyAndPartialBatchesDoNotGrow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(10, 50, 250, 200);
+        //nothing found says little about the cost of results
+        sizer.record(50, 0, 10);
+        assertEquals(50, sizer.batchSize());
+        //the last few SIDs of a lookup, fast because there were few of them
+        sizer.record(12, 12, 10);
+        assertEquals(50, sizer.batchSize());
+        //but a slow empty batch still shrinks
+        sizer.record(50, 0, 300);
+        assertEquals(33, sizer.batchSize());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of where the router sends LDAP traffic when domain controllers are
+ *  slow, failing or unreachable
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.naming.Context;
+import javax.naming.NamingException;
+import javax.naming.ServiceUnavailableException;
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.InitialLdapContext;
+import org.junit.After;
+import org.junit.Test;
+import org.wso2.carbon.user.core.UserStoreException;
+
+/**
+ * the scoring tests use contexts that do nothing so the latencies can be set
+ * exactly, the rest run against in memory directories made slow or
+ * unavailable, and check which of them the searches went to
+ *
+ * @author robert.ginsburg
+ */
+public class DomainControllerRouterTest {
+
+    private static final String[] PROBE_ATTRIBUTES = {"currentTime"};
+
+    private final List<InMemoryActiveDirectory> directories = new ArrayList<>();
+    private DomainControllerRouter router;
+
+    @After
+    public void tearDown() {
+        if (router != null) {
+            router.close();
+        }
+        for (InMemoryActiveDirectory directory : directories) {
+            directory.shutDown();
+        }
+    }
+
+    @Test
+    public void staysUntilAnotherIsClearlyBetter() throws Exception {
+        router = createRouter(newFakeDomainController("dc1"), newFakeDomainController("dc2"));
+        DomainControllerRouter.DomainController first = router.getDomainControllers().get(0);
+        DomainControllerRouter.DomainController second = router.getDomainControllers().get(1);
+        first.recordSuccess(10);
+        second.recordSuccess(9);
+        borrowAndRelease(5);
+        assertEquals(5, first.getSelectionCount());
+        assertEquals(0, second.getSelectionCount());
+        second.recordSuccess(1);
+        borrowAndRelease(5);
+        assertEquals(5, first.getSelectionCount());
+        assertEquals(5, second.getSelectionCount());
+        //now the first one has to be clearly better to get it back
+        for (int i = 0; i < 10; i++) {
+            first.recordSuccess(7);
+        }
+        assertTrue(first.score() < second.score());
+        borrowAndRelease(1);
+        assertEquals(6, second.getSelectionCount());
+        for (int i = 0; i < 10; i++) {
+            first.recordSuccess(1);
+        }
+        borrowAndRelease(1);
+        assertEquals(6, first.getSelectionCount());
+    }
+
+    @Test
+    public void slowSearchesMoveTrafficWhenTheProbeIsFast() throws Exception {
+        router = createRouter(newFakeDomainController("dc1"), newFakeDomainController("dc2"));
+        DomainControllerRouter.DomainController first = router.getDomainControllers().get(0);
+        DomainControllerRouter.DomainController second = router.getDomainControllers().get(1);
+        first.recordSuccess(5);
+        second.recordSuccess(6);
+        //the searches are counted against the one the context came from
+        recordOperations(25, 1);
+        assertEquals(25, first.getSelectionCount());
+        assertEquals(1.0, first.getSlowdown(), 0);
+        //one slow search is not a slowdown
+        first.recordOperation(10);
+        assertEquals(1.0, first.getSlowdown(), 0);
+        for (int i = 0; i < 9; i++) {
+            first.recordOperation(10);
+        }
+        assertTrue(first.getSlowdown() > 2);
+        borrowAndRelease(1);
+        assertEquals(25, first.getSelectionCount());
+        assertEquals(1, second.getSelectionCount());
+    }
+
+    @Test
+    public void slowDomainControllerLosesTraffic() throws Exception {
+        InMemoryActiveDirectory slow = newDirectory("dc1");
+        InMemoryActiveDirectory fast = newDirectory("dc2");
+        router = createRouter(newDomainController(slow), newDomainController(fast));
+        slow.setSearchDelayMillis(50);
+        for (int i = 0; i < 3; i++) {
+            router.probe();
+        }
+        int slowSearchCount = slow.getSearchCount();
+        int fastSearchCount = fast.getSearchCount();
+        search(10);
+        assertEquals(slowSearchCount, slow.getSearchCount());
+        assertEquals(fastSearchCount + 10, fast.getSearchCount());
+    }
+
+    @Test
+    public void failingDomainControllerIsQuarantinedAndComesBack() throws Exception {
+        InMemoryActiveDirectory failing = newDirectory("dc1");
+        InMemoryActiveDirectory other = newDirectory("dc2");
+        router = createRouter(newDomainController(failing), newDomainController(other));
+        DomainControllerRouter.DomainController first = router.getDomainControllers().get(0);
+        failing.setUnavailable(true);
+        for (int i = 0; i < 3; i++) {
+            DirContext dirContext = router.borrow();
+            try {
+                dirContext.getAttributes("", PROBE_ATTRIBUTES);
+                fail("the search should have been refused");
+            } catch (ServiceUnavailableException expected) {
+                router.reportFailure(dirContext);
+            } finally {
+                router.release(dirContext);
+            }
+        }
+        assertTrue(first.isQuarantined(System.currentTimeMillis()));
+        int otherSearchCount = other.getSearchCount();
+        search(5);
+        assertEquals(otherSearchCount + 5, other.getSearchCount());
+        //a probe that gets an answer ends the quarantine, the errors still
+        //count against it until the other one is slower
+        failing.setUnavailable(false);
+        router.probe();
+        assertFalse(first.isQuarantined(System.currentTimeMillis()));
+        other.setSearchDelayMillis(80);
+        for (int i = 0; i < 3; i++) {
+            router.probe();
+        }
+        int failingSearchCount = failing.getSearchCount();
+        search(5);
+        assertEquals(failingSearchCount + 5, failing.getSearchCount());
+    }
+
+    @Test
+    public void unreachableDomainControllerFailsOver() throws Exception {
+        InMemoryActiveDirectory unreachable = newDirectory("dc1");
+        InMemoryActiveDirectory other = newDirectory("dc2");
+        router = createRouter(newDomainController(unreachable), newDomainController(other));
+        unreachable.shutDown();
+        int otherSearchCount = other.getSearchCount();
+        search(1);
+        assertEquals(otherSearchCount + 1, other.getSearchCount());
+        assertEquals(1, router.getDomainControllers().get(0).getFailureCount());
+    }
+
+    @Test
+    public void nestedBorrowStaysOnTheSameDomainController() throws Exception {
+        router = createRouter(newFakeDomainController("dc1"), newFakeDomainController("dc2"));
+        DirContext outer = router.borrow();
+        router.getDomainControllers().get(1).recordSuccess(1);
+        router.getDomainControllers().get(0).recordSuccess(100);
+        DirContext inner = router.borrow();
+        assertSame(outer, inner);
+        router.release(inner);
+        router.release(outer);
+    }
+
+    private DomainControllerRouter createRouter(DomainControllerRouter.DomainController... domainControllers) {
+        return new DomainControllerRouter(Arrays.asList(domainControllers), 3, TimeUnit.MINUTES.toMillis(5));
+    }
+
+    private void borrowAndRelease(int count) throws UserStoreException {
+        for (int i = 0; i < count; i++) {
+            router.release(router.borrow());
+        }
+    }
+
+    /**
+     * records searches that took the given time on whatever the router hands
+     * out
+     */
+    private void recordOperations(int count, long sampleMillis) throws UserStoreException {
+        for (int i = 0; i < count; i++) {
+            DirContext dirContext = router.borrow();
+            router.recordOperation(dirContext, System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(sampleMillis));
+            router.release(dirContext);
+        }
+    }
+
+    /**
+     * reads the root DSE through the router
+     */
+    private void search(int count) throws UserStoreException, NamingException {
+        for (int i = 0; i < count; i++) {
+            DirContext dirContext = router.borrow();
+            try {
+                dirContext.getAttributes("", PROBE_ATTRIBUTES);
+            } finally {
+                router.release(dirContext);
+            }
+        }
+    }
+
+    private InMemoryActiveDirectory newDirectory(String serverName) throws Exception {
+        InMemoryActiveDirectory directory = new InMemoryActiveDirectory(serverName);
+        directories.add(directory);
+        return directory;
+    }
+
+    private static DomainControllerRouter.DomainController newDomainController(InMemoryActiveDirectory directory) {
+        String url = directory.getUrl();
+        return new DomainControllerRouter.DomainController(url, new LdapConnectionPool(url, () -> {
+            Hashtable<Object, Object> environment = new Hashtable<>();
+            environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.ldap.LdapCtxFactory");
+            environment.put(Context.PROVIDER_URL, url);
+            environment.put(Context.SECURITY_PRINCIPAL, InMemoryActiveDirectory.BIND_DN);
+            environment.put(Context.SECURITY_CREDENTIALS, InMemoryActiveDirectory.BIND_PASSWORD);
+            environment.put("com.sun.jndi.ldap.connect.timeout", "1000");
+            try {
+                return new InitialLdapContext(environment, null);
+            } catch (NamingException connectError) {
+                throw new UserStoreException("Cannot connect to " + url, connectError);
+            }
+        }, 0, 4, 60000, 1000, 60000));
+    }
+
+    /**
+     * a domain controller whose contexts answer nothing, for the tests that
+     * set the latencies themselves
+     */
+    private static DomainControllerRouter.DomainController newFakeDomainController(String url) {
+        return new DomainControllerRouter.DomainController(url, new LdapConnectionPool(url,
+                () -> (DirContext) Proxy.newProxyInstance(DomainControllerRouterTest.class.getClassLoader(), new Class<?>[]{DirContext.class},
+                        (proxy, method, arguments) -> {
+                            switch (method.getName()) {
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "equals":
+                                    return proxy == arguments[0];
+                                default:
+                                    return null;
+                            }
+                        }), 0, 4, 60000, 100, 60000));
+    }
+}
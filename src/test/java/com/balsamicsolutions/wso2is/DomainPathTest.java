@@ -0,0 +1,66 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the DC= suffix scanner
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * the scanner either agrees with LdapName or hands the name to it
+ *
+ * @author robert.ginsburg
+ */
+public class DomainPathTest {
+
+    //names the scanner answers itself, and the suffix
+    private static final String[][] SCANNED_NAMES = {
+        {"CN=alice,OU=Users,DC=example,DC=com", "DC=example,DC=com"},
+        {"cn=alice,ou=users,dc=example,dc=com", "dc=example,dc=com"},
+        {"CN=Smith\\, Alice,OU=Users,DC=example,DC=com", "DC=example,DC=com"},
+        {"CN=a\\\\,DC=example,DC=com", "DC=example,DC=com"},
+        {"CN=alice,DC=child-1,DC=example_2,DC=com", "DC=child-1,DC=example_2,DC=com"},
+        {"DC=example,DC=com", "DC=example,DC=com"},
+        {"CN=alice,OU=Users", ""},
+        {"CN=alice,DC=example,OU=Users", ""},
+        {"CN=dc,OU=dcName,DC=com", "DC=com"},
+        {"", ""}
+    };
+
+    //names that need LdapName, spacing, quotes, case, escapes in a DC value
+    //and multi-valued RDNs
+    private static final String[] PARSED_NAMES = {
+        "CN=u,Dc=a,Dc=b",
+        "CN=u,dC=a,dC=b",
+        "CN=u,DC=a,Dc=b",
+        "CN=u,DC =a,DC=b",
+        "CN=u, DC=a,DC=b",
+        "CN=u,DC=a,DC=b ",
+        "CN=u,DC=\"a\",DC=b",
+        "CN=u;DC=a;DC=b",
+        "CN=u,DC=a\\,b,DC=c",
+        "CN=u,DC=a+CN=x,DC=b",
+        "CN=u,DC=a.b,DC=c"
+    };
+
+    @Test
+    public void scannerFindsTheSuffix() {
+        for (String[] scannedName : SCANNED_NAMES) {
+            assertEquals(scannedName[0], scannedName[1], ADFSCompatibleADUserStore.scanDomainPath(scannedName[0]));
+            assertEquals(scannedName[0], ADFSCompatibleADUserStore.domainPathFromLdapName(scannedName[0]),
+                    ADFSCompatibleADUserStore.scanDomainPath(scannedName[0]));
+        }
+    }
+
+    @Test
+    public void otherNamesGoToLdapName() {
+        for (String parsedName : PARSED_NAMES) {
+            assertNull(parsedName, ADFSCompatibleADUserStore.scanDomainPath(parsedName));
+            assertEquals(parsedName, ADFSCompatibleADUserStore.domainPathFromLdapName(parsedName),
+                    ADFSCompatibleADUserStore.domainPathFromDistinguishedName(parsedName));
+        }
+    }
+}
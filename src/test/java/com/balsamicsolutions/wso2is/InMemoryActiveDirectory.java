@@ -0,0 +1,625 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  a small stand in for a domain controller, an UnboundID in memory server
+ *  with the few AD behaviours the store depends on
+ */
+package com.balsamicsolutions.wso2is;
+
+import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.listener.InMemoryDirectoryServer;
+import com.unboundid.ldap.listener.InMemoryDirectoryServerConfig;
+import com.unboundid.ldap.listener.InMemoryListenerConfig;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchEntry;
+import com.unboundid.ldap.listener.interceptor.InMemoryInterceptedSearchRequest;
+import com.unboundid.ldap.listener.interceptor.InMemoryOperationInterceptor;
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.Filter;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.Modification;
+import com.unboundid.ldap.sdk.ModificationType;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * an in memory directory laid out like a single domain forest, with the root
+ * DSE attributes AD has (highestCommittedUSN, dsServiceName and the
+ * configuration naming context), a crossRef for the domain, binary objectSid
+ * values and tokenGroups worked out from the member attributes of the groups.
+ * Every change made through it stamps the entry with the next uSNChanged,
+ * like AD does, so change tracking can be tested. It can also be made slow
+ * or unavailable to test domain controller routing. Like AD it takes SID
+ * strings in objectSid filters and follows nested groups for the in chain
+ * memberOf matching rule. Schema checking is off,
+ * so every value is compared as a string, the USNs start high enough to
+ * always have the same number of digits
+ *
+ * @author robert.ginsburg
+ */
+final class InMemoryActiveDirectory {
+
+    static final String BASE_DN = "DC=example,DC=com";
+    static final String USERS_DN = "OU=Users," + BASE_DN;
+    static final String GROUPS_DN = "OU=Groups," + BASE_DN;
+    static final String CONFIGURATION_DN = "CN=Configuration," + BASE_DN;
+    static final String BIND_DN = "CN=Administrator," + USERS_DN;
+    static final String BIND_PASSWORD = "secret";
+    static final String NETBIOS_NAME = "EXAMPLE";
+    static final String DNS_NAME = "example.com";
+    static final String IN_CHAIN_MATCHING_RULE = "1.2.840.113556.1.4.1941";
+    //S-1-5-21-1-2-3, the sub authorities of the domain part of every SID
+    private static final int[] DOMAIN_SUB_AUTHORITIES = {21, 1, 2, 3};
+    //S-1-5-21-4-5-6, another domain of the forest
+    private static final int[] OTHER_DOMAIN_SUB_AUTHORITIES = {21, 4, 5, 6};
+    private static final long FIRST_USN = 1000000;
+
+    private final InMemoryDirectoryServer server;
+    private final String serverName;
+    private final AtomicLong highestCommittedUSN = new AtomicLong(FIRST_USN);
+    private final AtomicInteger searchCount = new AtomicInteger();
+    private final AtomicInteger sidSearchCount = new AtomicInteger();
+    private volatile long searchDelayMillis;
+    private volatile boolean unavailable;
+    private volatile int maxValRange;
+
+    /**
+     * a started server with the domain, its users and groups containers and
+     * the configuration partition
+     *
+     * @param serverName the host name, it goes in dsServiceName
+     * @throws LDAPException
+     */
+    InMemoryActiveDirectory(String serverName) throws LDAPException {
+        this(serverName, 0);
+    }
+
+    /**
+     * a started server that returns at most maxSizeLimit entries for a
+     * search, or for a page of a paged search, the way the MaxPageSize of AD
+     * does
+     *
+     * @param serverName the host name, it goes in dsServiceName
+     * @param maxSizeLimit zero for no limit
+     * @throws LDAPException
+     */
+    InMemoryActiveDirectory(String serverName, int maxSizeLimit) throws LDAPException {
+        this.serverName = serverName;
+        InMemoryDirectoryServerConfig config = new InMemoryDirectoryServerConfig(BASE_DN);
+        config.setSchema(null);
+        config.setMaxSizeLimit(maxSizeLimit);
+        config.setListenerConfigs(InMemoryListenerConfig.createLDAPConfig(serverName, 0));
+        config.addAdditionalBindCredentials(BIND_DN, BIND_PASSWORD);
+        config.addInMemoryOperationInterceptor(new DomainControllerInterceptor());
+        server = new InMemoryDirectoryServer(config);
+        server.add(new Entry(BASE_DN, new Attribute("objectClass", "top", "domain"), new Attribute("dc", "example")));
+        server.add(new Entry(USERS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "Users")));
+        server.add(new Entry(GROUPS_DN, new Attribute("objectClass", "top", "organizationalUnit"), new Attribute("ou", "Groups")));
+        server.add(new Entry(CONFIGURATION_DN, new Attribute("objectClass", "top", "configuration")));
+        server.add(new Entry("CN=Partitions," + CONFIGURATION_DN, new Attribute("objectClass", "top", "crossRefContainer")));
+        server.add(new Entry("CN=" + NETBIOS_NAME + ",CN=Partitions," + CONFIGURATION_DN,
+                new Attribute("objectClass", "top", "crossRef"),
+                new Attribute("nCName", BASE_DN),
+                new Attribute("dnsRoot", DNS_NAME),
+                new Attribute("nETBIOSName", NETBIOS_NAME)));
+        server.startListening();
+    }
+
+    /**
+     * the URL to connect to
+     *
+     * @return
+     */
+    String getUrl() {
+        return "ldap://localhost:" + server.getListenPort();
+    }
+
+    /**
+     * the user store properties to connect a store to this server
+     *
+     * @return
+     */
+    Map<String, String> getUserStoreProperties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("ConnectionURL", getUrl());
+        properties.put("ConnectionName", BIND_DN);
+        properties.put("ConnectionPassword", BIND_PASSWORD);
+        properties.put("UserSearchBase", USERS_DN);
+        properties.put("GroupSearchBase", GROUPS_DN);
+        properties.put("UserNameAttribute", "sAMAccountName");
+        properties.put("UserNameSearchFilter", "(&(objectClass=user)(sAMAccountName=?))");
+        properties.put("UserNameListFilter", "(objectClass=user)");
+        properties.put("GroupNameAttribute", "sAMAccountName");
+        properties.put("GroupNameListFilter", "(objectClass=group)");
+        properties.put("MultiAttributeSeparator", ",");
+        properties.put("java.naming.ldap.attributes.binary", "objectSid tokenGroups");
+        properties.put("LdapPoolMinIdle", "0");
+        return properties;
+    }
+
+    /**
+     * adds the crossRef of another domain of the forest
+     *
+     * @param netbiosName
+     * @param dnsName
+     * @param namingContext its DC= path
+     * @throws LDAPException
+     */
+    void addPartition(String netbiosName, String dnsName, String namingContext) throws LDAPException {
+        server.add(new Entry("CN=" + netbiosName + ",CN=Partitions," + CONFIGURATION_DN,
+                new Attribute("objectClass", "top", "crossRef"),
+                new Attribute("nCName", namingContext),
+                new Attribute("dnsRoot", dnsName),
+                new Attribute("nETBIOSName", netbiosName)));
+    }
+
+    /**
+     * adds a user, their mail is their name at the domain
+     *
+     * @param userName the sAMAccountName
+     * @param relativeId the last part of their SID
+     * @return the distinguished name
+     * @throws LDAPException
+     */
+    String addUser(String userName, int relativeId) throws LDAPException {
+        return addUser(userName, sidBytes(relativeId));
+    }
+
+    /**
+     * adds a user whose SID is in another domain of the forest, the way a
+     * user of another domain shows up under a global catalog search base
+     *
+     * @param userName the sAMAccountName
+     * @param relativeId the last part of their SID
+     * @return the distinguished name
+     * @throws LDAPException
+     */
+    String addOtherDomainUser(String userName, int relativeId) throws LDAPException {
+        return addUser(userName, sidBytes(OTHER_DOMAIN_SUB_AUTHORITIES, relativeId));
+    }
+
+    private String addUser(String userName, byte[] objectSid) throws LDAPException {
+        String distinguishedName = userDistinguishedName(userName);
+        server.add(new Entry(distinguishedName,
+                new Attribute("objectClass", "top", "person", "organizationalPerson", "user"),
+                new Attribute("cn", userName),
+                new Attribute("sAMAccountName", userName),
+                new Attribute("distinguishedName", distinguishedName),
+                new Attribute("mail", userName + "@" + DNS_NAME),
+                new Attribute("objectSid", objectSid),
+                new Attribute("uSNChanged", nextUSN())));
+        updateTokenGroups();
+        return distinguishedName;
+    }
+
+    /**
+     * adds an empty global security group
+     *
+     * @param groupName the cn and sAMAccountName
+     * @param relativeId the last part of its SID
+     * @return the distinguished name
+     * @throws LDAPException
+     */
+    String addGroup(String groupName, int relativeId) throws LDAPException {
+        String distinguishedName = groupDistinguishedName(groupName);
+        server.add(new Entry(distinguishedName,
+                new Attribute("objectClass", "top", "group"),
+                new Attribute("cn", groupName),
+                new Attribute("sAMAccountName", groupName),
+                new Attribute("distinguishedName", distinguishedName),
+                new Attribute("groupType", "-2147483646"),
+                new Attribute("objectSid", sidBytes(relativeId)),
+                new Attribute("uSNChanged", nextUSN())));
+        return distinguishedName;
+    }
+
+    /**
+     * adds a user or a group to a group, which changes the group and, like
+     * AD, not the member, though the token groups of the member change
+     *
+     * @param groupName
+     * @param memberDistinguishedName
+     * @throws LDAPException
+     */
+    void addMember(String groupName, String memberDistinguishedName) throws LDAPException {
+        server.modify(groupDistinguishedName(groupName),
+                new Modification(ModificationType.ADD, "member", memberDistinguishedName),
+                new Modification(ModificationType.REPLACE, "uSNChanged", nextUSN()));
+        updateTokenGroups();
+    }
+
+    /**
+     * takes a user or a group out of a group
+     *
+     * @param groupName
+     * @param memberDistinguishedName
+     * @throws LDAPException
+     */
+    void removeMember(String groupName, String memberDistinguishedName) throws LDAPException {
+        server.modify(groupDistinguishedName(groupName),
+                new Modification(ModificationType.DELETE, "member", memberDistinguishedName),
+                new Modification(ModificationType.REPLACE, "uSNChanged", nextUSN()));
+        updateTokenGroups();
+    }
+
+    /**
+     * changes the sAMAccountName of a group, the distinguished name stays
+     * the same as it does in AD unless the cn is changed as well
+     *
+     * @param groupName
+     * @param newGroupName
+     * @throws LDAPException
+     */
+    void renameGroup(String groupName, String newGroupName) throws LDAPException {
+        server.modify(groupDistinguishedName(groupName),
+                new Modification(ModificationType.REPLACE, "sAMAccountName", newGroupName),
+                new Modification(ModificationType.REPLACE, "uSNChanged", nextUSN()));
+    }
+
+    /**
+     * replaces an attribute of a user
+     *
+     * @param userName
+     * @param attributeName
+     * @param value
+     * @throws LDAPException
+     */
+    void modifyUser(String userName, String attributeName, String value) throws LDAPException {
+        server.modify(userDistinguishedName(userName),
+                new Modification(ModificationType.REPLACE, attributeName, value),
+                new Modification(ModificationType.REPLACE, "uSNChanged", nextUSN()));
+    }
+
+    /**
+     * the distinguished name addUser gives a user
+     *
+     * @param userName
+     * @return
+     */
+    String userDistinguishedName(String userName) {
+        return "CN=" + userName + "," + USERS_DN;
+    }
+
+    /**
+     * the distinguished name addGroup gives a group
+     *
+     * @param groupName
+     * @return
+     */
+    String groupDistinguishedName(String groupName) {
+        return "CN=" + groupName + "," + GROUPS_DN;
+    }
+
+    /**
+     * the SID string of a relative id in our domain, the way the store
+     * formats them
+     *
+     * @param relativeId
+     * @return
+     */
+    static String sidString(int relativeId) {
+        StringBuilder returnValue = new StringBuilder("S-1-5");
+        for (int subAuthority : DOMAIN_SUB_AUTHORITIES) {
+            returnValue.append('-').append(subAuthority);
+        }
+        return returnValue.append('-').append(relativeId).toString();
+    }
+
+    /**
+     * searches after this wait before they are answered, zero for none
+     *
+     * @param delayMillis
+     */
+    void setSearchDelayMillis(long delayMillis) {
+        searchDelayMillis = delayMillis;
+    }
+
+    /**
+     * while set every search is answered with unavailable, which is what a
+     * domain controller that is shutting down or overloaded says
+     *
+     * @param unavailable
+     */
+    void setUnavailable(boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
+    /**
+     * once set, member values come back a range of this many at a time, as
+     * member;range=0-1499 does from AD, and member;range=N-* reads the next
+     * range. UnboundID never does this by itself, zero turns it off
+     *
+     * @param maxValRange
+     */
+    void setMaxValRange(int maxValRange) {
+        this.maxValRange = maxValRange;
+    }
+
+    /**
+     * the number of searches this server has been sent, including the root
+     * DSE reads of the health probes
+     *
+     * @return
+     */
+    int getSearchCount() {
+        return searchCount.get();
+    }
+
+    /**
+     * the number of searches with an objectSid filter, the way groups are
+     * looked up from the tokenGroups of a user
+     *
+     * @return
+     */
+    int getSidSearchCount() {
+        return sidSearchCount.get();
+    }
+
+    /**
+     * stops listening and closes every connection
+     */
+    void shutDown() {
+        server.shutDown(true);
+    }
+
+    private String nextUSN() {
+        return Long.toString(highestCommittedUSN.incrementAndGet());
+    }
+
+    /**
+     * an objectSid in its binary form, revision, count, the big endian
+     * identifier authority and then the little endian sub authorities
+     */
+    private static byte[] sidBytes(int relativeId) {
+        return sidBytes(DOMAIN_SUB_AUTHORITIES, relativeId);
+    }
+
+    private static byte[] sidBytes(int[] domainSubAuthorities, long relativeId) {
+        ByteBuffer sid = ByteBuffer.allocate(8 + 4 * (domainSubAuthorities.length + 1));
+        sid.put((byte) 1).put((byte) (domainSubAuthorities.length + 1));
+        sid.put(new byte[]{0, 0, 0, 0, 0, 5});
+        sid.order(ByteOrder.LITTLE_ENDIAN);
+        for (int subAuthority : domainSubAuthorities) {
+            sid.putInt(subAuthority);
+        }
+        sid.putInt((int) relativeId);
+        return sid.array();
+    }
+
+    /**
+     * the filter with every (objectSid=S-1-5-...) turned into the binary
+     * value, AD does this for us, the in memory server does not
+     */
+    private static Filter withBinarySids(Filter filter) {
+        switch (filter.getFilterType()) {
+            case Filter.FILTER_TYPE_AND:
+            case Filter.FILTER_TYPE_OR:
+                Filter[] components = filter.getComponents();
+                for (int i = 0; i < components.length; i++) {
+                    components[i] = withBinarySids(components[i]);
+                }
+                return filter.getFilterType() == Filter.FILTER_TYPE_AND ? Filter.createANDFilter(components) : Filter.createORFilter(components);
+            case Filter.FILTER_TYPE_NOT:
+                return Filter.createNOTFilter(withBinarySids(filter.getNOTComponent()));
+            case Filter.FILTER_TYPE_EQUALITY:
+                String value = filter.getAssertionValue();
+                if (!"objectSid".equalsIgnoreCase(filter.getAttributeName()) || !value.startsWith("S-1-5-")) {
+                    return filter;
+                }
+                String[] parts = value.substring("S-1-5-".length()).split("-");
+                int[] domainSubAuthorities = new int[parts.length - 1];
+                for (int i = 0; i < domainSubAuthorities.length; i++) {
+                    domainSubAuthorities[i] = (int) Long.parseLong(parts[i]);
+                }
+                return Filter.createEqualityFilter(filter.getAttributeName(),
+                        sidBytes(domainSubAuthorities, Long.parseLong(parts[parts.length - 1])));
+            default:
+                return filter;
+        }
+    }
+
+    /**
+     * the filter with every (memberOf:1.2.840.113556.1.4.1941:=group) turned
+     * into a match on the distinguished names of everything in the group,
+     * however deeply nested
+     */
+    private Filter withInChainMembers(Filter filter) throws LDAPException {
+        switch (filter.getFilterType()) {
+            case Filter.FILTER_TYPE_AND:
+            case Filter.FILTER_TYPE_OR:
+                Filter[] components = filter.getComponents();
+                for (int i = 0; i < components.length; i++) {
+                    components[i] = withInChainMembers(components[i]);
+                }
+                return filter.getFilterType() == Filter.FILTER_TYPE_AND ? Filter.createANDFilter(components) : Filter.createORFilter(components);
+            case Filter.FILTER_TYPE_NOT:
+                return Filter.createNOTFilter(withInChainMembers(filter.getNOTComponent()));
+            case Filter.FILTER_TYPE_EXTENSIBLE_MATCH:
+                if (!"memberOf".equalsIgnoreCase(filter.getAttributeName()) || !IN_CHAIN_MATCHING_RULE.equals(filter.getMatchingRuleID())) {
+                    return filter;
+                }
+                List<Filter> memberFilters = new ArrayList<>();
+                Set<String> visited = new HashSet<>();
+                Deque<String> pending = new ArrayDeque<>();
+                pending.add(filter.getAssertionValue());
+                while (!pending.isEmpty()) {
+                    Entry groupEntry = server.getEntry(pending.poll());
+                    String[] members = groupEntry == null ? null : groupEntry.getAttributeValues("member");
+                    for (String member : members == null ? new String[0] : members) {
+                        if (visited.add(member.toUpperCase(Locale.ENGLISH))) {
+                            memberFilters.add(Filter.createEqualityFilter("distinguishedName", member));
+                            pending.add(member);
+                        }
+                    }
+                }
+                //an empty OR matches nothing
+                return Filter.createORFilter(memberFilters);
+            default:
+                return filter;
+        }
+    }
+
+    /**
+     * a subtree search a page at a time, so the size limit of the server
+     * does not cut it short
+     */
+    private List<SearchResultEntry> searchAll(String baseDN, String filter) throws LDAPException {
+        List<SearchResultEntry> entries = new ArrayList<>();
+        SearchRequest request = new SearchRequest(baseDN, SearchScope.SUB, filter);
+        ASN1OctetString cookie = null;
+        do {
+            request.setControls(new SimplePagedResultsControl(10, cookie));
+            SearchResult result = server.search(request);
+            entries.addAll(result.getSearchEntries());
+            SimplePagedResultsControl response = SimplePagedResultsControl.get(result);
+            cookie = response == null ? null : response.getCookie();
+        } while (cookie != null && cookie.getValueLength() > 0);
+        return entries;
+    }
+
+    /**
+     * works out every users tokenGroups from the group members, nested groups
+     * included. AD builds the attribute when it is read, it is stored here
+     * without touching uSNChanged so it behaves the same way
+     */
+    private void updateTokenGroups() throws LDAPException {
+        //member distinguished name -> the groups it is directly in
+        Map<String, List<SearchResultEntry>> memberOf = new HashMap<>();
+        for (SearchResultEntry groupEntry : searchAll(GROUPS_DN, "(objectClass=group)")) {
+            String[] members = groupEntry.getAttributeValues("member");
+            for (String member : members == null ? new String[0] : members) {
+                memberOf.computeIfAbsent(member.toUpperCase(Locale.ENGLISH), key -> new ArrayList<>()).add(groupEntry);
+            }
+        }
+        for (SearchResultEntry userEntry : searchAll(USERS_DN, "(objectClass=user)")) {
+            List<byte[]> tokenGroups = new ArrayList<>();
+            Set<String> visited = new HashSet<>();
+            Deque<String> pending = new ArrayDeque<>();
+            pending.add(userEntry.getDN().toUpperCase(Locale.ENGLISH));
+            while (!pending.isEmpty()) {
+                for (SearchResultEntry groupEntry : memberOf.getOrDefault(pending.poll(), new ArrayList<>())) {
+                    String groupKey = groupEntry.getDN().toUpperCase(Locale.ENGLISH);
+                    if (visited.add(groupKey)) {
+                        tokenGroups.add(groupEntry.getAttributeValueBytes("objectSid"));
+                        pending.add(groupKey);
+                    }
+                }
+            }
+            server.modify(userEntry.getDN(), tokenGroups.isEmpty()
+                    ? new Modification(ModificationType.REPLACE, "tokenGroups")
+                    : new Modification(ModificationType.REPLACE, "tokenGroups", tokenGroups.toArray(new byte[tokenGroups.size()][])));
+        }
+    }
+
+    /**
+     * the first value of the member range a search asks for, 0 if it asks
+     * for member without a range or for every attribute, -1 if it does not
+     * ask for member at all
+     */
+    private static int requestedMemberRangeStart(String[] attributes) {
+        if (attributes == null || attributes.length == 0) {
+            return 0;
+        }
+        int returnValue = -1;
+        for (String attribute : attributes) {
+            String lowerAttribute = attribute.toLowerCase(Locale.ENGLISH);
+            if (lowerAttribute.startsWith("member;range=")) {
+                return Integer.parseInt(lowerAttribute.substring("member;range=".length(), lowerAttribute.indexOf('-')));
+            }
+            if (lowerAttribute.equals("member") || lowerAttribute.equals("*")) {
+                returnValue = 0;
+            }
+        }
+        return returnValue;
+    }
+
+    /**
+     * adds the root DSE attributes of a domain controller, hands back member
+     * values in ranges when maxValRange is set, and makes the server slow or
+     * unavailable when asked to
+     */
+    private final class DomainControllerInterceptor extends InMemoryOperationInterceptor {
+
+        @Override
+        public void processSearchRequest(InMemoryInterceptedSearchRequest request) throws LDAPException {
+            searchCount.incrementAndGet();
+            if (request.getRequest().getFilter().toString().toLowerCase(Locale.ENGLISH).contains("(objectsid=")) {
+                sidSearchCount.incrementAndGet();
+            }
+            if (unavailable) {
+                throw new LDAPException(ResultCode.UNAVAILABLE, serverName + " is unavailable");
+            }
+            SearchRequest searchRequest = request.getRequest().duplicate();
+            searchRequest.setFilter(withInChainMembers(withBinarySids(searchRequest.getFilter())));
+            if (maxValRange > 0 && requestedMemberRangeStart(searchRequest.getAttributes()) > 0) {
+                //the server only knows member, the range is cut from it later
+                List<String> attributes = new ArrayList<>(Arrays.asList(searchRequest.getAttributes()));
+                attributes.add("member");
+                searchRequest.setAttributes(attributes);
+            }
+            request.setRequest(searchRequest);
+            long delayMillis = searchDelayMillis;
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void processSearchEntry(InMemoryInterceptedSearchEntry searchEntry) {
+            SearchResultEntry resultEntry = searchEntry.getSearchEntry();
+            if (!resultEntry.getDN().isEmpty()) {
+                setMemberRange(searchEntry);
+                return;
+            }
+            Entry rootEntry = resultEntry.duplicate();
+            rootEntry.setAttribute("highestCommittedUSN", Long.toString(highestCommittedUSN.get()));
+            rootEntry.setAttribute("dsServiceName", "CN=NTDS Settings,CN=" + serverName
+                    + ",CN=Servers,CN=Default-First-Site-Name,CN=Sites," + CONFIGURATION_DN);
+            rootEntry.setAttribute("configurationNamingContext", CONFIGURATION_DN);
+            rootEntry.setAttribute("defaultNamingContext", BASE_DN);
+            rootEntry.setAttribute("currentTime", "20260101000000.0Z");
+            searchEntry.setSearchEntry(rootEntry);
+        }
+
+        /**
+         * replaces member with the range the search asked for, if there are
+         * more values than fit in one range or a range was asked for
+         */
+        private void setMemberRange(InMemoryInterceptedSearchEntry searchEntry) {
+            int rangeSize = maxValRange;
+            SearchResultEntry resultEntry = searchEntry.getSearchEntry();
+            String[] members = resultEntry.getAttributeValues("member");
+            int rangeStart = requestedMemberRangeStart(searchEntry.getRequest().getAttributeList().toArray(new String[0]));
+            if (rangeSize <= 0 || members == null || rangeStart < 0 || (rangeStart == 0 && members.length <= rangeSize)) {
+                return;
+            }
+            Entry rangedEntry = resultEntry.duplicate();
+            rangedEntry.removeAttribute("member");
+            int rangeEnd = Math.min(members.length, rangeStart + rangeSize);
+            String rangeName = "member;range=" + rangeStart + "-" + (rangeEnd == members.length ? "*" : Integer.toString(rangeEnd - 1));
+            rangedEntry.addAttribute(new Attribute(rangeName, Arrays.copyOfRange(members, Math.min(rangeStart, rangeEnd), rangeEnd)));
+            searchEntry.setSearchEntry(rangedEntry);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the connection pool with contexts that only count their closes
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.naming.directory.DirContext;
+import org.junit.Test;
+
+/**
+ * sharing a context on a thread, and releases of contexts the pool did not
+ * lend to the thread
+ *
+ * @author robert.ginsburg
+ */
+public class LdapConnectionPoolTest {
+
+    private final AtomicInteger closedCount = new AtomicInteger();
+
+    @Test
+    public void nestedBorrowsShareOneContext() throws Exception {
+        LdapConnectionPool pool = createPool();
+        DirContext outer = pool.borrow();
+        DirContext inner = pool.borrow();
+        assertSame(outer, inner);
+        pool.release(inner);
+        assertEquals(1, pool.getActiveCount());
+        pool.release(outer);
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertSame(outer, pool.borrow());
+        assertEquals(1, pool.getCreateCount());
+    }
+
+    @Test
+    public void doubleReleaseLeavesThePoolAlone() throws Exception {
+        LdapConnectionPool pool = createPool();
+        DirContext dirContext = pool.borrow();
+        pool.release(dirContext);
+        pool.release(dirContext);
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(0, pool.getCloseCount());
+        assertEquals(0, closedCount.get());
+        //still good, and still only lent to one thread at a time
+        assertSame(dirContext, pool.borrow());
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void foreignContextIsClosedWithoutCounting() throws Exception {
+        LdapConnectionPool pool = createPool();
+        DirContext pooled = pool.borrow();
+        pool.release(newContext());
+        assertEquals(1, closedCount.get());
+        assertEquals(1, pool.getOpenCount());
+        assertEquals(0, pool.getCloseCount());
+        pool.release(pooled);
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void routerClosesUnknownContextsItself() throws Exception {
+        LdapConnectionPool first = createPool();
+        LdapConnectionPool second = createPool();
+        DomainControllerRouter router = new DomainControllerRouter(Arrays.asList(
+                new DomainControllerRouter.DomainController("ldap://first", first),
+                new DomainControllerRouter.DomainController("ldap://second", second)), 3, 30000);
+        DirContext dirContext = router.borrow();
+        router.release(newContext());
+        assertEquals(1, closedCount.get());
+        router.release(dirContext);
+        router.release(dirContext);
+        assertEquals(1, first.getOpenCount() + second.getOpenCount());
+        assertEquals(0, first.getCloseCount() + second.getCloseCount());
+        assertEquals(1, closedCount.get());
+    }
+
+    private LdapConnectionPool createPool() {
+        return new LdapConnectionPool("test pool", this::newContext, 0, 4, 60000, 100, 60000);
+    }
+
+    /**
+     * a context that counts its closes and answers nothing else
+     */
+    private DirContext newContext() {
+        return (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{DirContext.class},
+                (proxy, method, arguments) -> {
+                    switch (method.getName()) {
+                        case "close":
+                            closedCount.incrementAndGet();
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == arguments[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the compact SID
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+/**
+ * parsing, formatting and the order of SIDs, and the string form the store
+ * makes of objectSid, which has to stay what the ByteBuffer decoding it
+ * replaced made of every input, valid or not
+ *
+ * @author robert.ginsburg
+ */
+public class SecurityIdentifierTest {
+
+    @Test
+    public void formatsTheBinaryForm() {
+        assertEquals("S-1-5-21-1-2-3-1100", sid(1100, 21, 1, 2, 3).toString());
+        assertEquals("S-1-5-21-1-2-3-4294967295", sid(-1, 21, 1, 2, 3).toString());
+        assertEquals("S-1-5-32-544", sid(544, 32).toString());
+        assertEquals(sid(1100, 21, 1, 2, 3), sid(1100, 21, 1, 2, 3));
+    }
+
+    @Test
+    public void ordersByValue() {
+        List<SecurityIdentifier> sids = Arrays.asList(
+                sid(-1, 21, 1, 2, 3),
+                sid(10, 21, 1, 2, 3),
+                sid(2, 21, 1, 2, 10),
+                sid(544, 32),
+                sid(2, 21, 1, 2, 3),
+                sid(2, 21, -5, 2, 3));
+        List<String> sorted = sids.stream().sorted().map(SecurityIdentifier::toString).collect(Collectors.toList());
+        assertEquals(Arrays.asList(
+                "S-1-5-32-544",
+                "S-1-5-21-1-2-3-2",
+                "S-1-5-21-1-2-3-10",
+                "S-1-5-21-1-2-3-4294967295",
+                "S-1-5-21-1-2-10-2",
+                "S-1-5-21-4294967291-2-3-2"), sorted);
+        assertEquals(0, sid(7, 21, 1, 2, 3).compareTo(sid(7, 21, 1, 2, 3)));
+        assertTrue(sid(7, 21, 1, 2, 3).compareTo(sid(8, 21, 1, 2, 3)) < 0);
+    }
+
+    @Test
+    public void convertSidToStrMatchesTheOldDecodingOnEdgeCases() {
+        assertParity(null);
+        assertParity(new byte[0]);
+        assertParity(new byte[7]);
+        assertParity(new byte[13]);
+        assertParity(new byte[]{1, 0, 0, 0, 0, 0, 0, 5});
+        //no sub authorities, with and without bytes after the authority
+        assertParity(new byte[]{1, 0, 0, 0, 0, 0, 0, 5, 1, 2, 3, 4});
+        //counts that are negative as a byte
+        assertParity(new byte[]{1, (byte) 0x80, 0, 0, 0, 0, 0, 5, 1, 2, 3, 4});
+        assertParity(new byte[]{1, (byte) 0xFF, 0, 0, 0, 0, 0, 5});
+        //a count past the end of the bytes underflows
+        assertParity(new byte[]{1, 2, 0, 0, 0, 0, 0, 5, 1, 2, 3, 4});
+        assertParity(new byte[]{1, 15, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0});
+        //fewer sub authorities than the bytes hold
+        assertParity(new byte[]{1, 1, 0, 0, 0, 0, 0, 5, 21, 0, 0, 0, 1, 0, 0, 0});
+        //a negative revision, the largest authority and relative id
+        assertParity(new byte[]{(byte) 0xFF, 1, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        byte[] domainSid = ByteBuffer.allocate(8 + 4 * 5).put((byte) 1).put((byte) 5).put(new byte[]{0, 0, 0, 0, 0, 5})
+                .order(ByteOrder.LITTLE_ENDIAN).putInt(21).putInt(-1).putInt(2).putInt(3).putInt(1100).array();
+        assertParity(domainSid);
+        assertEquals("S-1-5-21-4294967295-2-3-1100", ADFSCompatibleADUserStore.convertSidToStr(domainSid));
+    }
+
+    @Test
+    public void convertSidToStrMatchesTheOldDecodingOnRandomSids() {
+        Random random = new Random(20261016);
+        //a few domains, so most SIDs share an interned prefix like they do in AD
+        byte[][] domains = new byte[8][];
+        for (int i = 0; i < domains.length; i++) {
+            domains[i] = new byte[8 + 4 * (1 + random.nextInt(5))];
+            random.nextBytes(domains[i]);
+        }
+        for (int i = 0; i < 100000; i++) {
+            byte[] sid;
+            if (random.nextBoolean()) {
+                byte[] domain = domains[random.nextInt(domains.length)];
+                sid = Arrays.copyOf(domain, domain.length + 4);
+                sid[1] = (byte) ((domain.length - 8) / 4 + 1);
+                for (int b = domain.length; b < sid.length; b++) {
+                    sid[b] = (byte) random.nextInt();
+                }
+            } else {
+                //anything at all, valid or not
+                sid = new byte[random.nextInt(80)];
+                random.nextBytes(sid);
+                if (sid.length > 1 && random.nextBoolean()) {
+                    //a count that is often, but not always, in range
+                    sid[1] = (byte) random.nextInt(17);
+                }
+            }
+            assertParity(sid);
+        }
+    }
+
+    /**
+     * convertSidToStr gives what the old decoding gave, or throws the same
+     * exception
+     */
+    private static void assertParity(byte[] sid) {
+        String expected;
+        try {
+            expected = byteBufferSidToStr(sid);
+        } catch (BufferUnderflowException underflow) {
+            try {
+                ADFSCompatibleADUserStore.convertSidToStr(sid);
+                fail("expected a BufferUnderflowException for " + Arrays.toString(sid));
+            } catch (BufferUnderflowException expectedUnderflow) {
+                //the same as before
+            }
+            return;
+        }
+        assertEquals(Arrays.toString(sid), expected, ADFSCompatibleADUserStore.convertSidToStr(sid));
+    }
+
+    /**
+     * convertSidToStr as it was before it decoded in place, kept here as the
+     * reference for the output
+     */
+    static String byteBufferSidToStr(byte[] sid) {
+        if (sid == null) {
+            return "NULL SID";
+        }
+        if (sid.length < 8 || sid.length % 4 != 0) {
+            return "INVALID SID";
+        }
+        StringBuilder returnValue = new StringBuilder();
+        returnValue.append("S-").append(sid[0]);
+        int subAuthCount = sid[1];
+        ByteBuffer sidBytes = ByteBuffer.wrap(sid);
+        returnValue.append("-").append((long) sidBytes.getLong() & 0XFFFFFFFFFFFFL);
+        sidBytes.order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < subAuthCount; i++) {
+            returnValue.append("-").append((long) sidBytes.getInt() & 0xFFFFFFFFL);
+        }
+        return returnValue.toString();
+    }
+
+    /**
+     * the binary form of S-1-5-domainSubAuthorities-relativeId
+     */
+    static SecurityIdentifier sid(int relativeId, int... domainSubAuthorities) {
+        ByteBuffer sid = ByteBuffer.allocate(8 + 4 * (domainSubAuthorities.length + 1));
+        sid.put((byte) 1).put((byte) (domainSubAuthorities.length + 1));
+        sid.put(new byte[]{0, 0, 0, 0, 0, 5});
+        sid.order(ByteOrder.LITTLE_ENDIAN);
+        for (int subAuthority : domainSubAuthorities) {
+            sid.putInt(subAuthority);
+        }
+        sid.putInt(relativeId);
+        return SecurityIdentifier.fromBytes(sid.array());
+    }
+}
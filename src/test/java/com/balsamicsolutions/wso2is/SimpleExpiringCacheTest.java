@@ -0,0 +1,689 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the cache on its own
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/**
+ * the cache on its own: replace, single flight loads, bulk loads that
+ * overlap, the segmented LRU and the weight bound, the buffered maintenance,
+ * the expiration queue and refresh ahead. The caches use the external timer
+ * so expiration only happens when a test calls checkExpirations, and the
+ * concurrent tests release their loads only once the other callers are known
+ * to be waiting for them
+ *
+ * @author robert.ginsburg
+ */
+public class SimpleExpiringCacheTest {
+
+    @Test
+    public void replaceKeepsTheDeadline() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(300, true, 10, 0, null);
+        String first = new String("first");
+        cache.put("key", first);
+        Thread.sleep(200);
+        assertTrue(cache.replace("key", first, "second"));
+        assertEquals("second", cache.get("key"));
+        Thread.sleep(200);
+        //a put would have lived until 500ms
+        assertNull(cache.get("key"));
+        cache.checkExpirations();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void replaceOnlyReplacesTheSameValue() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 10, 0, null);
+        assertFalse(cache.replace("key", "first", "second"));
+        assertNull(cache.get("key"));
+        String first = new String("first");
+        cache.put("key", first);
+        assertFalse(cache.replace("key", new String("first"), "second"));
+        assertTrue(cache.replace("key", first, "second"));
+        assertFalse(cache.replace("key", first, "third"));
+        assertEquals("second", cache.get("key"));
+        cache.checkExpirations();
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void replaceKeepsTheWeightBound() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 0, 100,
+                (key, value) -> value.length());
+        String small = "a";
+        cache.put("small", small);
+        cache.put("other", "bbbbbbbbbb");
+        assertTrue(cache.replace("small", small, "cccccccccc"));
+        cache.checkExpirations();
+        assertEquals(20, cache.weightedSize());
+        assertTrue(cache.replace("small", cache.get("small"), "dddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddddd"));
+        cache.checkExpirations();
+        //over the bound, one of them has to go
+        assertEquals(1, cache.size());
+        assertTrue(cache.weightedSize() <= 100);
+    }
+
+    @Test
+    public void loweringTheWeightBoundEvicts() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 0, 100,
+                (key, value) -> value.length());
+        for (int i = 0; i < 5; i++) {
+            cache.put("key" + i, "aaaaaaaaaa");
+        }
+        cache.checkExpirations();
+        assertEquals(50, cache.weightedSize());
+        cache.setMaximumWeight(30);
+        assertEquals(3, cache.size());
+        assertEquals(30, cache.weightedSize());
+        //the oldest went first
+        assertNull(cache.getQuietly("key0"));
+        assertNull(cache.getQuietly("key1"));
+        cache.setMaximumWeight(100);
+        cache.put("key5", "aaaaaaaaaa");
+        cache.checkExpirations();
+        assertEquals(4, cache.size());
+    }
+
+    //<editor-fold defaultstate="collapsed" desc="single flight loads">
+    @Test(timeout = 10000)
+    public void concurrentMissesShareOneLoad() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        AtomicInteger loadCount = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SimpleExpiringCache.Loader<String, String, IOException> loader = key -> {
+            loadCount.incrementAndGet();
+            loading.countDown();
+            awaitLatch(release);
+            return new String("value");
+        };
+        List<Caller<String>> callers = new ArrayList<>();
+        callers.add(startThread(() -> cache.get("key", loader)));
+        loading.await();
+        for (int i = 0; i < 4; i++) {
+            callers.add(startThread(() -> cache.get("key", loader)));
+        }
+        awaitWaiting(callers.subList(1, callers.size()));
+        release.countDown();
+        String loaded = callers.get(0).get();
+        for (Caller<String> caller : callers) {
+            assertSame(loaded, caller.get());
+        }
+        assertEquals(1, loadCount.get());
+        assertSame(loaded, cache.get("key", loader));
+        assertEquals(1, loadCount.get());
+    }
+
+    @Test(timeout = 10000)
+    public void concurrentMissesShareTheLoadException() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        AtomicInteger loadCount = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException loadError = new IOException("directory is down");
+        SimpleExpiringCache.Loader<String, String, IOException> failingLoader = key -> {
+            loadCount.incrementAndGet();
+            loading.countDown();
+            awaitLatch(release);
+            throw loadError;
+        };
+        List<Caller<String>> callers = new ArrayList<>();
+        callers.add(startThread(() -> cache.get("key", failingLoader)));
+        loading.await();
+        for (int i = 0; i < 4; i++) {
+            callers.add(startThread(() -> cache.get("key", failingLoader)));
+        }
+        awaitWaiting(callers.subList(1, callers.size()));
+        release.countDown();
+        for (Caller<String> caller : callers) {
+            try {
+                caller.get();
+                fail("the load failed, every caller should see it");
+            } catch (ExecutionException callerError) {
+                assertSame(loadError, callerError.getCause());
+            }
+        }
+        assertEquals(1, loadCount.get());
+        //nothing was cached, the next caller loads again
+        assertFalse(cache.containsKey("key"));
+        assertEquals("value", cache.get("key", key -> "value"));
+    }
+
+    @Test
+    public void nullLoadsAreNotCached() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        AtomicInteger loadCount = new AtomicInteger();
+        SimpleExpiringCache.Loader<String, String, RuntimeException> emptyLoader = key -> {
+            loadCount.incrementAndGet();
+            return null;
+        };
+        assertNull(cache.get("key", emptyLoader));
+        assertNull(cache.get("key", emptyLoader));
+        assertEquals(2, loadCount.get());
+        assertEquals(0, cache.size());
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="bulk loads">
+    @Test(timeout = 10000)
+    public void overlappingBulkLoadsLoadEachKeyOnce() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        List<List<String>> loadedKeys = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch firstLoading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        SimpleExpiringCache.BulkLoader<String, String, IOException> loader = keys -> {
+            loadedKeys.add(sorted(keys));
+            if (keys.contains("a")) {
+                firstLoading.countDown();
+                awaitLatch(release);
+            }
+            return valuesOf(keys);
+        };
+        cache.put("d", "D");
+        Caller<Map<String, String>> first = startThread(() -> cache.getAll(Arrays.asList("a", "b"), loader));
+        firstLoading.await();
+        Caller<Map<String, String>> second = startThread(() -> cache.getAll(Arrays.asList("b", "c", "d"), loader));
+        //the second caller loads c, which it claimed, then waits for b
+        awaitWaiting(Collections.singletonList(second));
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c")), loadedKeys);
+        release.countDown();
+        assertEquals(valuesOf(Arrays.asList("a", "b")), first.get());
+        assertEquals(valuesOf(Arrays.asList("b", "c", "d")), second.get());
+        assertEquals(2, loadedKeys.size());
+    }
+
+    @Test(timeout = 10000)
+    public void bulkLoadsLoadWhatTheyClaimedBeforeWaiting() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        CountDownLatch xLoading = new CountDownLatch(1);
+        CountDownLatch yLoaded = new CountDownLatch(1);
+        //the load of x needs y to be loaded first, if the caller that claimed
+        //y waited for x before loading y the two would never finish
+        SimpleExpiringCache.BulkLoader<String, String, IOException> loader = keys -> {
+            if (keys.contains("x")) {
+                xLoading.countDown();
+                awaitLatch(yLoaded);
+            }
+            if (keys.contains("y")) {
+                yLoaded.countDown();
+            }
+            return valuesOf(keys);
+        };
+        Caller<Map<String, String>> first = startThread(() -> cache.getAll(Collections.singletonList("x"), loader));
+        xLoading.await();
+        Caller<Map<String, String>> second = startThread(() -> cache.getAll(Arrays.asList("y", "x"), loader));
+        assertEquals(valuesOf(Collections.singletonList("x")), first.get(5, TimeUnit.SECONDS));
+        assertEquals(valuesOf(Arrays.asList("y", "x")), second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void bulkLoadExceptionsReachTheCallersWaitingOnThem() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        CountDownLatch firstLoading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        IOException loadError = new IOException("directory is down");
+        SimpleExpiringCache.BulkLoader<String, String, IOException> loader = keys -> {
+            if (keys.contains("a")) {
+                firstLoading.countDown();
+                awaitLatch(release);
+                throw loadError;
+            }
+            return valuesOf(keys);
+        };
+        Caller<Map<String, String>> first = startThread(() -> cache.getAll(Arrays.asList("a", "b"), loader));
+        firstLoading.await();
+        Caller<Map<String, String>> second = startThread(() -> cache.getAll(Arrays.asList("b", "c"), loader));
+        awaitWaiting(Collections.singletonList(second));
+        release.countDown();
+        for (Caller<Map<String, String>> caller : Arrays.asList(first, second)) {
+            try {
+                caller.get();
+                fail("the load of b failed, both callers should see it");
+            } catch (ExecutionException callerError) {
+                assertSame(loadError, callerError.getCause());
+            }
+        }
+        //what the second caller loaded itself is kept
+        assertEquals("C", cache.get("c"));
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="segmented LRU and weight bound">
+    @Test
+    public void entriesReadAgainSurviveOneTimeEntries() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 10, 0, null);
+        for (int i = 0; i < 10; i++) {
+            cache.put("user" + i, "value");
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("value", cache.get("user" + i));
+        }
+        //a login storm of users we never see again
+        for (int i = 0; i < 20; i++) {
+            cache.put("storm" + i, "value");
+        }
+        cache.checkExpirations();
+        assertEquals(10, cache.size());
+        assertEquals(10, cache.weightedSize());
+        assertEquals(20, cache.getEvictionCount());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(cache.containsKey("user" + i));
+        }
+        for (int i = 5; i < 10; i++) {
+            assertFalse(cache.containsKey("user" + i));
+        }
+        for (int i = 15; i < 20; i++) {
+            assertTrue(cache.containsKey("storm" + i));
+        }
+    }
+
+    @Test
+    public void protectedIsHeldToItsShare() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 10, 0, null);
+        for (int i = 0; i < 10; i++) {
+            cache.put("user" + i, "value");
+        }
+        for (int i = 0; i < 10; i++) {
+            cache.get("user" + i);
+        }
+        //protected keeps eight, the two read longest ago go back to probation
+        //and are the next victims
+        cache.checkExpirations();
+        cache.put("new0", "value");
+        assertFalse(cache.containsKey("user0"));
+        cache.put("new1", "value");
+        assertFalse(cache.containsKey("user1"));
+        cache.put("new2", "value");
+        assertFalse(cache.containsKey("new0"));
+        for (int i = 2; i < 10; i++) {
+            assertTrue(cache.containsKey("user" + i));
+        }
+        assertEquals(3, cache.getEvictionCount());
+    }
+
+    @Test
+    public void theWeightBoundEvictsLeastRecentlyUsed() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 0, 100,
+                (key, value) -> value.length());
+        String thirty = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaa";
+        cache.put("a", thirty);
+        cache.put("b", thirty);
+        cache.put("c", thirty);
+        cache.get("a");
+        cache.put("d", thirty);
+        //b was never read again, a was
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        assertEquals(90, cache.weightedSize());
+        //a value heavier than the whole bound is not kept, and takes the
+        //unread entries with it
+        cache.put("huge", thirty + thirty + thirty + thirty + thirty);
+        cache.checkExpirations();
+        assertFalse(cache.containsKey("huge"));
+        assertTrue(cache.weightedSize() <= 100);
+        assertEquals(cache.size() * 30L, cache.weightedSize());
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentUseKeepsTheBoundAndTheWeight() throws Exception {
+        SimpleExpiringCache<Integer, String> cache = new SimpleExpiringCache<>(60000, true, 50, 0, null);
+        List<Caller<Object>> workers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            workers.add(startThread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed * 17) % 200;
+                    switch (i % 4) {
+                        case 0:
+                            cache.remove(key);
+                            break;
+                        case 1:
+                            cache.put(key, "value");
+                            break;
+                        default:
+                            cache.get(key);
+                            break;
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Caller<Object> worker : workers) {
+            worker.get();
+        }
+        cache.checkExpirations();
+        assertTrue(cache.size() <= 50);
+        //every entry in the map is in the policy once, and nothing else is
+        assertEquals(cache.size(), cache.weightedSize());
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="buffered maintenance">
+    @Test
+    public void writesAreDrainedInBatches() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        for (int i = 0; i < 31; i++) {
+            cache.put("key" + i, "value");
+        }
+        //the entries are readable, the policy has not seen them yet
+        assertEquals(31, cache.size());
+        assertEquals("value", cache.get("key0"));
+        assertEquals(0, cache.weightedSize());
+        cache.put("key31", "value");
+        assertEquals(32, cache.weightedSize());
+    }
+
+    @Test
+    public void writesOverTakenBeforeTheyAreDrainedAreNotCounted() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        for (int i = 0; i < 10; i++) {
+            cache.put("replaced", "value" + i);
+        }
+        cache.put("removed", "value");
+        cache.remove("removed");
+        cache.checkExpirations();
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.weightedSize());
+        assertEquals("value9", cache.get("replaced"));
+    }
+
+    @Test
+    public void readsAreDrainedBeforeTheNextEviction() {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true, 4, 0, null);
+        for (String key : Arrays.asList("a", "b", "c", "d")) {
+            cache.put(key, "value");
+        }
+        //the read sits in the buffer until the put drains it
+        cache.get("a");
+        cache.put("e", "value");
+        assertTrue(cache.containsKey("a"));
+        assertFalse(cache.containsKey("b"));
+        //a full ring of reads of one key is still a single promotion
+        for (int i = 0; i < 200; i++) {
+            cache.get("c");
+        }
+        cache.put("f", "value");
+        assertTrue(cache.containsKey("c"));
+        assertFalse(cache.containsKey("d"));
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.weightedSize());
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="expiration queue">
+    @Test
+    public void expirationOnlyRemovesTheEntriesThatAreDue() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(500, true);
+        cache.put("first", "value");
+        cache.put("rewritten", "value");
+        Thread.sleep(300);
+        cache.put("second", "value");
+        //written again, it moves to the back of the queue
+        cache.put("rewritten", "value");
+        Thread.sleep(300);
+        //an expired value is never returned, even before it is cleaned up
+        assertNull(cache.get("first"));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(3, cache.size());
+        cache.checkExpirations();
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.weightedSize());
+        assertEquals("value", cache.get("second"));
+        assertEquals("value", cache.get("rewritten"));
+        Thread.sleep(300);
+        cache.checkExpirations();
+        assertEquals(3, cache.getExpirationCount());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    public void removedEntriesDoNotExpire() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(200, true, 10, 0, null);
+        cache.put("removed", "value");
+        cache.put("kept", "value");
+        cache.remove("removed");
+        Thread.sleep(300);
+        cache.checkExpirations();
+        assertEquals(1, cache.getExpirationCount());
+        assertEquals(0, cache.getEvictionCount());
+        assertEquals(0, cache.size());
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="refresh ahead">
+    @Test
+    public void staleValuesAreReturnedAndRefreshedInTheBackground() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        QueuedExecutor executor = new QueuedExecutor();
+        cache.enableRefreshAhead(200, executor);
+        AtomicInteger loadCount = new AtomicInteger();
+        SimpleExpiringCache.Loader<String, String, IOException> loader = key -> "value" + loadCount.incrementAndGet();
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals(0, executor.size());
+        Thread.sleep(300);
+        assertEquals("value1", cache.get("key", loader));
+        //one refresh at a time
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals(1, executor.size());
+        assertEquals(1, loadCount.get());
+        executor.runAll();
+        assertEquals(1, cache.getRefreshCount());
+        assertEquals("value2", cache.get("key", loader));
+        assertEquals(0, executor.size());
+    }
+
+    @Test
+    public void staleBulkValuesAreRefreshedInOneLoad() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        QueuedExecutor executor = new QueuedExecutor();
+        cache.enableRefreshAhead(200, executor);
+        List<List<String>> loadedKeys = new ArrayList<>();
+        SimpleExpiringCache.BulkLoader<String, String, IOException> loader = keys -> {
+            loadedKeys.add(sorted(keys));
+            Map<String, String> values = new HashMap<>();
+            for (String key : keys) {
+                values.put(key, key + loadedKeys.size());
+            }
+            return values;
+        };
+        cache.getAll(Arrays.asList("a", "b"), loader);
+        Thread.sleep(300);
+        Map<String, String> staleValues = cache.getAll(Arrays.asList("a", "b", "c"), loader);
+        assertEquals("a1", staleValues.get("a"));
+        assertEquals("c2", staleValues.get("c"));
+        assertEquals(1, executor.size());
+        executor.runAll();
+        assertEquals(Arrays.asList(Arrays.asList("a", "b"), Arrays.asList("c"), Arrays.asList("a", "b")), loadedKeys);
+        assertEquals("a3", cache.get("a"));
+        assertEquals("b3", cache.get("b"));
+        assertEquals(2, cache.getRefreshCount());
+    }
+
+    @Test(timeout = 10000)
+    public void staleValuesAreNeverReturnedPastTheirDeadline() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(500, true);
+        QueuedExecutor executor = new QueuedExecutor();
+        cache.enableRefreshAhead(100, executor);
+        AtomicInteger loadCount = new AtomicInteger();
+        SimpleExpiringCache.Loader<String, String, IOException> loader = key -> "value" + loadCount.incrementAndGet();
+        assertEquals("value1", cache.get("key", loader));
+        Thread.sleep(200);
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals(1, executor.size());
+        Thread.sleep(400);
+        //the refresh is still queued, a caller past the deadline waits for it
+        Caller<String> caller = startThread(() -> cache.get("key", loader));
+        awaitWaiting(Collections.singletonList(caller));
+        executor.runAll();
+        assertEquals("value2", caller.get());
+        //with nothing queued the load past the deadline is a plain one
+        Thread.sleep(600);
+        assertEquals("value3", cache.get("key", loader));
+        assertEquals(0, executor.size());
+    }
+
+    @Test
+    public void failedOrRejectedRefreshesKeepTheValueUntilItExpires() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(500, true);
+        QueuedExecutor executor = new QueuedExecutor();
+        cache.enableRefreshAhead(100, executor);
+        AtomicInteger loadCount = new AtomicInteger();
+        SimpleExpiringCache.Loader<String, String, IOException> loader = key -> {
+            if (loadCount.incrementAndGet() == 2) {
+                throw new IOException("directory is down");
+            }
+            return "value" + loadCount.get();
+        };
+        assertEquals("value1", cache.get("key", loader));
+        Thread.sleep(200);
+        assertEquals("value1", cache.get("key", loader));
+        executor.runAll();
+        assertEquals(1, cache.getRefreshFailureCount());
+        assertEquals(0, cache.getRefreshCount());
+        //the failure is not cached, the next stale read tries again
+        executor.rejecting = true;
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals("value1", cache.get("key", loader));
+        assertEquals(2, loadCount.get());
+        Thread.sleep(400);
+        assertEquals("value3", cache.get("key", loader));
+    }
+
+    @Test
+    public void refreshesThatFindNothingDropTheValue() throws Exception {
+        SimpleExpiringCache<String, String> cache = new SimpleExpiringCache<>(60000, true);
+        QueuedExecutor executor = new QueuedExecutor();
+        cache.enableRefreshAhead(100, executor);
+        AtomicInteger loadCount = new AtomicInteger();
+        SimpleExpiringCache.Loader<String, String, IOException> loader = key -> loadCount.incrementAndGet() == 1 ? "value" : null;
+        assertEquals("value", cache.get("key", loader));
+        Thread.sleep(200);
+        assertEquals("value", cache.get("key", loader));
+        executor.runAll();
+        assertFalse(cache.containsKey("key"));
+    }
+    //</editor-fold>
+
+    //<editor-fold defaultstate="collapsed" desc="helpers">
+    /**
+     * an executor that only runs what it was given when the test says so
+     */
+    private static final class QueuedExecutor implements Executor {
+
+        private final ConcurrentLinkedQueue<Runnable> queued = new ConcurrentLinkedQueue<>();
+        volatile boolean rejecting;
+
+        @Override
+        public void execute(Runnable command) {
+            if (rejecting) {
+                throw new RejectedExecutionException("busy");
+            }
+            queued.add(command);
+        }
+
+        int size() {
+            return queued.size();
+        }
+
+        void runAll() {
+            Runnable command;
+            while ((command = queued.poll()) != null) {
+                command.run();
+            }
+        }
+    }
+
+    /**
+     * a cache call running on a thread of its own
+     */
+    private static final class Caller<T> extends FutureTask<T> {
+
+        private final Thread thread;
+
+        Caller(Callable<T> work) {
+            super(work);
+            thread = new Thread(this, "SimpleExpiringCacheTest");
+            thread.setDaemon(true);
+        }
+    }
+
+    private static <T> Caller<T> startThread(Callable<T> work) {
+        Caller<T> caller = new Caller<>(work);
+        caller.thread.start();
+        return caller;
+    }
+
+    /**
+     * waits until every caller is parked, which for a cache call can only be
+     * waiting for another caller's load
+     */
+    private static void awaitWaiting(List<? extends Caller<?>> callers) throws InterruptedException {
+        for (Caller<?> caller : callers) {
+            while (!caller.isDone() && caller.thread.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            assertFalse("the caller should be waiting for a load", caller.isDone());
+        }
+    }
+
+    /**
+     * waits in a loader, which cannot throw InterruptedException
+     */
+    private static void awaitLatch(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(interrupted);
+        }
+    }
+
+    private static List<String> sorted(List<String> keys) {
+        List<String> returnValue = new ArrayList<>(keys);
+        Collections.sort(returnValue);
+        return returnValue;
+    }
+
+    /**
+     * each key with its upper case as its value
+     */
+    private static Map<String, String> valuesOf(List<String> keys) {
+        Map<String, String> returnValue = new HashMap<>();
+        for (String key : keys) {
+            returnValue.put(key, key.toUpperCase(Locale.ENGLISH));
+        }
+        return returnValue;
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,47 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the per user attribute record
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * names are matched without regard to case, and handed back the way the
+ * caller spelled them
+ *
+ * @author robert.ginsburg
+ */
+public class UserAttributeRecordTest {
+
+    @Test
+    public void selectUsesTheRequestedNames() {
+        Map<String, String> loadedValues = new HashMap<>();
+        loadedValues.put("mail", "alice@example.com");
+        loadedValues.put("objectGUID", "AAECAwQFBgcICQoLDA0ODw==");
+        UserAttributeRecord userRecord = UserAttributeRecord.of(new String[]{"mail", "objectGUID"}, loadedValues);
+        Map<String, String> selected = userRecord.select(new String[]{"Mail", "objectGuid"});
+        assertEquals(2, selected.size());
+        assertEquals("alice@example.com", selected.get("Mail"));
+        assertEquals("AAECAwQFBgcICQoLDA0ODw==", selected.get("objectGuid"));
+        assertEquals("alice@example.com", userRecord.select(new String[]{"mail"}).get("mail"));
+    }
+
+    @Test
+    public void missingValuesAreRemembered() {
+        UserAttributeRecord userRecord = UserAttributeRecord.of(new String[]{"mail", "telephoneNumber"},
+                Collections.singletonMap("mail", "alice@example.com"));
+        assertEquals(0, userRecord.getMissingNames(new String[]{"Mail", "TELEPHONENUMBER"}).length);
+        assertEquals(1, userRecord.getMissingNames(new String[]{"mail", "department"}).length);
+        assertNull(userRecord.select(new String[]{"telephoneNumber"}).get("telephoneNumber"));
+        //asked for again and gone
+        userRecord = userRecord.merge(new String[]{"Mail"}, Collections.emptyMap());
+        assertNull(userRecord.get("mail"));
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * @author robert.ginsburg (robert.ginsburg@balsamicsolutions.com)
+ *  tests of the user role index on its own, without a directory
+ */
+package com.balsamicsolutions.wso2is;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+
+/**
+ * paging, renames, group moves, oversized groups and overflow
+ *
+ * @author robert.ginsburg
+ */
+public class UserRoleIndexTest {
+
+    private static final int STAFF = 1;
+    private static final int SALES = 2;
+    private static final int SUPPORT = 3;
+
+    @Test
+    public void membersArePagedInUserNameOrder() {
+        UserRoleIndex index = new UserRoleIndex(100, 10);
+        index.update("CN=carol,OU=Users", "carol", new int[]{STAFF});
+        index.update("CN=Alice,OU=Users", "Alice", new int[]{STAFF, SALES});
+        index.update("CN=bob,OU=Users", "bob", new int[]{STAFF, SUPPORT});
+        assertEquals(Arrays.asList("Alice", "bob", "carol"), index.members(new int[]{STAFF}, userName -> true, 0, 0));
+        assertEquals(Arrays.asList("bob"), index.members(new int[]{STAFF}, userName -> true, 1, 1));
+        assertEquals(Arrays.asList("bob", "carol"), index.members(new int[]{STAFF}, userName -> !userName.equals("Alice"), 0, 0));
+        //groups with the same name in two domains
+        assertEquals(Arrays.asList("Alice", "bob"), index.members(new int[]{SUPPORT, SALES}, userName -> true, 0, 0));
+        assertEquals(Collections.emptyList(), index.members(new int[]{42}, userName -> true, 0, 0));
+        assertEquals(5, index.getEntryCount());
+    }
+
+    @Test
+    public void movesRenamesAndRemovals() {
+        UserRoleIndex index = new UserRoleIndex(100, 10);
+        index.update("CN=alice,OU=Users", "alice", new int[]{STAFF, SALES});
+        index.updateGroups("cn=ALICE,ou=users", new int[]{SUPPORT});
+        assertEquals(Collections.emptyList(), index.members(new int[]{SALES}, userName -> true, 0, 0));
+        assertEquals(Arrays.asList("alice"), index.members(new int[]{SUPPORT}, userName -> true, 0, 0));
+        //we do not know the user name of a user who is not in the index
+        assertTrue(index.updateGroups("CN=bob,OU=Users", new int[]{SUPPORT}));
+        assertFalse(index.contains("CN=bob,OU=Users"));
+        index.update("CN=alice,OU=Users", "alice.smith", new int[]{SUPPORT});
+        assertEquals(Arrays.asList("alice.smith"), index.members(new int[]{SUPPORT}, userName -> true, 0, 0));
+        assertEquals(1, index.getUserCount());
+        index.remove("CN=alice,OU=Users");
+        assertEquals(Collections.emptyList(), index.members(new int[]{SUPPORT}, userName -> true, 0, 0));
+        assertEquals(0, index.getEntryCount());
+    }
+
+    @Test
+    public void oversizedGroupIsLeftToTheDirectory() {
+        UserRoleIndex index = new UserRoleIndex(100, 2);
+        for (String userName : Arrays.asList("alice", "bob", "carol")) {
+            index.update("CN=" + userName + ",OU=Users", userName, new int[]{STAFF});
+        }
+        index.update("CN=dave,OU=Users", "dave", new int[]{SALES});
+        assertNull(index.members(new int[]{STAFF}, userName -> true, 0, 0));
+        assertNull(index.members(new int[]{STAFF, SALES}, userName -> true, 0, 0));
+        assertEquals(Arrays.asList("dave"), index.members(new int[]{SALES}, userName -> true, 0, 0));
+        assertFalse(index.addMemberNames(STAFF, new HashSet<>()));
+        Set<String> memberNames = new HashSet<>();
+        assertTrue(index.addMemberNames(SALES, memberNames));
+        assertEquals(Collections.singleton("CN=DAVE,OU=USERS"), memberNames);
+        assertEquals(1, index.getOversizedGroupCount());
+        assertEquals(1, index.getEntryCount());
+    }
+
+    @Test
+    public void overflowEmptiesTheIndex() {
+        UserRoleIndex index = new UserRoleIndex(3, 10);
+        assertTrue(index.update("CN=alice,OU=Users", "alice", new int[]{STAFF, SALES}));
+        assertTrue(index.update("CN=bob,OU=Users", "bob", new int[]{SUPPORT}));
+        assertFalse(index.update("CN=carol,OU=Users", "carol", new int[]{STAFF, SUPPORT}));
+        assertTrue(index.isOverflowed());
+        assertEquals(0, index.getUserCount());
+        assertEquals(0, index.getEntryCount());
+        assertNull(index.members(new int[]{SUPPORT}, userName -> true, 0, 0));
+        assertFalse(index.update("CN=dave,OU=Users", "dave", new int[]{STAFF}));
+        assertFalse(index.updateGroups("CN=alice,OU=Users", new int[]{STAFF}));
+    }
+}